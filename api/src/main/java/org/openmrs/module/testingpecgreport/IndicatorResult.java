@@ -0,0 +1,130 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport;
+
+import java.util.Date;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.openmrs.BaseOpenmrsObject;
+
+/**
+ * The stored value of one PECG column for one closed reporting period. The definition version
+ * changes whenever the data set definition does, so results computed by an older definition are
+ * never served. See liquibase.xml for the table.
+ */
+@Entity(name = "testingpecgreport.IndicatorResult")
+@Table(name = "testingpecgreport_indicator_result")
+public class IndicatorResult extends BaseOpenmrsObject {
+	
+	@Id
+	@GeneratedValue
+	@Column(name = "testingpecgreport_indicator_result_id")
+	private Integer id;
+	
+	@Basic
+	@Column(name = "definition_version", length = 38, nullable = false)
+	private String definitionVersion;
+	
+	@Basic
+	@Column(name = "column_key", length = 50, nullable = false)
+	private String columnKey;
+	
+	@Basic
+	@Column(name = "start_date", nullable = false)
+	private Date startDate;
+	
+	@Basic
+	@Column(name = "end_date", nullable = false)
+	private Date endDate;
+	
+	@Basic
+	@Column(name = "value", nullable = false)
+	private Integer value;
+	
+	@Basic
+	@Column(name = "date_created", nullable = false)
+	private Date dateCreated;
+	
+	public IndicatorResult() {
+	}
+	
+	public IndicatorResult(String definitionVersion, String columnKey, Date startDate, Date endDate, Integer value) {
+		this.definitionVersion = definitionVersion;
+		this.columnKey = columnKey;
+		this.startDate = startDate;
+		this.endDate = endDate;
+		this.value = value;
+		this.dateCreated = new Date();
+	}
+	
+	@Override
+	public Integer getId() {
+		return id;
+	}
+	
+	@Override
+	public void setId(Integer id) {
+		this.id = id;
+	}
+	
+	public String getDefinitionVersion() {
+		return definitionVersion;
+	}
+	
+	public void setDefinitionVersion(String definitionVersion) {
+		this.definitionVersion = definitionVersion;
+	}
+	
+	public String getColumnKey() {
+		return columnKey;
+	}
+	
+	public void setColumnKey(String columnKey) {
+		this.columnKey = columnKey;
+	}
+	
+	public Date getStartDate() {
+		return startDate;
+	}
+	
+	public void setStartDate(Date startDate) {
+		this.startDate = startDate;
+	}
+	
+	public Date getEndDate() {
+		return endDate;
+	}
+	
+	public void setEndDate(Date endDate) {
+		this.endDate = endDate;
+	}
+	
+	public Integer getValue() {
+		return value;
+	}
+	
+	public void setValue(Integer value) {
+		this.value = value;
+	}
+	
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+	
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+}
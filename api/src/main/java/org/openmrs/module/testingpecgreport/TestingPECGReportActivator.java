@@ -9,21 +9,61 @@
  */
 package org.openmrs.module.testingpecgreport;
 
+import java.util.Calendar;
+import java.util.Date;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportRegistration;
+import org.openmrs.module.testingpecgreport.api.scheduler.PrecomputePECGReportTask;
+import org.openmrs.module.testingpecgreport.api.scheduler.RefreshArtSnapshotTask;
+import org.openmrs.scheduler.SchedulerService;
+import org.openmrs.scheduler.TaskDefinition;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
  */
-public class TestingPECGReportActivator extends BaseModuleActivator {
+public class TestingPECGReportActivator extends BaseModuleActivator implements DaemonTokenAware {
+	
+	private static final long DAILY_INTERVAL_SECONDS = 24 * 60 * 60;
+	
+	/**
+	 * Hour of the night at which the ART snapshot is compared with visit and patient_program
+	 */
+	private static final int ART_SNAPSHOT_REFRESH_HOUR = 1;
+	
+	/**
+	 * Hour of the night at which the PECG Report is precomputed
+	 */
+	private static final int PRECOMPUTE_HOUR = 2;
 	
 	private Log log = LogFactory.getLog(this.getClass());
 	
+	private DaemonToken daemonToken;
+	
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	public void setDaemonToken(DaemonToken token) {
+		this.daemonToken = token;
+	}
+	
 	/**
 	 * @see #started()
 	 */
 	public void started() {
+		registerTask(RefreshArtSnapshotTask.NAME, "Builds the snapshot tables read by the PECG report and "
+		        + "repairs every night the rows changed outside the API", RefreshArtSnapshotTask.class,
+		    DAILY_INTERVAL_SECONDS, getNextTime(ART_SNAPSHOT_REFRESH_HOUR));
+		registerTask(PrecomputePECGReportTask.NAME, "Evaluates the PECG Report of the current and "
+		        + "previous month every night so that it is served without waiting", PrecomputePECGReportTask.class,
+		    DAILY_INTERVAL_SECONDS, getNextTime(PRECOMPUTE_HOUR));
+		registerReportsInBackground();
 		log.info("Started Testing PECG Report");
 	}
 	
@@ -34,4 +74,72 @@ public class TestingPECGReportActivator extends BaseModuleActivator {
 		log.info("Shutdown Testing PECG Report");
 	}
 	
+	/**
+	 * Registers the PECG Report in a daemon thread, if it was never registered, so that it does not
+	 * hold up the startup, the first report run waits for it if it is still running. A report
+	 * registered before is checked by its first run instead. The precomputed reports are then
+	 * restored from the result store.
+	 */
+	private void registerReportsInBackground() {
+		if (daemonToken == null) {
+			log.warn("No daemon token, the PECG Report will be registered on its first run");
+			return;
+		}
+		Daemon.runInDaemonThread(new Runnable() {
+			
+			public void run() {
+				try {
+					ReportRegistration.registerIfNeverRegistered();
+				}
+				catch (Exception e) {
+					log.error("Unable to register the PECG Report", e);
+					return;
+				}
+				PrecomputePECGReportTask.restore();
+			}
+		}, daemonToken);
+	}
+	
+	/**
+	 * @return the next occurrence of the hour
+	 */
+	private Date getNextTime(int hour) {
+		Calendar ret = Calendar.getInstance();
+		ret.set(Calendar.HOUR_OF_DAY, hour);
+		ret.set(Calendar.MINUTE, 0);
+		ret.set(Calendar.SECOND, 0);
+		ret.set(Calendar.MILLISECOND, 0);
+		if (ret.getTime().before(new Date())) {
+			ret.add(Calendar.DATE, 1);
+		}
+		return ret.getTime();
+	}
+	
+	/**
+	 * Registers and schedules a repeating task unless a task with the same name already exists, in
+	 * which case the administrator's settings are left alone.
+	 * 
+	 * @param startTime the first run, null to start right away
+	 */
+	private void registerTask(String name, String description, Class<?> taskClass, long repeatIntervalSeconds,
+	        Date startTime) {
+		try {
+			SchedulerService schedulerService = Context.getSchedulerService();
+			if (schedulerService.getTaskByName(name) == null) {
+				TaskDefinition task = new TaskDefinition();
+				task.setName(name);
+				task.setDescription(description);
+				task.setTaskClass(taskClass.getName());
+				task.setRepeatInterval(repeatIntervalSeconds);
+				task.setStartTime(startTime);
+				task.setStartOnStartup(true);
+				schedulerService.saveTaskDefinition(task);
+				schedulerService.scheduleTask(task);
+			}
+		}
+		catch (Exception e) {
+			log.error("Unable to register the " + name + " task", e);
+		}
+	}
+	
 }
@@ -18,4 +18,38 @@ import org.springframework.stereotype.Component;
 public class TestingPECGReportConfig {
 	
 	public final static String MODULE_PRIVILEGE = "Testing PECG Report Privilege";
+	
+	/**
+	 * Time of the last ART snapshot refresh in milliseconds, empty until the snapshot is first built
+	 */
+	public final static String GP_ART_SNAPSHOT_HIGH_WATER_MARK = "testingpecgreport.artSnapshot.highWaterMark";
+	
+	/**
+	 * Days after its end date after which a period is closed and its results are stored, -1 disables
+	 * the result store
+	 */
+	public final static String GP_RESULT_STORE_CLOSED_AFTER_DAYS = "testingpecgreport.resultStore.closedAfterDays";
+	
+	/**
+	 * Number of database sessions a single PECG evaluation may use at once, 1 to evaluate sequentially
+	 */
+	public final static String GP_EVALUATION_PARALLELISM = "testingpecgreport.evaluation.parallelism";
+	
+	/**
+	 * Smallest cohort whose ids are loaded into a temporary table and joined instead of being bound
+	 * to IN clauses, -1 to always use IN clauses
+	 */
+	public final static String GP_TEMPORARY_TABLE_THRESHOLD = "testingpecgreport.evaluation.temporaryTableThreshold";
+	
+	/**
+	 * Version of the saved PECG Report definition, the definition is saved again when it differs from
+	 * the version built by the code
+	 */
+	public final static String GP_PECG_DEFINITION_VERSION = "testingpecgreport.pecg.definitionVersion";
+	
+	/**
+	 * Whether the PECG Report may be registered without an administrator asking, false once it was
+	 * removed
+	 */
+	public final static String GP_PECG_AUTO_REGISTER = "testingpecgreport.pecg.autoRegister";
 }
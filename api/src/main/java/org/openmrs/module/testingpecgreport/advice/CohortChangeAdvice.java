@@ -0,0 +1,161 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.advice;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Date;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Person;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataVersion;
+import org.openmrs.module.testingpecgreport.api.reporting.PrecomputedReports;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Evicts the cached cohorts and precomputed reports a visit, program enrollment or patient write may
+ * change, see {@link CohortResultCache} and {@link PrecomputedReports}, forgets the values stored for
+ * the closed periods it may change, and increments the {@link PECGDataVersion}. Registered in
+ * config.xml on VisitService, ProgramWorkflowService, PatientService and PersonService. Changes to
+ * the birthdate or gender of a person do not concern the cohorts, which do not depend on them.
+ * <p>
+ * Visit, enrollment and patient writes are copied into the ART snapshot in their transaction, see
+ * {@link TestingPECGReportService#refreshArtSnapshotOf(Person)}, so an evaluation reading it
+ * afterwards cannot store or precompute the numbers as they were before the write.
+ * <p>
+ * Stored values are forgotten for the periods overlapping the enrollments of the patient, the only
+ * ones they can count in, and for every period when an existing enrollment is edited, since its
+ * former dates are unknown, or when a patient is voided, purged, unvoided or merged.
+ * <p>
+ * The eviction is done as soon as the service method returns, and again once its transaction
+ * completes, so that an evaluation running in between cannot cache the data as it was before the
+ * commit.
+ */
+public class CohortChangeAdvice implements AfterReturningAdvice {
+	
+	/**
+	 * @see AfterReturningAdvice#afterReturning(Object, Method, Object[], Object)
+	 */
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if (args == null || args.length == 0) {
+			return;
+		}
+		if (args[0] instanceof Visit
+		        && (name.equals("saveVisit") || name.equals("voidVisit") || name.equals("unvoidVisit") || name
+		                .equals("purgeVisit"))) {
+			Visit visit = (Visit) args[0];
+			refreshArtSnapshot(visit.getPatient());
+			invalidateIndicatorResults(visit.getPatient(), false, null, null);
+			evict(visit.getPatient(), false, true, visit.getStartDatetime(), visit.getStartDatetime());
+		} else if (args[0] instanceof PatientProgram
+		        && (name.equals("savePatientProgram") || name.equals("voidPatientProgram")
+		                || name.equals("unvoidPatientProgram") || name.equals("purgePatientProgram"))) {
+			PatientProgram patientProgram = (PatientProgram) args[0];
+			refreshArtSnapshot(patientProgram.getPatient());
+			invalidateIndicatorResults(patientProgram.getPatient(), patientProgram.getDateChanged() != null,
+			    patientProgram.getDateEnrolled(), patientProgram.getDateCompleted());
+			evict(patientProgram.getPatient(), false, true, patientProgram.getDateEnrolled(), patientProgram
+			        .getDateCompleted());
+		} else if (args[0] instanceof Patient && (name.equals("voidPatient") || name.equals("purgePatient"))) {
+			refreshArtSnapshot(args[0]);
+			invalidateIndicatorResults(null, true, null, null);
+			evict((Patient) args[0], false, false, null, null);
+		} else if (args[0] instanceof Person && (name.equals("savePatient") || name.equals("savePerson"))) {
+			invalidateIndicatorResults((Person) args[0], false, null, null);
+			evict((Person) args[0], true, false, null, null);
+		} else if (name.equals("unvoidPatient") || name.equals("mergePatients")) {
+			refreshArtSnapshot(args);
+			invalidateIndicatorResults(null, true, null, null);
+			evict(null, false, true, null, null);
+		}
+	}
+	
+	/**
+	 * Forgets the stored values of the periods overlapping the enrollments of the person and the
+	 * written dates, or of every period. This is done once, in the transaction of the write when
+	 * there is one, the evaluator not storing values whose data changed while it was running.
+	 */
+	private void invalidateIndicatorResults(Person person, boolean everyPeriod, Date from, Date to) {
+		TestingPECGReportService service = getService();
+		if (person == null || person.getPersonId() == null || everyPeriod) {
+			service.invalidateIndicatorResults(null, null);
+			return;
+		}
+		service.invalidateIndicatorResultsOf(person);
+		if (from != null || to != null) {
+			service.invalidateIndicatorResults(from, to);
+		}
+	}
+	
+	/**
+	 * Copies the enrollments and visits of the patients among the arguments into the ART snapshot
+	 */
+	private void refreshArtSnapshot(Object... patients) {
+		for (Object patient : patients) {
+			if (patient instanceof Collection) {
+				refreshArtSnapshot(((Collection<?>) patient).toArray());
+			} else if (patient instanceof Person && ((Person) patient).getPersonId() != null) {
+				getService().refreshArtSnapshotOf((Person) patient);
+			}
+		}
+	}
+	
+	TestingPECGReportService getService() {
+		return Context.getService(TestingPECGReportService.class);
+	}
+	
+	/**
+	 * Evicts the entries containing the person and, when the write may have added data, those whose
+	 * period overlaps the written dates. Without a person all entries are evicted.
+	 */
+	private void evict(Person person, final boolean demographics, final boolean added, final Date from,
+	        final Date to) {
+		final Integer personId = person == null ? null : person.getPersonId();
+		evictNow(personId, demographics, added, from, to);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCompletion(int status) {
+					evictNow(personId, demographics, added, from, to);
+				}
+			});
+		}
+	}
+	
+	private static void evictNow(Integer personId, boolean demographics, boolean added, Date from, Date to) {
+		PECGDataVersion.increment();
+		if (personId == null) {
+			if (!demographics) {
+				CohortResultCache.clear();
+			}
+			PrecomputedReports.clear();
+			return;
+		}
+		if (!demographics) {
+			CohortResultCache.evictPatient(personId);
+		}
+		PrecomputedReports.evictPatient(personId);
+		if (added) {
+			if (!demographics) {
+				CohortResultCache.evictPeriod(from, to);
+			}
+			PrecomputedReports.evictPeriod(from, to);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.advice;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.ColumnDemand;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGReportRunner;
+import org.openmrs.module.testingpecgreport.api.reporting.SetupPECGReport;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Reads the templates of the PECG Report designs again whenever one of them is saved or purged, so a
+ * design added or edited through the reporting module gets the columns it references evaluated, see
+ * {@link ColumnDemand}. Registered in config.xml on ReportService.
+ */
+public class ReportDesignChangeAdvice implements AfterReturningAdvice {
+	
+	/**
+	 * @see AfterReturningAdvice#afterReturning(Object, Method, Object[], Object)
+	 */
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if (args == null || args.length == 0 || !(args[0] instanceof ReportDesign)
+		        || !(name.equals("saveReportDesign") || name.equals("purgeReportDesign"))) {
+			return;
+		}
+		ReportDefinition rd = ((ReportDesign) args[0]).getReportDefinition();
+		if (rd != null && PECGReportRunner.REPORT_NAME.equals(rd.getName())) {
+			SetupPECGReport.updateDesignColumns(rd);
+		}
+	}
+}
@@ -9,11 +9,24 @@
  */
 package org.openmrs.module.testingpecgreport.api;
 
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+
+import org.openmrs.Person;
+import org.openmrs.Program;
+import org.openmrs.VisitType;
 import org.openmrs.annotation.Authorized;
 import org.openmrs.api.APIException;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
 import org.openmrs.module.testingpecgreport.Item;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGLineList;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.EnrollmentVisitHistory;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.util.PurgedPage;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -45,4 +58,203 @@ public interface TestingPECGReportService extends OpenmrsService {
 	@Authorized(TestingPECGReportConfig.MODULE_PRIVILEGE)
 	@Transactional
 	Item saveItem(Item item) throws APIException;
+	
+	/**
+	 * Returns the patients enrolled in the program during the period who had a visit of the given
+	 * type in the same period. Reads the ART snapshot once it has been built, visit and
+	 * patient_program otherwise.
+	 * 
+	 * @param program the program
+	 * @param visitType the visit type
+	 * @param onOrAfter start of the period
+	 * @param onOrBefore end of the period
+	 * @return the patient ids
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional(readOnly = true)
+	PatientIdBitmap getPatientsEnrolledWithVisit(Program program, VisitType visitType, Date onOrAfter, Date onOrBefore)
+	        throws APIException;
+	
+	/**
+	 * Returns the patients of {@link #getPatientsEnrolledWithVisit(Program, VisitType, Date, Date)}
+	 * partitioned by the location of their visits of the given type in the period, read from the same
+	 * tables. A patient seen at several locations is in each of their partitions.
+	 * 
+	 * @param program the program
+	 * @param visitType the visit type
+	 * @param onOrAfter start of the period
+	 * @param onOrBefore end of the period
+	 * @return the patient ids keyed by visit location id, null for visits without a location
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional(readOnly = true)
+	Map<Integer, PatientIdBitmap> getPatientsEnrolledWithVisitByLocation(Program program, VisitType visitType,
+	        Date onOrAfter, Date onOrBefore) throws APIException;
+	
+	/**
+	 * Loads the enrollments and visits needed to compute the PECG base cohort of any period within
+	 * the given range, from the ART snapshot once it has been built.
+	 * 
+	 * @param program the program
+	 * @param visitType the visit type
+	 * @param onOrAfter start of the range
+	 * @param onOrBefore end of the range
+	 * @return the enrollments and visits
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional(readOnly = true)
+	EnrollmentVisitHistory getEnrollmentVisitHistory(Program program, VisitType visitType, Date onOrAfter,
+	        Date onOrBefore) throws APIException;
+	
+	/**
+	 * Writes the line list of the PECG patients of a period. It shows patients and their
+	 * identifiers, so it can only be called by users allowed to view both.
+	 * 
+	 * @param startDate the reporting start date
+	 * @param endDate the end date, at which ages are computed
+	 * @param format the output format
+	 * @param out receives the line list, it is not closed
+	 * @return the number of rows written
+	 * @throws APIException
+	 */
+	@Authorized(value = { PrivilegeConstants.VIEW_PATIENTS, PrivilegeConstants.VIEW_PATIENT_IDENTIFIERS }, requireAll = true)
+	@Transactional
+	int writeLineList(Date startDate, Date endDate, PECGLineList.Format format, OutputStream out) throws APIException;
+	
+	/**
+	 * Builds the ART snapshot if it was never built, otherwise repairs the rows which differ from
+	 * visit and patient_program, written outside the API, and forgets the stored values and
+	 * precomputed reports they may change. It is executed in a transaction.
+	 * 
+	 * @throws APIException
+	 */
+	@Authorized(TestingPECGReportConfig.MODULE_PRIVILEGE)
+	@Transactional
+	void refreshArtSnapshot() throws APIException;
+	
+	/**
+	 * Copies the enrollments and visits of a patient into the ART snapshot, called after each write
+	 * of them so the snapshot follows the writes made through the API. It joins the transaction of
+	 * the write.
+	 * 
+	 * @param person the patient
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional
+	void refreshArtSnapshotOf(Person person) throws APIException;
+	
+	/**
+	 * Tells whether a reporting period is closed, that is whether its end date is older than the
+	 * number of days set in {@link TestingPECGReportConfig#GP_RESULT_STORE_CLOSED_AFTER_DAYS}.
+	 * Results are only stored for closed periods.
+	 * 
+	 * @param endDate end of the period
+	 * @return true if the period is closed and the result store is enabled
+	 */
+	@Authorized()
+	@Transactional(readOnly = true)
+	boolean isClosedPeriod(Date endDate) throws APIException;
+	
+	/**
+	 * Returns the stored values of a period by column key, or an empty map if the period was not
+	 * stored for this version of the data set definition.
+	 * 
+	 * @param definitionVersion the version of the data set definition
+	 * @param startDate start of the period
+	 * @param endDate end of the period
+	 * @return the values by column key
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional(readOnly = true)
+	Map<String, Integer> getIndicatorResults(String definitionVersion, Date startDate, Date endDate)
+	        throws APIException;
+	
+	/**
+	 * Stores the values of a closed period by column key, replacing any values already stored for
+	 * the same definition version and period. It is executed in a transaction.
+	 * 
+	 * @param definitionVersion the version of the data set definition
+	 * @param startDate start of the period
+	 * @param endDate end of the period
+	 * @param values the values by column key
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional
+	void saveIndicatorResults(String definitionVersion, Date startDate, Date endDate, Map<String, Integer> values)
+	        throws APIException;
+	
+	/**
+	 * Forgets the stored values of every period overlapping the given dates, so they are computed
+	 * again on the next run. Called by CohortChangeAdvice after late data entry, by whoever made the
+	 * write, since stored values can always be computed again. It is executed in a transaction.
+	 * 
+	 * @param onOrAfter start of the dates to invalidate, or null for no lower bound
+	 * @param onOrBefore end of the dates to invalidate, or null for no upper bound
+	 * @return the number of forgotten values
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional
+	int invalidateIndicatorResults(Date onOrAfter, Date onOrBefore) throws APIException;
+	
+	/**
+	 * Forgets the stored values of every period overlapping one of the program enrollments of the
+	 * person, after a write to their visits or demographics. It is executed in a transaction.
+	 * 
+	 * @param person the person
+	 * @return the number of forgotten values
+	 * @throws APIException
+	 */
+	@Authorized()
+	@Transactional
+	int invalidateIndicatorResultsOf(Person person) throws APIException;
+	
+	/**
+	 * Purges the report designs, retired ones included, following afterId, up to maxResults, through
+	 * the ReportService. Each design is purged in its own transaction, one which cannot be purged is
+	 * logged and passed.
+	 * 
+	 * @param afterId the last id of the previous page, or null for the first page
+	 * @param maxResults the maximum number of designs to examine
+	 * @return the page purged
+	 * @throws APIException
+	 */
+	@Authorized(TestingPECGReportConfig.MODULE_PRIVILEGE)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	PurgedPage purgeReportDesigns(Integer afterId, int maxResults) throws APIException;
+	
+	/**
+	 * Purges the report definitions, retired ones included, following afterId, up to maxResults,
+	 * through the ReportDefinitionService. Their designs should have been purged first. Each
+	 * definition is purged in its own transaction, one which cannot be loaded or purged is logged
+	 * and passed.
+	 * 
+	 * @param afterId the last id of the previous page, or null for the first page
+	 * @param maxResults the maximum number of definitions to examine
+	 * @return the page purged
+	 * @throws APIException
+	 */
+	@Authorized(TestingPECGReportConfig.MODULE_PRIVILEGE)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	PurgedPage purgeReportDefinitions(Integer afterId, int maxResults) throws APIException;
+	
+	/**
+	 * Purges the completed or failed report requests following afterId, up to maxResults, with their
+	 * files, through the ReportService. Each request is purged in its own transaction, one which
+	 * cannot be purged is logged and passed.
+	 * 
+	 * @param afterId the last id of the previous page, or null for the first page
+	 * @param maxResults the maximum number of requests to examine
+	 * @return the page purged
+	 * @throws APIException
+	 */
+	@Authorized(TestingPECGReportConfig.MODULE_PRIVILEGE)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	PurgedPage purgeFinishedReportRequests(Integer afterId, int maxResults) throws APIException;
 }
@@ -9,16 +9,110 @@
  */
 package org.openmrs.module.testingpecgreport.api.dao;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.criterion.Restrictions;
+import org.openmrs.Cohort;
+import org.openmrs.Program;
+import org.openmrs.VisitType;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.db.hibernate.DbSession;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.report.ReportRequest.Status;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.testingpecgreport.IndicatorResult;
 import org.openmrs.module.testingpecgreport.Item;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.ArtSnapshotChanges;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.EnrollmentVisitHistory;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 @Repository("testingpecgreport.TestingPECGReportDao")
 public class TestingPECGReportDao {
 	
+	/**
+	 * Maximum number of patient ids bound to a single IN clause
+	 */
+	private static final int ID_BATCH_SIZE = 1000;
+	
+	private static final int FETCH_SIZE = 1000;
+	
+	/**
+	 * The temporary table is disabled unless it is configured, it needs CREATE TEMPORARY TABLES
+	 */
+	private static final String DEFAULT_TEMPORARY_TABLE_THRESHOLD = "-1";
+	
+	/**
+	 * Connection scoped table holding the cohort being scanned, see
+	 * {@link #scanJoined(String, String, Cohort, RowHandler)}
+	 */
+	private static final String COHORT_TABLE = "testingpecgreport_cohort";
+	
+	/**
+	 * The UPEC base cohort query, public for the benchmarks
+	 */
+	public static final String ENROLLED_WITH_VISIT_QUERY = "select distinct pp.patient_id from patient_program pp"
+	        + " where pp.program_id = :programId and pp.voided = 0 and pp.date_enrolled <= :onOrBefore"
+	        + " and (pp.date_completed >= :onOrAfter or pp.date_completed is null)"
+	        + " and exists (select 1 from visit v where v.patient_id = pp.patient_id and v.visit_type_id = :visitTypeId"
+	        + " and v.voided = 0 and v.date_started >= :onOrAfter and v.date_started <= :onOrBefore)";
+	
+	/**
+	 * The UPEC base cohort query returning the location of every qualifying visit, a patient comes
+	 * once per location they visited
+	 */
+	public static final String ENROLLED_WITH_VISIT_BY_LOCATION_QUERY = "select distinct pp.patient_id, v.location_id"
+	        + " from patient_program pp inner join visit v on v.patient_id = pp.patient_id"
+	        + " where pp.program_id = :programId and pp.voided = 0 and pp.date_enrolled <= :onOrBefore"
+	        + " and (pp.date_completed >= :onOrAfter or pp.date_completed is null) and v.visit_type_id = :visitTypeId"
+	        + " and v.voided = 0 and v.date_started >= :onOrAfter and v.date_started <= :onOrBefore";
+	
+	/**
+	 * The UPEC base cohort query over the ART snapshot, public for the benchmarks
+	 */
+	public static final String SNAPSHOT_ENROLLED_WITH_VISIT_QUERY = "select distinct e.patient_id from testingpecgreport_enrollment e"
+	        + " where e.program_id = :programId and e.date_enrolled <= :onOrBefore"
+	        + " and (e.date_completed >= :onOrAfter or e.date_completed is null)"
+	        + " and exists (select 1 from testingpecgreport_visit v where v.patient_id = e.patient_id"
+	        + " and v.visit_type_id = :visitTypeId and v.date_started >= :onOrAfter and v.date_started <= :onOrBefore)";
+	
+	/**
+	 * Same as {@link #ENROLLED_WITH_VISIT_BY_LOCATION_QUERY} over the ART snapshot
+	 */
+	public static final String SNAPSHOT_ENROLLED_WITH_VISIT_BY_LOCATION_QUERY = "select distinct e.patient_id, v.location_id"
+	        + " from testingpecgreport_enrollment e inner join testingpecgreport_visit v on v.patient_id = e.patient_id"
+	        + " where e.program_id = :programId and e.date_enrolled <= :onOrBefore"
+	        + " and (e.date_completed >= :onOrAfter or e.date_completed is null) and v.visit_type_id = :visitTypeId"
+	        + " and v.date_started >= :onOrAfter and v.date_started <= :onOrBefore";
+	
+	private static final String SNAPSHOT_ENROLLMENT_COLUMNS = "patient_program_id, patient_id, program_id, date_enrolled, date_completed";
+	
+	private static final String SNAPSHOT_VISIT_COLUMNS = "visit_id, patient_id, visit_type_id, date_started, location_id";
+	
+	/**
+	 * Whether the patient_program row pp has the values of the snapshot row e
+	 */
+	private static final String SAME_ENROLLMENT = "pp.patient_id = e.patient_id and pp.program_id = e.program_id"
+	        + " and (pp.date_enrolled = e.date_enrolled or pp.date_enrolled is null and e.date_enrolled is null)"
+	        + " and (pp.date_completed = e.date_completed or pp.date_completed is null and e.date_completed is null)";
+	
+	/**
+	 * Whether the visit row s has the values of the snapshot row v
+	 */
+	private static final String SAME_VISIT = "s.patient_id = v.patient_id and s.visit_type_id = v.visit_type_id"
+	        + " and s.date_started = v.date_started"
+	        + " and (s.location_id = v.location_id or s.location_id is null and v.location_id is null)";
+	
 	@Autowired
 	DbSessionFactory sessionFactory;
 	
@@ -34,4 +128,519 @@ public class TestingPECGReportDao {
 		getSession().saveOrUpdate(item);
 		return item;
 	}
+	
+	/**
+	 * Reads the birthdate and gender of the non voided patients of the given cohort in one forward
+	 * only pass, handing each row to the handler as it is read.
+	 *
+	 * @param cohort the patients to read, or null for all patients
+	 * @param handler receives one call per patient
+	 */
+	public void scanDemographics(Cohort cohort, final DemographicsHandler handler) {
+		String select = "select p.person_id, p.birthdate, p.gender from patient t inner join person p on p.person_id = t.patient_id";
+		scan(select, "t.voided = 0 and p.voided = 0", cohort, new RowHandler() {
+			
+			public void handle(Object[] row) {
+				handler.handle(((Number) row[0]).intValue(), (Date) row[1], row[2] == null ? null : row[2].toString());
+			}
+		});
+	}
+	
+	/**
+	 * Reads the preferred identifier, birthdate and gender of the non voided patients of the given
+	 * cohort in forward only passes over a cursor, handing each row to the handler as it is read so
+	 * nothing is kept in memory.
+	 *
+	 * @param cohort the patients to read, or null for all patients
+	 * @param handler receives one call per patient
+	 */
+	public void scanLineList(Cohort cohort, final LineListHandler handler) {
+		String select = "select p.person_id, (select pi.identifier from patient_identifier pi where pi.patient_id = t.patient_id"
+		        + " and pi.voided = 0 order by pi.preferred desc, pi.patient_identifier_id limit 1),"
+		        + " p.birthdate, p.gender from patient t inner join person p on p.person_id = t.patient_id";
+		scan(select, "t.voided = 0 and p.voided = 0", cohort, new RowHandler() {
+			
+			public void handle(Object[] row) {
+				handler.handle(((Number) row[0]).intValue(), (String) row[1], (Date) row[2], row[3] == null ? null
+				        : row[3].toString());
+			}
+		});
+	}
+	
+	/**
+	 * Returns the patients enrolled in the program during the period who had a visit of the given
+	 * type in the same period. The visit is checked with a semi-join so each patient is returned once
+	 * however many visits they had, and the statement text never changes so it can be prepared once.
+	 * See liquibase.xml for the indexes covering both tables.
+	 * 
+	 * @param program the program
+	 * @param visitType the visit type
+	 * @param onOrAfter start of the period
+	 * @param onOrBefore end of the period
+	 * @return the patient ids
+	 */
+	public PatientIdBitmap getPatientsEnrolledWithVisit(Program program, VisitType visitType, Date onOrAfter,
+	        Date onOrBefore) {
+		SQLQuery query = getSession().createSQLQuery(ENROLLED_WITH_VISIT_QUERY);
+		query.setInteger("visitTypeId", visitType.getVisitTypeId());
+		query.setInteger("programId", program.getProgramId());
+		query.setTimestamp("onOrAfter", onOrAfter);
+		query.setTimestamp("onOrBefore", onOrBefore);
+		return scanIds(query);
+	}
+	
+	/**
+	 * Same as {@link #getPatientsEnrolledWithVisit(Program, VisitType, Date, Date)} but reads the
+	 * snapshot tables maintained by {@link #refreshArtSnapshot(boolean)} instead of visit and
+	 * patient_program.
+	 */
+	public PatientIdBitmap getPatientsEnrolledWithVisitFromSnapshot(Program program, VisitType visitType,
+	        Date onOrAfter, Date onOrBefore) {
+		SQLQuery query = getSession().createSQLQuery(SNAPSHOT_ENROLLED_WITH_VISIT_QUERY);
+		query.setInteger("visitTypeId", visitType.getVisitTypeId());
+		query.setInteger("programId", program.getProgramId());
+		query.setTimestamp("onOrAfter", onOrAfter);
+		query.setTimestamp("onOrBefore", onOrBefore);
+		return scanIds(query);
+	}
+	
+	/**
+	 * Same as {@link #getPatientsEnrolledWithVisit(Program, VisitType, Date, Date)} but partitioned by
+	 * the location of the visits, in one pass. A patient is in the partition of every location where
+	 * they had a visit of the type during the period.
+	 * 
+	 * @param program the program
+	 * @param visitType the visit type
+	 * @param onOrAfter start of the period
+	 * @param onOrBefore end of the period
+	 * @param fromSnapshot whether to read the snapshot tables, as the base cohort does
+	 * @return the patient ids keyed by visit location id, the null key holding visits without a
+	 *         location
+	 */
+	public Map<Integer, PatientIdBitmap> getPatientsEnrolledWithVisitByLocation(Program program, VisitType visitType,
+	        Date onOrAfter, Date onOrBefore, boolean fromSnapshot) {
+		SQLQuery query = getSession().createSQLQuery(
+		    fromSnapshot ? SNAPSHOT_ENROLLED_WITH_VISIT_BY_LOCATION_QUERY : ENROLLED_WITH_VISIT_BY_LOCATION_QUERY);
+		query.setInteger("visitTypeId", visitType.getVisitTypeId());
+		query.setInteger("programId", program.getProgramId());
+		query.setTimestamp("onOrAfter", onOrAfter);
+		query.setTimestamp("onOrBefore", onOrBefore);
+		final Map<Integer, PatientIdBitmap> ret = new LinkedHashMap<Integer, PatientIdBitmap>();
+		scan(query, new RowHandler() {
+			
+			public void handle(Object[] row) {
+				Integer locationId = row[1] == null ? null : ((Number) row[1]).intValue();
+				PatientIdBitmap patients = ret.get(locationId);
+				if (patients == null) {
+					patients = new PatientIdBitmap();
+					ret.put(locationId, patients);
+				}
+				patients.add(((Number) row[0]).intValue());
+			}
+		});
+		return ret;
+	}
+	
+	/**
+	 * Loads the enrollments in the program overlapping the range and the visits of the given type
+	 * started within it, reading the snapshot tables or visit and patient_program.
+	 * 
+	 * @param program the program
+	 * @param visitType the visit type
+	 * @param onOrAfter start of the range
+	 * @param onOrBefore end of the range
+	 * @param fromSnapshot whether to read the snapshot tables
+	 * @return the enrollments and visits
+	 */
+	public EnrollmentVisitHistory getEnrollmentVisitHistory(Program program, VisitType visitType, Date onOrAfter,
+	        Date onOrBefore, boolean fromSnapshot) {
+		SQLQuery enrollments = getSession().createSQLQuery(
+		    fromSnapshot ? "select e.patient_id, e.date_enrolled, e.date_completed from testingpecgreport_enrollment e"
+		            + " where e.program_id = :programId and e.date_enrolled <= :onOrBefore"
+		            + " and (e.date_completed >= :onOrAfter or e.date_completed is null)"
+		            : "select pp.patient_id, pp.date_enrolled, pp.date_completed from patient_program pp"
+		                    + " where pp.program_id = :programId and pp.voided = 0 and pp.date_enrolled <= :onOrBefore"
+		                    + " and (pp.date_completed >= :onOrAfter or pp.date_completed is null)");
+		enrollments.setInteger("programId", program.getProgramId());
+		enrollments.setTimestamp("onOrAfter", onOrAfter);
+		enrollments.setTimestamp("onOrBefore", onOrBefore);
+		SQLQuery visits = getSession().createSQLQuery(
+		    fromSnapshot ? "select v.patient_id, v.date_started from testingpecgreport_visit v"
+		            + " where v.visit_type_id = :visitTypeId and v.date_started >= :onOrAfter and v.date_started <= :onOrBefore"
+		            : "select v.patient_id, v.date_started from visit v where v.visit_type_id = :visitTypeId"
+		                    + " and v.voided = 0 and v.date_started >= :onOrAfter and v.date_started <= :onOrBefore");
+		visits.setInteger("visitTypeId", visitType.getVisitTypeId());
+		visits.setTimestamp("onOrAfter", onOrAfter);
+		visits.setTimestamp("onOrBefore", onOrBefore);
+		
+		EnrollmentVisitHistory ret = new EnrollmentVisitHistory();
+		ScrollableResults results = readOnly(enrollments).scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				Object[] row = results.get();
+				ret.addEnrollment(((Number) row[0]).intValue(), (Date) row[1], (Date) row[2]);
+			}
+		}
+		finally {
+			results.close();
+		}
+		results = readOnly(visits).scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				Object[] row = results.get();
+				ret.addVisit(((Number) row[0]).intValue(), (Date) row[1]);
+			}
+		}
+		finally {
+			results.close();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Copies the enrollments and visits of one patient from patient_program and visit into the ART
+	 * snapshot, called for every write made through the API so the snapshot never lags behind them.
+	 * 
+	 * @param patientId the patient
+	 */
+	public void refreshArtSnapshotOfPatient(Integer patientId) {
+		getSession().createSQLQuery("delete from testingpecgreport_enrollment where patient_id = :patientId")
+		        .setInteger("patientId", patientId).executeUpdate();
+		getSession().createSQLQuery(
+		    "insert into testingpecgreport_enrollment (" + SNAPSHOT_ENROLLMENT_COLUMNS + ") select "
+		            + SNAPSHOT_ENROLLMENT_COLUMNS + " from patient_program where voided = 0 and patient_id = :patientId")
+		        .setInteger("patientId", patientId).executeUpdate();
+		getSession().createSQLQuery("delete from testingpecgreport_visit where patient_id = :patientId")
+		        .setInteger("patientId", patientId).executeUpdate();
+		getSession().createSQLQuery(
+		    "insert into testingpecgreport_visit (" + SNAPSHOT_VISIT_COLUMNS + ") select " + SNAPSHOT_VISIT_COLUMNS
+		            + " from visit where voided = 0 and patient_id = :patientId").setInteger("patientId", patientId)
+		        .executeUpdate();
+	}
+	
+	/**
+	 * Brings the snapshot tables in line with visit and patient_program, catching the writes which
+	 * did not go through the API such as imports and purges in SQL. Every row of both tables is
+	 * compared, so it is meant to run rarely, the writes made through the API being copied as they
+	 * happen by {@link #refreshArtSnapshotOfPatient(Integer)}.
+	 * 
+	 * @param rebuild whether to reload all rows rather than compare them
+	 * @return the rows replaced, added or removed, empty after a rebuild
+	 */
+	public ArtSnapshotChanges refreshArtSnapshot(boolean rebuild) {
+		ArtSnapshotChanges ret = new ArtSnapshotChanges();
+		if (rebuild) {
+			getSession().createSQLQuery("delete from testingpecgreport_enrollment").executeUpdate();
+			getSession().createSQLQuery("delete from testingpecgreport_visit").executeUpdate();
+			getSession().createSQLQuery(
+			    "insert into testingpecgreport_enrollment (" + SNAPSHOT_ENROLLMENT_COLUMNS + ") select "
+			            + SNAPSHOT_ENROLLMENT_COLUMNS + " from patient_program where voided = 0").executeUpdate();
+			getSession().createSQLQuery(
+			    "insert into testingpecgreport_visit (" + SNAPSHOT_VISIT_COLUMNS + ") select " + SNAPSHOT_VISIT_COLUMNS
+			            + " from visit where voided = 0").executeUpdate();
+			return ret;
+		}
+		
+		// rows whose enrollment was changed, voided or purged
+		List<Integer> ids = scanEnrollments("select e.patient_program_id, e.patient_id, e.date_enrolled, e.date_completed"
+		        + " from testingpecgreport_enrollment e where not exists (select 1 from patient_program pp"
+		        + " where pp.patient_program_id = e.patient_program_id and pp.voided = 0 and " + SAME_ENROLLMENT + ")", ret);
+		executeForIds("delete from testingpecgreport_enrollment where patient_program_id in (:ids)", ids);
+		// enrollments missing from the snapshot, including those just removed because they changed
+		ids = scanEnrollments("select pp.patient_program_id, pp.patient_id, pp.date_enrolled, pp.date_completed"
+		        + " from patient_program pp where pp.voided = 0 and not exists (select 1 from testingpecgreport_enrollment e"
+		        + " where e.patient_program_id = pp.patient_program_id)", ret);
+		executeForIds("insert into testingpecgreport_enrollment (" + SNAPSHOT_ENROLLMENT_COLUMNS + ") select "
+		        + SNAPSHOT_ENROLLMENT_COLUMNS + " from patient_program where patient_program_id in (:ids)", ids);
+		
+		ids = scanVisits("select v.visit_id, v.patient_id, v.date_started from testingpecgreport_visit v"
+		        + " where not exists (select 1 from visit s where s.visit_id = v.visit_id and s.voided = 0 and "
+		        + SAME_VISIT + ")", ret);
+		executeForIds("delete from testingpecgreport_visit where visit_id in (:ids)", ids);
+		ids = scanVisits("select s.visit_id, s.patient_id, s.date_started from visit s where s.voided = 0"
+		        + " and not exists (select 1 from testingpecgreport_visit v where v.visit_id = s.visit_id)", ret);
+		executeForIds("insert into testingpecgreport_visit (" + SNAPSHOT_VISIT_COLUMNS + ") select "
+		        + SNAPSHOT_VISIT_COLUMNS + " from visit where visit_id in (:ids)", ids);
+		return ret;
+	}
+	
+	private List<Integer> scanEnrollments(String sql, final ArtSnapshotChanges changes) {
+		final List<Integer> ret = new ArrayList<Integer>();
+		scan(getSession().createSQLQuery(sql), new RowHandler() {
+			
+			public void handle(Object[] row) {
+				ret.add(((Number) row[0]).intValue());
+				changes.addEnrollment(((Number) row[1]).intValue(), (Date) row[2], (Date) row[3]);
+			}
+		});
+		return ret;
+	}
+	
+	private List<Integer> scanVisits(String sql, final ArtSnapshotChanges changes) {
+		final List<Integer> ret = new ArrayList<Integer>();
+		scan(getSession().createSQLQuery(sql), new RowHandler() {
+			
+			public void handle(Object[] row) {
+				ret.add(((Number) row[0]).intValue());
+				changes.addVisit(((Number) row[1]).intValue(), (Date) row[2]);
+			}
+		});
+		return ret;
+	}
+	
+	private void executeForIds(String sql, List<Integer> ids) {
+		for (int from = 0; from < ids.size(); from += ID_BATCH_SIZE) {
+			getSession().createSQLQuery(sql)
+			        .setParameterList("ids", ids.subList(from, Math.min(from + ID_BATCH_SIZE, ids.size())))
+			        .executeUpdate();
+		}
+	}
+	
+	/**
+	 * @param definitionVersion the version of the data set definition
+	 * @param startDate start of the period
+	 * @param endDate end of the period
+	 * @return the stored results of the period
+	 */
+	@SuppressWarnings("unchecked")
+	public List<IndicatorResult> getIndicatorResults(String definitionVersion, Date startDate, Date endDate) {
+		return getSession().createCriteria(IndicatorResult.class)
+		        .add(Restrictions.eq("definitionVersion", definitionVersion)).add(Restrictions.eq("startDate", startDate))
+		        .add(Restrictions.eq("endDate", endDate)).list();
+	}
+	
+	public IndicatorResult saveIndicatorResult(IndicatorResult result) {
+		getSession().saveOrUpdate(result);
+		return result;
+	}
+	
+	/**
+	 * Deletes the stored results of every period overlapping the given dates, whatever the
+	 * definition version.
+	 * 
+	 * @param onOrAfter start of the dates to invalidate, or null for no lower bound
+	 * @param onOrBefore end of the dates to invalidate, or null for no upper bound
+	 * @return the number of deleted results
+	 */
+	public int deleteIndicatorResults(Date onOrAfter, Date onOrBefore) {
+		StringBuilder sql = new StringBuilder("delete from testingpecgreport_indicator_result where 1 = 1");
+		if (onOrAfter != null) {
+			sql.append(" and end_date >= :onOrAfter");
+		}
+		if (onOrBefore != null) {
+			sql.append(" and start_date <= :onOrBefore");
+		}
+		SQLQuery query = getSession().createSQLQuery(sql.toString());
+		if (onOrAfter != null) {
+			query.setTimestamp("onOrAfter", onOrAfter);
+		}
+		if (onOrBefore != null) {
+			query.setTimestamp("onOrBefore", onOrBefore);
+		}
+		return query.executeUpdate();
+	}
+	
+	/**
+	 * Deletes the stored results of every period overlapping one of the program enrollments of the
+	 * patient, voided ones included, the only periods whose values the patient may be part of.
+	 * 
+	 * @param patientId the patient
+	 * @return the number of deleted results
+	 */
+	public int deleteIndicatorResultsOfPatient(Integer patientId) {
+		return getSession()
+		        .createSQLQuery(
+		            "delete from testingpecgreport_indicator_result where exists (select 1 from patient_program pp"
+		                    + " where pp.patient_id = :patientId"
+		                    + " and pp.date_enrolled <= testingpecgreport_indicator_result.end_date"
+		                    + " and (pp.date_completed >= testingpecgreport_indicator_result.start_date"
+		                    + " or pp.date_completed is null))").setInteger("patientId", patientId).executeUpdate();
+	}
+	
+	/**
+	 * @return the ids of all non voided patients
+	 */
+	public PatientIdBitmap getPatientIds() {
+		return scanIds(getSession().createSQLQuery("select patient_id from patient where voided = 0"));
+	}
+	
+	/**
+	 * @param afterId the id of the last design of the previous page, or null for the first page
+	 * @param maxResults the size of the page
+	 * @return the ids of the report designs after afterId, retired ones included, in order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getReportDesignIds(Integer afterId, int maxResults) {
+		return toIntegers(getSession()
+		        .createSQLQuery("select id from reporting_report_design where id > :afterId order by id")
+		        .setInteger("afterId", afterId == null ? 0 : afterId).setMaxResults(maxResults).list());
+	}
+	
+	/**
+	 * @param afterId the id of the last definition of the previous page, or null for the first page
+	 * @param maxResults the size of the page
+	 * @return the uuids of the report definitions after afterId, retired ones included, keyed by their
+	 *         serialized object id, in order
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, String> getReportDefinitionUuids(Integer afterId, int maxResults) {
+		List<Object[]> rows = getSession()
+		        .createSQLQuery(
+		            "select serialized_object_id, uuid from serialized_object where type = :type"
+		                    + " and serialized_object_id > :afterId order by serialized_object_id")
+		        .setString("type", ReportDefinition.class.getName()).setInteger("afterId", afterId == null ? 0 : afterId)
+		        .setMaxResults(maxResults).list();
+		Map<Integer, String> ret = new LinkedHashMap<Integer, String>();
+		for (Object[] row : rows) {
+			ret.put(((Number) row[0]).intValue(), (String) row[1]);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @param afterId the id of the last request of the previous page, or null for the first page
+	 * @param maxResults the size of the page
+	 * @return the ids of the completed or failed report requests after afterId, in order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getFinishedReportRequestIds(Integer afterId, int maxResults) {
+		return toIntegers(getSession()
+		        .createSQLQuery(
+		            "select id from reporting_report_request where status in (:statuses) and id > :afterId order by id")
+		        .setParameterList("statuses", new String[] { Status.COMPLETED.name(), Status.FAILED.name() })
+		        .setInteger("afterId", afterId == null ? 0 : afterId).setMaxResults(maxResults).list());
+	}
+	
+	private static List<Integer> toIntegers(List<Number> ids) {
+		List<Integer> ret = new ArrayList<Integer>(ids.size());
+		for (Number id : ids) {
+			ret.add(id.intValue());
+		}
+		return ret;
+	}
+	
+	private SQLQuery readOnly(SQLQuery query) {
+		query.setFetchSize(FETCH_SIZE);
+		query.setReadOnly(true);
+		return query;
+	}
+	
+	private PatientIdBitmap scanIds(SQLQuery query) {
+		PatientIdBitmap ret = new PatientIdBitmap();
+		ScrollableResults results = readOnly(query).scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				ret.add(((Number) results.get(0)).intValue());
+			}
+		}
+		finally {
+			results.close();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Runs a query over the patients of a cohort, or over all patients when there is no cohort. Large
+	 * cohorts are loaded into a temporary table which the query joins when it is enabled, other ones
+	 * are bound by batches of ids so the IN clause stays bounded.
+	 * 
+	 * @param select the select and from clauses, which must alias patient as t and person as p
+	 * @param where the conditions of the where clause
+	 */
+	private void scan(String select, String where, Cohort cohort, RowHandler handler) {
+		String sql = select + " where " + where;
+		if (cohort == null) {
+			scan(getSession().createSQLQuery(sql), handler);
+			return;
+		}
+		int threshold = getTemporaryTableThreshold();
+		if (threshold >= 0 && cohort.size() >= threshold) {
+			scanJoined(select, where, cohort, handler);
+			return;
+		}
+		List<Integer> ids = new ArrayList<Integer>(cohort.getMemberIds());
+		for (int from = 0; from < ids.size(); from += ID_BATCH_SIZE) {
+			List<Integer> batch = ids.subList(from, Math.min(from + ID_BATCH_SIZE, ids.size()));
+			SQLQuery query = getSession().createSQLQuery(sql + " and p.person_id in (:ids)");
+			query.setParameterList("ids", batch);
+			scan(query, handler);
+		}
+	}
+	
+	/**
+	 * Loads the cohort into a temporary table with multi-row inserts and runs the query once, joined
+	 * to it on the primary key so the database can drive the scan from the cohort through the patient
+	 * and person indexes. Temporary tables belong to the connection, so concurrent sessions, the
+	 * evaluation workers included, each get their own.
+	 */
+	private void scanJoined(String select, String where, Cohort cohort, RowHandler handler) {
+		getSession().createSQLQuery(
+		    "create temporary table if not exists " + COHORT_TABLE + " (patient_id int not null primary key)")
+		        .executeUpdate();
+		getSession().createSQLQuery("delete from " + COHORT_TABLE).executeUpdate();
+		try {
+			int[] ids = PatientIdBitmap.of(cohort).toArray();
+			for (int from = 0; from < ids.length; from += ID_BATCH_SIZE) {
+				int to = Math.min(from + ID_BATCH_SIZE, ids.length);
+				StringBuilder insert = new StringBuilder("insert into " + COHORT_TABLE + " (patient_id) values ");
+				for (int i = from; i < to; i++) {
+					insert.append(i == from ? "(?)" : ",(?)");
+				}
+				SQLQuery query = getSession().createSQLQuery(insert.toString());
+				for (int i = from; i < to; i++) {
+					query.setInteger(i - from, ids[i]);
+				}
+				query.executeUpdate();
+			}
+			scan(getSession().createSQLQuery(
+			    select + " inner join " + COHORT_TABLE + " c on c.patient_id = t.patient_id where " + where), handler);
+		}
+		finally {
+			getSession().createSQLQuery("delete from " + COHORT_TABLE).executeUpdate();
+		}
+	}
+	
+	private int getTemporaryTableThreshold() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    TestingPECGReportConfig.GP_TEMPORARY_TABLE_THRESHOLD, DEFAULT_TEMPORARY_TABLE_THRESHOLD);
+		try {
+			return StringUtils.isBlank(value) ? -1 : Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private void scan(SQLQuery query, RowHandler handler) {
+		ScrollableResults results = readOnly(query).scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (results.next()) {
+				handler.handle(results.get());
+			}
+		}
+		finally {
+			results.close();
+		}
+	}
+	
+	private interface RowHandler {
+		
+		void handle(Object[] row);
+	}
+	
+	/**
+	 * Callback for {@link TestingPECGReportDao#scanDemographics(Cohort, DemographicsHandler)}
+	 */
+	public interface DemographicsHandler {
+		
+		void handle(int patientId, Date birthdate, String gender);
+	}
+	
+	/**
+	 * Callback for {@link TestingPECGReportDao#scanLineList(Cohort, LineListHandler)}
+	 */
+	public interface LineListHandler {
+		
+		void handle(int patientId, String identifier, Date birthdate, String gender);
+	}
 }
@@ -9,19 +9,55 @@
  */
 package org.openmrs.module.testingpecgreport.api.impl;
 
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Person;
+import org.openmrs.Program;
+import org.openmrs.VisitType;
 import org.openmrs.api.APIException;
 import org.openmrs.api.UserService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.reporting.report.ReportRequest;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.testingpecgreport.IndicatorResult;
 import org.openmrs.module.testingpecgreport.Item;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
 import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
 import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataVersion;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGLineList;
+import org.openmrs.module.testingpecgreport.api.reporting.PrecomputedReports;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.ArtSnapshotChanges;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.EnrollmentVisitHistory;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.util.PurgedPage;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 public class TestingPECGReportServiceImpl extends BaseOpenmrsService implements TestingPECGReportService {
 	
+	private static final String DEFAULT_CLOSED_AFTER_DAYS = "30";
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
 	TestingPECGReportDao dao;
 	
 	UserService userService;
 	
+	PECGLineList lineList;
+	
 	/**
 	 * Injected in moduleApplicationContext.xml
 	 */
@@ -36,6 +72,13 @@ public class TestingPECGReportServiceImpl extends BaseOpenmrsService implements
 		this.userService = userService;
 	}
 	
+	/**
+	 * Injected in moduleApplicationContext.xml
+	 */
+	public void setLineList(PECGLineList lineList) {
+		this.lineList = lineList;
+	}
+	
 	@Override
 	public Item getItemByUuid(String uuid) throws APIException {
 		return dao.getItemByUuid(uuid);
@@ -49,4 +92,220 @@ public class TestingPECGReportServiceImpl extends BaseOpenmrsService implements
 		
 		return dao.saveItem(item);
 	}
+	
+	@Override
+	public PatientIdBitmap getPatientsEnrolledWithVisit(Program program, VisitType visitType, Date onOrAfter,
+	        Date onOrBefore) throws APIException {
+		if (getArtSnapshotHighWaterMark() != null) {
+			return dao.getPatientsEnrolledWithVisitFromSnapshot(program, visitType, onOrAfter, onOrBefore);
+		}
+		return dao.getPatientsEnrolledWithVisit(program, visitType, onOrAfter, onOrBefore);
+	}
+	
+	@Override
+	public Map<Integer, PatientIdBitmap> getPatientsEnrolledWithVisitByLocation(Program program, VisitType visitType,
+	        Date onOrAfter, Date onOrBefore) throws APIException {
+		return dao.getPatientsEnrolledWithVisitByLocation(program, visitType, onOrAfter, onOrBefore,
+		    getArtSnapshotHighWaterMark() != null);
+	}
+	
+	@Override
+	public EnrollmentVisitHistory getEnrollmentVisitHistory(Program program, VisitType visitType, Date onOrAfter,
+	        Date onOrBefore) throws APIException {
+		return dao.getEnrollmentVisitHistory(program, visitType, onOrAfter, onOrBefore,
+		    getArtSnapshotHighWaterMark() != null);
+	}
+	
+	@Override
+	public int writeLineList(Date startDate, Date endDate, PECGLineList.Format format, OutputStream out)
+	        throws APIException {
+		try {
+			return lineList.write(startDate, endDate, format, out);
+		}
+		catch (APIException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new APIException("Unable to write the PECG line list", e);
+		}
+	}
+	
+	@Override
+	public void refreshArtSnapshot() throws APIException {
+		Date now = new Date();
+		final ArtSnapshotChanges changes = dao.refreshArtSnapshot(getArtSnapshotHighWaterMark() == null);
+		CohortResultCache.clear();
+		if (changes.size() > 0) {
+			if (changes.isOverflowed()) {
+				dao.deleteIndicatorResults(null, null);
+			} else {
+				for (Date[] range : changes.getRanges()) {
+					dao.deleteIndicatorResults(range[0], range[1]);
+				}
+			}
+			evict(changes);
+			// again once committed, so an evaluation reading the snapshot before cannot keep its numbers
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					
+					@Override
+					public void afterCompletion(int status) {
+						evict(changes);
+					}
+				});
+			}
+		}
+		Context.getAdministrationService().setGlobalProperty(TestingPECGReportConfig.GP_ART_SNAPSHOT_HIGH_WATER_MARK,
+		    String.valueOf(now.getTime()));
+	}
+	
+	/**
+	 * Evicts the precomputed reports the changed snapshot rows may concern and increments the
+	 * {@link PECGDataVersion}
+	 */
+	private static void evict(ArtSnapshotChanges changes) {
+		PECGDataVersion.increment();
+		CohortResultCache.clear();
+		if (changes.isOverflowed()) {
+			PrecomputedReports.clear();
+			return;
+		}
+		for (int patientId : changes.getPatientIds().toArray()) {
+			PrecomputedReports.evictPatient(patientId);
+		}
+		for (Date[] range : changes.getRanges()) {
+			PrecomputedReports.evictPeriod(range[0], range[1]);
+		}
+	}
+	
+	@Override
+	public void refreshArtSnapshotOf(Person person) throws APIException {
+		dao.refreshArtSnapshotOfPatient(person.getPersonId());
+	}
+	
+	@Override
+	public boolean isClosedPeriod(Date endDate) throws APIException {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    TestingPECGReportConfig.GP_RESULT_STORE_CLOSED_AFTER_DAYS, DEFAULT_CLOSED_AFTER_DAYS);
+		int closedAfterDays = StringUtils.isBlank(value) ? -1 : Integer.parseInt(value.trim());
+		if (closedAfterDays < 0 || endDate == null) {
+			return false;
+		}
+		Calendar closedBefore = Calendar.getInstance();
+		closedBefore.add(Calendar.DATE, -closedAfterDays);
+		return endDate.before(closedBefore.getTime());
+	}
+	
+	@Override
+	public Map<String, Integer> getIndicatorResults(String definitionVersion, Date startDate, Date endDate)
+	        throws APIException {
+		Map<String, Integer> ret = new LinkedHashMap<String, Integer>();
+		for (IndicatorResult result : dao.getIndicatorResults(definitionVersion, startDate, endDate)) {
+			ret.put(result.getColumnKey(), result.getValue());
+		}
+		return ret;
+	}
+	
+	@Override
+	public void saveIndicatorResults(String definitionVersion, Date startDate, Date endDate, Map<String, Integer> values)
+	        throws APIException {
+		Map<String, IndicatorResult> existing = new HashMap<String, IndicatorResult>();
+		for (IndicatorResult result : dao.getIndicatorResults(definitionVersion, startDate, endDate)) {
+			existing.put(result.getColumnKey(), result);
+		}
+		for (Map.Entry<String, Integer> entry : values.entrySet()) {
+			IndicatorResult result = existing.get(entry.getKey());
+			if (result == null) {
+				result = new IndicatorResult(definitionVersion, entry.getKey(), startDate, endDate, entry.getValue());
+			} else {
+				result.setValue(entry.getValue());
+			}
+			dao.saveIndicatorResult(result);
+		}
+	}
+	
+	@Override
+	public int invalidateIndicatorResults(Date onOrAfter, Date onOrBefore) throws APIException {
+		return dao.deleteIndicatorResults(onOrAfter, onOrBefore);
+	}
+	
+	@Override
+	public int invalidateIndicatorResultsOf(Person person) throws APIException {
+		return dao.deleteIndicatorResultsOfPatient(person.getPersonId());
+	}
+	
+	@Override
+	public PurgedPage purgeReportDesigns(Integer afterId, int maxResults) throws APIException {
+		ReportService rs = getReportService();
+		Integer lastId = null;
+		int purged = 0;
+		for (Integer id : dao.getReportDesignIds(afterId, maxResults)) {
+			lastId = id;
+			try {
+				rs.purgeReportDesign(rs.getReportDesign(id));
+				purged++;
+			}
+			catch (Exception e) {
+				log.warn("Unable to purge report design " + id, e);
+			}
+		}
+		return new PurgedPage(lastId, purged);
+	}
+	
+	@Override
+	public PurgedPage purgeReportDefinitions(Integer afterId, int maxResults) throws APIException {
+		ReportDefinitionService rds = getReportDefinitionService();
+		Integer lastId = null;
+		int purged = 0;
+		for (Map.Entry<Integer, String> entry : dao.getReportDefinitionUuids(afterId, maxResults).entrySet()) {
+			lastId = entry.getKey();
+			try {
+				ReportDefinition definition = rds.getDefinitionByUuid(entry.getValue());
+				if (definition == null) {
+					log.warn("Unable to load report definition " + entry.getValue());
+					continue;
+				}
+				rds.purgeDefinition(definition);
+				purged++;
+			}
+			catch (Exception e) {
+				log.warn("Unable to purge report definition " + entry.getValue(), e);
+			}
+		}
+		return new PurgedPage(lastId, purged);
+	}
+	
+	@Override
+	public PurgedPage purgeFinishedReportRequests(Integer afterId, int maxResults) throws APIException {
+		ReportService rs = getReportService();
+		Integer lastId = null;
+		int purged = 0;
+		for (Integer id : dao.getFinishedReportRequestIds(afterId, maxResults)) {
+			lastId = id;
+			ReportRequest request = null;
+			try {
+				request = rs.getReportRequest(id);
+				rs.purgeReportRequest(request);
+				purged++;
+			}
+			catch (Exception e) {
+				log.warn("Unable to delete old report request: " + (request == null ? id : request), e);
+			}
+		}
+		return new PurgedPage(lastId, purged);
+	}
+	
+	protected ReportService getReportService() {
+		return Context.getService(ReportService.class);
+	}
+	
+	protected ReportDefinitionService getReportDefinitionService() {
+		return Context.getService(ReportDefinitionService.class);
+	}
+	
+	private Date getArtSnapshotHighWaterMark() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    TestingPECGReportConfig.GP_ART_SNAPSHOT_HIGH_WATER_MARK);
+		return StringUtils.isBlank(value) ? null : new Date(Long.parseLong(value.trim()));
+	}
 }
@@ -0,0 +1,142 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+
+/**
+ * The PECG columns somebody asks for: those referenced by the #key# placeholders of the templates of
+ * the PECG designs, recorded when the report is registered and whenever one of its designs is saved
+ * or purged, and those requested by API consumers. The PECG data set only evaluates these, so a
+ * trimmed template costs less to run. Until the designs are known, or once a consumer asks for every
+ * column, all columns are evaluated.
+ */
+public class ColumnDemand {
+	
+	/**
+	 * A key may be qualified by the data set name, which may contain spaces
+	 */
+	private static final Pattern PLACEHOLDER = Pattern.compile("#([^#]+)#");
+	
+	private static Set<String> designColumns;
+	
+	private static final Set<String> requestedColumns = new HashSet<String>();
+	
+	private static boolean allRequested;
+	
+	private static long version;
+	
+	/**
+	 * Reads the placeholders of an Excel template, the key of #PECG Data Set.2All# being 2All.
+	 * 
+	 * @param template the contents of an xls or xlsx template
+	 * @return the keys of its placeholders
+	 * @throws Exception if the template cannot be read
+	 */
+	public static Set<String> parseTemplate(byte[] template) throws Exception {
+		Set<String> ret = new TreeSet<String>();
+		Workbook workbook = WorkbookFactory.create(new ByteArrayInputStream(template));
+		for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+			Sheet sheet = workbook.getSheetAt(i);
+			for (Row row : sheet) {
+				for (Cell cell : row) {
+					if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
+						Matcher matcher = PLACEHOLDER.matcher(cell.getStringCellValue());
+						while (matcher.find()) {
+							String key = matcher.group(1);
+							ret.add(key.substring(key.lastIndexOf('.') + 1).trim());
+						}
+					}
+				}
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Records the columns referenced by the registered designs
+	 * 
+	 * @param columns the union of their placeholders, null if one of them could not be read
+	 */
+	public static synchronized void setDesignColumns(Collection<String> columns) {
+		Set<String> value = columns == null ? null : new HashSet<String>(columns);
+		if (value == null ? designColumns != null : !value.equals(designColumns)) {
+			designColumns = value;
+			changed();
+		}
+	}
+	
+	/**
+	 * Records columns asked for by an API consumer
+	 * 
+	 * @param columns the columns, null for all of them
+	 */
+	public static synchronized void request(Collection<String> columns) {
+		if (columns == null) {
+			if (!allRequested) {
+				allRequested = true;
+				changed();
+			}
+		} else if (requestedColumns.addAll(columns)) {
+			changed();
+		}
+	}
+	
+	/**
+	 * @return the columns to evaluate, or null for all of them
+	 */
+	public static synchronized Set<String> getColumns() {
+		if (designColumns == null || allRequested) {
+			return null;
+		}
+		Set<String> ret = new HashSet<String>(designColumns);
+		ret.addAll(requestedColumns);
+		return Collections.unmodifiableSet(ret);
+	}
+	
+	/**
+	 * @return a number which changes whenever {@link #getColumns()} does
+	 */
+	public static synchronized long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Forgets the designs and the requests, all columns are evaluated until the designs are recorded
+	 * again
+	 */
+	public static synchronized void reset() {
+		designColumns = null;
+		requestedColumns.clear();
+		allRequested = false;
+		changed();
+	}
+	
+	private static void changed() {
+		version++;
+		// data evaluated for fewer columns must not be served to those asking for more
+		PrecomputedReports.clear();
+		// nor served as not modified to clients polling for them
+		PECGDataVersion.increment();
+	}
+}
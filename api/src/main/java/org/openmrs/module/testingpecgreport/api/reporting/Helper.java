@@ -11,9 +11,15 @@ package org.openmrs.module.testingpecgreport.api.reporting;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.poi.util.IOUtils;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.definition.service.SerializedDefinitionService;
@@ -22,7 +28,9 @@ import org.openmrs.module.reporting.report.ReportDesignResource;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
 import org.openmrs.module.reporting.report.renderer.ExcelTemplateRenderer;
+import org.openmrs.module.reporting.report.renderer.ReportRenderer;
 import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.library.DefinitionRegistry;
 import org.openmrs.util.OpenmrsClassLoader;
 
 /**
@@ -30,6 +38,14 @@ import org.openmrs.util.OpenmrsClassLoader;
  */
 public class Helper {
 	
+	/**
+	 * Design property holding the fingerprint of a design registered by
+	 * {@link #registerReportDesign(ReportDefinition, String, String, Properties, Class)}
+	 */
+	public static final String FINGERPRINT_PROPERTY = "testingpecgreport.fingerprint";
+	
+	private static final ConcurrentMap<String, byte[]> templates = new ConcurrentHashMap<String, byte[]>();
+	
 	/**
 	 * Deletes a Report Definition from the database.
 	 * 
@@ -100,6 +116,22 @@ public class Helper {
 	 * @throws IOException
 	 */
 	public static ReportDesign createRowPerPatientXlsOverviewReportDesign(ReportDefinition rd, String resourceName, String name, Map<? extends Object, ? extends Object> properties) throws IOException {
+		return createReportDesign(rd, resourceName, name, properties, ExcelTemplateRenderer.class);
+	}
+	
+	/**
+	 * Creates a report design rendering an Excel template from the classpath with the given renderer,
+	 * after purging any existing design with the same name
+	 * 
+	 * @param rd the reportDesign to set
+	 * @param resourceName the template
+	 * @param name the name of the design
+	 * @param properties the design properties, such as repeatingSections
+	 * @param rendererType the renderer, ExcelTemplateRenderer or StreamingXlsxTemplateRenderer
+	 * @return the unsaved design
+	 * @throws IOException
+	 */
+	public static ReportDesign createReportDesign(ReportDefinition rd, String resourceName, String name, Map<? extends Object, ? extends Object> properties, Class<? extends ReportRenderer> rendererType) throws IOException {
 		
 		ReportService rs = Context.getService(ReportService.class);
 		for (ReportDesign rdd : rs.getAllReportDesigns(false)) {
@@ -107,16 +139,18 @@ public class Helper {
 				rs.purgeReportDesign(rdd);
 			}
 		}
-		
+		return newReportDesign(rd, resourceName, name, properties, rendererType);
+	}
+	
+	private static ReportDesign newReportDesign(ReportDefinition rd, String resourceName, String name, Map<? extends Object, ? extends Object> properties, Class<? extends ReportRenderer> rendererType) throws IOException {
 		ReportDesignResource resource = new ReportDesignResource();
 		resource.setName(resourceName);
 		resource.setExtension("xls");
-		InputStream is = OpenmrsClassLoader.getInstance().getResourceAsStream(resourceName);
-		resource.setContents(IOUtils.toByteArray(is));
+		resource.setContents(getTemplate(resourceName));
 		final ReportDesign design = new ReportDesign();
 		design.setName(name);
 		design.setReportDefinition(rd);
-		design.setRendererType(ExcelTemplateRenderer.class);
+		design.setRendererType(rendererType);
 		design.addResource(resource);
 		if (properties != null) {
 			design.getProperties().putAll(properties);
@@ -126,6 +160,83 @@ public class Helper {
 		return design;
 	}
 	
+	/**
+	 * Registers a report design unless an identical one is already registered. The existing designs of
+	 * the report definition are looked up through the definition rather than by scanning all designs,
+	 * and compared by a fingerprint of the template contents, name, renderer, properties and
+	 * definition stored in the {@link #FINGERPRINT_PROPERTY} property. A changed design is purged and
+	 * saved again.
+	 * 
+	 * @param rd a saved report definition
+	 * @param resourceName the template
+	 * @param name the name of the design
+	 * @param properties the design properties, such as repeatingSections
+	 * @param rendererType the renderer
+	 * @return the registered design
+	 * @throws IOException
+	 */
+	public static ReportDesign registerReportDesign(ReportDefinition rd, String resourceName, String name, Properties properties, Class<? extends ReportRenderer> rendererType) throws IOException {
+		String fingerprint = getFingerprint(rd, resourceName, name, properties, rendererType);
+		ReportService rs = Context.getService(ReportService.class);
+		List<ReportDesign> existing = new ArrayList<ReportDesign>();
+		for (ReportDesign design : rs.getReportDesigns(rd, null, false)) {
+			if (name.equals(design.getName())) {
+				existing.add(design);
+			}
+		}
+		if (existing.size() == 1 && fingerprint.equals(existing.get(0).getPropertyValue(FINGERPRINT_PROPERTY, null))) {
+			return existing.get(0);
+		}
+		
+		for (ReportDesign design : existing) {
+			rs.purgeReportDesign(design);
+		}
+		ReportDesign design = newReportDesign(rd, resourceName, name, null, rendererType);
+		Properties designProperties = new Properties();
+		if (properties != null) {
+			designProperties.putAll(properties);
+		}
+		designProperties.put(FINGERPRINT_PROPERTY, fingerprint);
+		design.setProperties(designProperties);
+		saveReportDesign(design);
+		return design;
+	}
+	
+	/**
+	 * Returns the contents of a template on the classpath, read once per resource.
+	 * 
+	 * @param resourceName the template
+	 * @return the contents, which must not be modified
+	 * @throws IOException
+	 */
+	public static byte[] getTemplate(String resourceName) throws IOException {
+		byte[] ret = templates.get(resourceName);
+		if (ret == null) {
+			InputStream is = OpenmrsClassLoader.getInstance().getResourceAsStream(resourceName);
+			if (is == null) {
+				throw new IOException("Couldn't find template " + resourceName);
+			}
+			try {
+				ret = IOUtils.toByteArray(is);
+			}
+			finally {
+				is.close();
+			}
+			templates.put(resourceName, ret);
+		}
+		return ret;
+	}
+	
+	private static String getFingerprint(ReportDefinition rd, String resourceName, String name, Properties properties, Class<? extends ReportRenderer> rendererType) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(DigestUtils.shaHex(getTemplate(resourceName)));
+		sb.append(";name=").append(name);
+		sb.append(";renderer=").append(rendererType.getName());
+		sb.append(";properties=").append(properties == null ? "{}" : new TreeMap<Object, Object>(properties).toString());
+		sb.append(";definition=").append(rd.getUuid()).append(":").append(DefinitionRegistry.getKey(rd));
+		return DigestUtils.shaHex(sb.toString());
+	}
+	
 	/**
 	 * Save or update the given ReportDesign in the database. If this is a new ReportDesign, the
 	 * returned ReportDesign will have a new {@link ReportDesign#getId()} inserted into it that was
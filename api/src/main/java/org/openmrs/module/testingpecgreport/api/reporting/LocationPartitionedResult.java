@@ -0,0 +1,52 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The cells of the PECG Data Set per visit location and for all locations together. The total is
+ * counted on the union of the patients of every location, so a patient seen at several facilities
+ * counts once in it while counting at each facility.
+ */
+public class LocationPartitionedResult {
+	
+	private final Map<Integer, Map<String, Integer>> locations = new LinkedHashMap<Integer, Map<String, Integer>>();
+	
+	private Map<String, Integer> total = new LinkedHashMap<String, Integer>();
+	
+	/**
+	 * @param locationId the visit location, null for visits without a location
+	 * @param values the cells of the location, keyed by column name
+	 */
+	public void addLocation(Integer locationId, Map<String, Integer> values) {
+		locations.put(locationId, values);
+	}
+	
+	/**
+	 * @return the cells of each visit location, keyed by location id
+	 */
+	public Map<Integer, Map<String, Integer>> getLocations() {
+		return Collections.unmodifiableMap(locations);
+	}
+	
+	/**
+	 * @return the cells of all locations together, keyed by column name
+	 */
+	public Map<String, Integer> getTotal() {
+		return total;
+	}
+	
+	public void setTotal(Map<String, Integer> total) {
+		this.total = total;
+	}
+}
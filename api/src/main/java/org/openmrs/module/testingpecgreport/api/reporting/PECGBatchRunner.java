@@ -0,0 +1,249 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.openmrs.api.APIException;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao.DemographicsHandler;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.DemographicsTable;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.EnrollmentVisitHistory;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.PatientsEnrolledWithVisitCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.evaluator.AgeSexDisaggregationDataSetEvaluator;
+import org.openmrs.module.testingpecgreport.api.reporting.evaluator.AgeSexDisaggregator;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJob;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evaluates the PECG Report for many periods at once. Instead of one full evaluation per period, the
+ * enrollments and visits of the whole range and the demographics of every patient counted in any
+ * period are read once, then the periods are computed in memory in parallel. Closed periods already
+ * in the result store are not computed again, newly computed ones are stored unless the
+ * {@link PECGDataVersion} changed meanwhile.
+ */
+@Component("testingpecgreport.PECGBatchRunner")
+public class PECGBatchRunner {
+	
+	@Autowired
+	TestingPECGReportService service;
+	
+	@Autowired
+	TestingPECGReportDao dao;
+	
+	/**
+	 * Evaluates the PECG data set of the registered PECG Report for every period.
+	 * 
+	 * @param periods the periods
+	 * @return the values by column name of every period, in the order of the periods
+	 */
+	public Map<ReportingPeriod, Map<String, Integer>> evaluate(List<ReportingPeriod> periods) throws Exception {
+		ReportRegistration.ensureRegistered();
+		AgeSexDisaggregationDataSetDefinition dsd = PECGReportRunner.getDataSetDefinition();
+		String version = AgeSexDisaggregationDataSetEvaluator.getDefinitionVersion(dsd);
+		List<String> columnNames = new ArrayList<String>();
+		for (DisaggregationColumn column : dsd.getColumns()) {
+			columnNames.add(column.getName());
+		}
+		
+		Map<ReportingPeriod, Map<String, Integer>> ret = new LinkedHashMap<ReportingPeriod, Map<String, Integer>>();
+		List<ReportingPeriod> missing = new ArrayList<ReportingPeriod>();
+		for (ReportingPeriod period : periods) {
+			ret.put(period, null);
+			if (service.isClosedPeriod(period.getEndDate())) {
+				Map<String, Integer> stored = service.getIndicatorResults(version, period.getStartDate(),
+				    period.getEndDate());
+				if (stored.keySet().containsAll(columnNames)) {
+					ret.put(period, stored);
+					continue;
+				}
+			}
+			missing.add(period);
+		}
+		ReportJob.addSteps(missing.size() + 1);
+		if (missing.isEmpty()) {
+			ReportJob.step("Read all periods from the result store");
+			return ret;
+		}
+		
+		String dataVersion = PECGDataVersion.get();
+		Map<ReportingPeriod, Map<String, Integer>> computed = compute(dsd, missing);
+		// values read while a write was being made could outlive its invalidation
+		boolean storable = dataVersion.equals(PECGDataVersion.get());
+		for (Map.Entry<ReportingPeriod, Map<String, Integer>> entry : computed.entrySet()) {
+			ReportingPeriod period = entry.getKey();
+			ret.put(period, entry.getValue());
+			if (storable && service.isClosedPeriod(period.getEndDate())) {
+				service.saveIndicatorResults(version, period.getStartDate(), period.getEndDate(), entry.getValue());
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Renders every period with the PECG.xls design.
+	 * 
+	 * @param values the values returned by {@link #evaluate(List)}
+	 * @return a zip holding one workbook per period
+	 */
+	public byte[] renderPerPeriod(Map<ReportingPeriod, Map<String, Integer>> values) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(out);
+		for (Map.Entry<ReportingPeriod, Map<String, Integer>> entry : values.entrySet()) {
+			ReportingPeriod period = entry.getKey();
+			ReportData data = PECGReportRunner.toReportData(period, entry.getValue());
+			
+			zip.putNextEntry(new ZipEntry("PECG_" + period + ".xls"));
+			zip.write(PECGReportRunner.render(data));
+			zip.closeEntry();
+		}
+		zip.close();
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Renders all periods into one sheet, one row per period and one column per PECG column.
+	 * 
+	 * @param values the values returned by {@link #evaluate(List)}
+	 * @return the workbook
+	 */
+	public byte[] renderCombined(Map<ReportingPeriod, Map<String, Integer>> values) throws Exception {
+		AgeSexDisaggregationDataSetDefinition dsd = PECGReportRunner.getDataSetDefinition();
+		HSSFWorkbook workbook = new HSSFWorkbook();
+		Sheet sheet = workbook.createSheet("PECG");
+		Row header = sheet.createRow(0);
+		header.createCell(0).setCellValue("Start date");
+		header.createCell(1).setCellValue("End date");
+		for (int i = 0; i < dsd.getColumns().size(); i++) {
+			header.createCell(i + 2).setCellValue(dsd.getColumns().get(i).getLabel());
+		}
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		int rowIndex = 1;
+		for (Map.Entry<ReportingPeriod, Map<String, Integer>> entry : values.entrySet()) {
+			ReportingPeriod period = entry.getKey();
+			Row row = sheet.createRow(rowIndex++);
+			row.createCell(0).setCellValue(format.format(period.getStartDate()));
+			row.createCell(1).setCellValue(format.format(period.getEndDate()));
+			for (int i = 0; i < dsd.getColumns().size(); i++) {
+				Integer value = entry.getValue().get(dsd.getColumns().get(i).getName());
+				if (value != null) {
+					row.createCell(i + 2).setCellValue(value);
+				}
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		workbook.write(out);
+		return out.toByteArray();
+	}
+	
+	private Map<ReportingPeriod, Map<String, Integer>> compute(final AgeSexDisaggregationDataSetDefinition dsd,
+	        List<ReportingPeriod> periods) throws Exception {
+		CohortDefinition cd = dsd.getCohortDefinition() == null ? null : dsd.getCohortDefinition().getParameterizable();
+		if (!(cd instanceof PatientsEnrolledWithVisitCohortDefinition)) {
+			throw new APIException("Batch evaluation needs the PECG cohort to be a "
+			        + PatientsEnrolledWithVisitCohortDefinition.class.getSimpleName());
+		}
+		PatientsEnrolledWithVisitCohortDefinition cohortDefinition = (PatientsEnrolledWithVisitCohortDefinition) cd;
+		
+		Date onOrAfter = periods.get(0).getStartDate();
+		Date onOrBefore = periods.get(0).getEndDate();
+		for (ReportingPeriod period : periods) {
+			onOrAfter = period.getStartDate().before(onOrAfter) ? period.getStartDate() : onOrAfter;
+			onOrBefore = period.getEndDate().after(onOrBefore) ? period.getEndDate() : onOrBefore;
+		}
+		final EnrollmentVisitHistory history = service.getEnrollmentVisitHistory(cohortDefinition.getProgram(),
+		    cohortDefinition.getVisitType(), onOrAfter, onOrBefore);
+		
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(periods.size(), Runtime.getRuntime()
+		        .availableProcessors())));
+		try {
+			List<Callable<PatientIdBitmap>> cohortTasks = new ArrayList<Callable<PatientIdBitmap>>();
+			for (final ReportingPeriod period : periods) {
+				cohortTasks.add(new Callable<PatientIdBitmap>() {
+					
+					public PatientIdBitmap call() {
+						return history.getPatientsEnrolledWithVisit(period.getStartDate(), period.getEndDate());
+					}
+				});
+			}
+			List<Future<PatientIdBitmap>> cohorts = pool.invokeAll(cohortTasks);
+			PatientIdBitmap union = new PatientIdBitmap();
+			for (Future<PatientIdBitmap> cohort : cohorts) {
+				union = union.or(cohort.get());
+			}
+			
+			final DemographicsTable demographics = new DemographicsTable();
+			dao.scanDemographics(union.toCohort(), new DemographicsHandler() {
+				
+				public void handle(int patientId, Date birthdate, String gender) {
+					demographics.add(patientId, birthdate, gender);
+				}
+			});
+			demographics.seal();
+			ReportJob.step("Loaded " + history.getEnrollmentCount() + " enrollments, " + history.getVisitCount()
+			        + " visits and " + demographics.size() + " patients");
+			
+			List<Callable<Map<String, Integer>>> periodTasks = new ArrayList<Callable<Map<String, Integer>>>();
+			for (int i = 0; i < periods.size(); i++) {
+				final ReportingPeriod period = periods.get(i);
+				final PatientIdBitmap cohort = cohorts.get(i).get();
+				periodTasks.add(new Callable<Map<String, Integer>>() {
+					
+					public Map<String, Integer> call() {
+						AgeSexDisaggregator disaggregator = new AgeSexDisaggregator(dsd.getColumns(), period.getEndDate());
+						for (int patientId : cohort.toArray()) {
+							int index = demographics.indexOf(patientId);
+							if (index >= 0) {
+								disaggregator.add(patientId, demographics.getBirthdate(index), demographics
+								        .getGender(index));
+							}
+						}
+						Map<String, Integer> ret = new LinkedHashMap<String, Integer>();
+						for (DisaggregationColumn column : dsd.getColumns()) {
+							ret.put(column.getName(), disaggregator.getCells().get(column.getName()).getCardinality());
+						}
+						return ret;
+					}
+				});
+			}
+			List<Future<Map<String, Integer>>> results = pool.invokeAll(periodTasks);
+			Map<ReportingPeriod, Map<String, Integer>> ret = new LinkedHashMap<ReportingPeriod, Map<String, Integer>>();
+			for (int i = 0; i < periods.size(); i++) {
+				ret.put(periods.get(i), results.get(i).get());
+				ReportJob.step("Evaluated " + periods.get(i));
+			}
+			return ret;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.Date;
+
+/**
+ * A counter of the writes that may change PECG numbers, incremented by
+ * {@link org.openmrs.module.testingpecgreport.advice.CohortChangeAdvice}, and of the changes to the
+ * PECG definition or to the columns evaluated, incremented by {@link SetupPECGReport} and
+ * {@link ColumnDemand}. Clients can tell that the numbers they hold are still current by comparing
+ * versions, without evaluating anything. The version starts over when the module starts, the start
+ * time must therefore be compared as well.
+ */
+public class PECGDataVersion {
+	
+	private static final long started = System.currentTimeMillis();
+	
+	private static long version;
+	
+	private static long lastModified = started;
+	
+	/**
+	 * Records a write
+	 */
+	public static synchronized void increment() {
+		version++;
+		lastModified = System.currentTimeMillis();
+	}
+	
+	/**
+	 * @return the version, as the module start time and the number of writes since, such as
+	 *         1466153400000-42
+	 */
+	public static synchronized String get() {
+		return started + "-" + version;
+	}
+	
+	/**
+	 * @return the time of the last write, or of the module start if there was none
+	 */
+	public static synchronized Date getLastModified() {
+		return new Date(lastModified);
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openmrs.Cohort;
+import org.openmrs.api.APIException;
+import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao.LineListHandler;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.module.testingpecgreport.api.reporting.evaluator.AgeSexDisaggregator;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJob;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Lists the patients behind the PECG aggregates, one row per patient and column they are counted in,
+ * so the patients of a cell such as 2F4 can be found by filtering on the column key. Patients are
+ * read from a forward only cursor and each row is written to the output as soon as it is read, so
+ * the memory used does not depend on the number of rows. It is called through
+ * TestingPECGReportService#writeLineList, which checks the user may view patients and their
+ * identifiers.
+ */
+@Component("testingpecgreport.PECGLineList")
+public class PECGLineList {
+	
+	static final String[] HEADERS = { "Patient Id", "Identifier", "Age", "Sex", "Age Band", "Column" };
+	
+	/**
+	 * Rows kept in memory by the XLSX writer, older rows are flushed to a temporary file
+	 */
+	private static final int WINDOW_SIZE = 100;
+	
+	public enum Format {
+		CSV("text/csv", ".csv"), XLSX("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", ".xlsx");
+		
+		private final String contentType;
+		
+		private final String extension;
+		
+		private Format(String contentType, String extension) {
+			this.contentType = contentType;
+			this.extension = extension;
+		}
+		
+		public String getContentType() {
+			return contentType;
+		}
+		
+		public String getExtension() {
+			return extension;
+		}
+	}
+	
+	@Autowired
+	TestingPECGReportDao dao;
+	
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+	
+	/**
+	 * Writes the line list of the PECG data set of the registered PECG Report for a period.
+	 * 
+	 * @param startDate the reporting start date
+	 * @param endDate the end date, at which ages are computed
+	 * @param format the output format
+	 * @param out receives the line list, it is not closed
+	 * @return the number of rows written
+	 */
+	public int write(Date startDate, Date endDate, Format format, OutputStream out) throws Exception {
+		ReportRegistration.ensureRegistered();
+		AgeSexDisaggregationDataSetDefinition dsd = PECGReportRunner.getDataSetDefinition();
+		ReportJob.addSteps(2);
+		
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("reportingStartDate", startDate);
+		context.addParameterValue("endDate", endDate);
+		Cohort cohort = cohortDefinitionService.evaluate(dsd.getCohortDefinition(), context);
+		ReportJob.step("Evaluated the cohort of " + dsd.getName() + ", " + cohort.size() + " patients");
+		
+		RowWriter writer = format == Format.XLSX ? new XlsxRowWriter(out) : new CsvRowWriter(out);
+		try {
+			writer.writeRow((Object[]) HEADERS);
+			int rows = write(dsd, cohort, endDate, writer);
+			writer.finish();
+			ReportJob.step("Wrote " + rows + " rows");
+			return rows;
+		}
+		finally {
+			writer.dispose();
+		}
+	}
+	
+	int write(AgeSexDisaggregationDataSetDefinition dsd, Cohort cohort, final Date endDate, final RowWriter writer) {
+		final AgeSexDisaggregator disaggregator = new AgeSexDisaggregator(dsd.getColumns(), endDate);
+		final int[] rows = new int[1];
+		dao.scanLineList(cohort, new LineListHandler() {
+			
+			public void handle(int patientId, String identifier, Date birthdate, String gender) {
+				Integer age = getAge(birthdate, endDate);
+				try {
+					for (DisaggregationColumn column : disaggregator.getMatchingColumns(birthdate, gender)) {
+						writer.writeRow(patientId, identifier, age, gender, getAgeBand(column.getAgeRange()),
+						    column.getName());
+						rows[0]++;
+					}
+				}
+				catch (IOException e) {
+					throw new APIException("Unable to write the line list", e);
+				}
+			}
+		});
+		return rows[0];
+	}
+	
+	/**
+	 * @return the age in completed years at the given date, or null if the birthdate is unknown
+	 */
+	static Integer getAge(Date birthdate, Date date) {
+		if (birthdate == null) {
+			return null;
+		}
+		Calendar birth = Calendar.getInstance();
+		birth.setTime(birthdate);
+		Calendar at = Calendar.getInstance();
+		at.setTime(date == null ? new Date() : date);
+		int age = at.get(Calendar.YEAR) - birth.get(Calendar.YEAR);
+		if (at.get(Calendar.MONTH) < birth.get(Calendar.MONTH) || at.get(Calendar.MONTH) == birth.get(Calendar.MONTH)
+		        && at.get(Calendar.DAY_OF_MONTH) < birth.get(Calendar.DAY_OF_MONTH)) {
+			age--;
+		}
+		return age;
+	}
+	
+	/**
+	 * @return the age range as shown in the PECG columns, such as 1-4, <1 or 50+, or null
+	 */
+	static String getAgeBand(AgeCohortDefinition ageRange) {
+		if (ageRange == null || ageRange.getMinAge() == null && ageRange.getMaxAge() == null) {
+			return null;
+		}
+		if (ageRange.getMinAge() == null) {
+			return "<" + (ageRange.getMaxAge() + 1);
+		}
+		if (ageRange.getMaxAge() == null) {
+			return ageRange.getMinAge() + "+";
+		}
+		return ageRange.getMinAge() + "-" + ageRange.getMaxAge();
+	}
+	
+	interface RowWriter {
+		
+		void writeRow(Object... values) throws IOException;
+		
+		void finish() throws IOException;
+		
+		void dispose();
+	}
+	
+	/**
+	 * Writes RFC 4180 CSV in UTF-8
+	 */
+	static class CsvRowWriter implements RowWriter {
+		
+		private final Writer writer;
+		
+		CsvRowWriter(OutputStream out) {
+			this.writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+		}
+		
+		public void writeRow(Object... values) throws IOException {
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					writer.write(',');
+				}
+				if (values[i] != null) {
+					writer.write(escape(values[i].toString()));
+				}
+			}
+			writer.write("\r\n");
+		}
+		
+		public void finish() throws IOException {
+			writer.flush();
+		}
+		
+		public void dispose() {
+		}
+		
+		static String escape(String value) {
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+				return value;
+			}
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		}
+	}
+	
+	/**
+	 * Writes a single sheet workbook through SXSSF, which keeps only the last rows in memory
+	 */
+	static class XlsxRowWriter implements RowWriter {
+		
+		private final OutputStream out;
+		
+		private final SXSSFWorkbook workbook = new SXSSFWorkbook(WINDOW_SIZE);
+		
+		private final Sheet sheet;
+		
+		private int rowIndex;
+		
+		XlsxRowWriter(OutputStream out) {
+			this.out = out;
+			workbook.setCompressTempFiles(true);
+			sheet = workbook.createSheet("Line List");
+		}
+		
+		public void writeRow(Object... values) {
+			Row row = sheet.createRow(rowIndex++);
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] instanceof Number) {
+					row.createCell(i).setCellValue(((Number) values[i]).doubleValue());
+				} else if (values[i] != null) {
+					row.createCell(i).setCellValue(values[i].toString());
+				}
+			}
+		}
+		
+		public void finish() throws IOException {
+			workbook.write(out);
+			out.flush();
+		}
+		
+		public void dispose() {
+			workbook.dispose();
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.evaluator.DataSetEvaluator;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
+import org.openmrs.module.reporting.report.renderer.ReportRenderer;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.module.testingpecgreport.api.reporting.evaluator.AgeSexDisaggregationDataSetEvaluator;
+import org.openmrs.module.testingpecgreport.api.reporting.job.SingleFlight;
+import org.openmrs.util.HandlerUtil;
+
+/**
+ * Evaluates the registered PECG Report for a period and renders it with the PECG.xls design. Periods
+ * precomputed by the Precompute PECG Report task are served from {@link PrecomputedReports}, and
+ * concurrent requests for the same period share one evaluation. The PECG Data Set can also be
+ * evaluated per visit location, see {@link #evaluateByLocation(Date, Date)}.
+ */
+public class PECGReportRunner {
+	
+	public static final String REPORT_NAME = "PECG Report";
+	
+	public static final String DATA_SET_NAME = "PECG Data Set";
+	
+	public static final String DESIGN_NAME = "PECG.xls_";
+	
+	/**
+	 * Same template rendered by StreamingXlsxTemplateRenderer
+	 */
+	public static final String STREAMING_DESIGN_NAME = "PECG.xlsx_";
+	
+	public static final String FILENAME = "PECG.xls";
+	
+	public static final String CONTENT_TYPE = "application/vnd.ms-excel";
+	
+	/**
+	 * Distinct PECG evaluations which may run at once, and wait for their turn
+	 */
+	private static final int MAX_RUNNING_EVALUATIONS = 2;
+	
+	private static final int MAX_WAITING_EVALUATIONS = 10;
+	
+	private static final SingleFlight.Limit evaluationLimit = new SingleFlight.Limit(MAX_RUNNING_EVALUATIONS,
+	        MAX_WAITING_EVALUATIONS);
+	
+	private static final SingleFlight<ReportData> evaluations = new SingleFlight<ReportData>(evaluationLimit);
+	
+	/**
+	 * Evaluations by location, which share the limits of the report evaluations
+	 */
+	private static final SingleFlight<LocationPartitionedResult> locationEvaluations = new SingleFlight<LocationPartitionedResult>(
+	        evaluationLimit);
+	
+	/**
+	 * Evaluates the PECG Report for the given period, or returns the precomputed report of the period.
+	 * Callers asking for a period which is already being evaluated wait for that evaluation and share
+	 * its data.
+	 * 
+	 * @param startDate the reporting start date
+	 * @param endDate the end date
+	 * @return the report data
+	 * @throws org.openmrs.api.APIException if too many distinct evaluations are running or waiting
+	 */
+	public static ReportData evaluate(Date startDate, Date endDate) throws Exception {
+		if (startDate != null && endDate != null && !endDate.before(startDate)) {
+			ReportData precomputed = PrecomputedReports.getData(new ReportingPeriod(startDate, endDate));
+			if (precomputed != null) {
+				return precomputed;
+			}
+		}
+		ReportRegistration.ensureRegistered();
+		final ReportDefinition rd = Helper.findReportDefinition(REPORT_NAME);
+		final EvaluationContext context = newContext(startDate, endDate);
+		return evaluations.run(getEvaluationKey(rd, context), new Callable<ReportData>() {
+			
+			public ReportData call() throws Exception {
+				return Context.getService(ReportDefinitionService.class).evaluate(rd, context);
+			}
+		});
+	}
+	
+	/**
+	 * Evaluates the PECG Data Set for the given period once per visit location, in parallel, and in
+	 * total for all locations, counting a patient seen at several locations once in the total.
+	 * Concurrent requests for the same period share one evaluation.
+	 * 
+	 * @param startDate the reporting start date
+	 * @param endDate the end date
+	 * @return the cells per location and in total
+	 * @throws org.openmrs.api.APIException if too many distinct evaluations are running or waiting
+	 */
+	public static LocationPartitionedResult evaluateByLocation(Date startDate, Date endDate) throws Exception {
+		ReportRegistration.ensureRegistered();
+		ReportDefinition rd = Helper.findReportDefinition(REPORT_NAME);
+		final Mapped<? extends DataSetDefinition> dataSet = rd.getDataSetDefinitions().get(DATA_SET_NAME);
+		final EvaluationContext context = newContext(startDate, endDate);
+		return locationEvaluations.run(getEvaluationKey(rd, context), new Callable<LocationPartitionedResult>() {
+			
+			public LocationPartitionedResult call() throws Exception {
+				AgeSexDisaggregationDataSetEvaluator evaluator = (AgeSexDisaggregationDataSetEvaluator) HandlerUtil
+				        .getPreferredHandler(DataSetEvaluator.class, AgeSexDisaggregationDataSetDefinition.class);
+				return evaluator.evaluateByLocation((AgeSexDisaggregationDataSetDefinition) dataSet.getParameterizable(),
+				    EvaluationContext.cloneForChild(context, dataSet));
+			}
+		});
+	}
+	
+	/**
+	 * @return the number of distinct PECG evaluations running or waiting for their turn
+	 */
+	public static int getEvaluationsInFlight() {
+		return evaluations.getInFlightCount() + locationEvaluations.getInFlightCount();
+	}
+	
+	/**
+	 * @return how many requests were given the data of an evaluation already running since startup
+	 */
+	public static int getCoalescedEvaluationCount() {
+		return evaluations.getCoalescedCount() + locationEvaluations.getCoalescedCount();
+	}
+	
+	/**
+	 * @return the report definition uuid, the parameter values, dates as milliseconds, and the version
+	 *         of the {@link ColumnDemand}
+	 */
+	static String getEvaluationKey(ReportDefinition rd, EvaluationContext context) {
+		Map<String, Object> values = new TreeMap<String, Object>();
+		for (Map.Entry<String, Object> entry : context.getParameterValues().entrySet()) {
+			Object value = entry.getValue();
+			values.put(entry.getKey(), value instanceof Date ? ((Date) value).getTime() : value);
+		}
+		return rd.getUuid() + values + ColumnDemand.getVersion();
+	}
+	
+	/**
+	 * Evaluates the PECG Report for the given period, renders it with the PECG.xls design and keeps
+	 * both in {@link PrecomputedReports}. The values are also kept in the result store, whether the
+	 * period is closed or not, for {@link #restore(ReportingPeriod, long)} after a restart.
+	 * 
+	 * @param period the period
+	 * @param generation the generation of {@link PrecomputedReports} read before the data was last
+	 *            brought up to date
+	 * @return whether the report was kept, false if the data changed during the evaluation
+	 */
+	public static boolean precompute(ReportingPeriod period, long generation) throws Exception {
+		String dataVersion = PECGDataVersion.get();
+		EvaluationContext context = newContext(period.getStartDate(), period.getEndDate());
+		ReportData data = evaluate(context);
+		byte[] rendered = render(data, DESIGN_NAME);
+		// answered from the evaluation context cache filled by the report
+		Mapped<CohortDefinition> cohort = getDataSetDefinition().getCohortDefinition();
+		PatientIdBitmap members = cohort == null ? null : PatientIdBitmap.of(Context.getService(
+		    CohortDefinitionService.class).evaluate(cohort, context));
+		if (!PrecomputedReports.put(period, data, rendered, members, generation)) {
+			return false;
+		}
+		// values read while a write was being made could outlive its invalidation
+		if (dataVersion.equals(PECGDataVersion.get())) {
+			AgeSexDisaggregationDataSetDefinition dsd = getDataSetDefinition();
+			MapDataSet dataSet = (MapDataSet) data.getDataSets().get(DATA_SET_NAME);
+			Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+			for (DisaggregationColumn column : dsd.getColumns()) {
+				Integer value = (Integer) dataSet.getData().getColumnValue(column.getName());
+				if (value != null) {
+					values.put(column.getName(), value);
+				}
+			}
+			Context.getService(TestingPECGReportService.class).saveIndicatorResults(
+			    AgeSexDisaggregationDataSetEvaluator.getDefinitionVersion(dsd), period.getStartDate(),
+			    period.getEndDate(), values);
+		}
+		return true;
+	}
+	
+	/**
+	 * Puts back in {@link PrecomputedReports} the report of a period precomputed before a restart,
+	 * rendering the values kept in the result store with the PECG.xls design, without evaluating
+	 * anything. The writes which happened since have removed the values they may change.
+	 * 
+	 * @param period the period
+	 * @param generation the generation of {@link PrecomputedReports} read before the values
+	 * @return whether the report was restored, false if the store misses some of its values
+	 */
+	public static boolean restore(ReportingPeriod period, long generation) throws Exception {
+		ReportRegistration.ensureRegistered();
+		AgeSexDisaggregationDataSetDefinition dsd = getDataSetDefinition();
+		Map<String, Integer> values = Context.getService(TestingPECGReportService.class).getIndicatorResults(
+		    AgeSexDisaggregationDataSetEvaluator.getDefinitionVersion(dsd), period.getStartDate(), period.getEndDate());
+		for (DisaggregationColumn column : AgeSexDisaggregationDataSetEvaluator.getEvaluatedColumns(dsd)) {
+			if (!values.containsKey(column.getName())) {
+				return false;
+			}
+		}
+		ReportData data = toReportData(period, values);
+		return PrecomputedReports.put(period, data, render(data, DESIGN_NAME), null, generation);
+	}
+	
+	/**
+	 * Builds the report data of the PECG Report from values computed or stored before, to be rendered
+	 * 
+	 * @param period the period
+	 * @param values the values by column name
+	 * @return the report data
+	 */
+	public static ReportData toReportData(ReportingPeriod period, Map<String, Integer> values) {
+		ReportDefinition rd = Helper.findReportDefinition(REPORT_NAME);
+		AgeSexDisaggregationDataSetDefinition dsd = getDataSetDefinition();
+		EvaluationContext context = newContext(period.getStartDate(), period.getEndDate());
+		MapDataSet dataSet = new MapDataSet(dsd, context);
+		for (DisaggregationColumn column : dsd.getColumns()) {
+			dataSet.addData(new DataSetColumn(column.getName(), column.getLabel(), Integer.class), values.get(column
+			        .getName()));
+		}
+		Map<String, DataSet> dataSets = new LinkedHashMap<String, DataSet>();
+		dataSets.put(DATA_SET_NAME, dataSet);
+		ReportData ret = new ReportData();
+		ret.setDefinition(rd);
+		ret.setContext(context);
+		ret.setDataSets(dataSets);
+		return ret;
+	}
+	
+	private static EvaluationContext newContext(Date startDate, Date endDate) {
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("reportingStartDate", startDate);
+		context.addParameterValue("endDate", endDate);
+		return context;
+	}
+	
+	private static ReportData evaluate(EvaluationContext context) throws Exception {
+		ReportRegistration.ensureRegistered();
+		ReportDefinition rd = Helper.findReportDefinition(REPORT_NAME);
+		return Context.getService(ReportDefinitionService.class).evaluate(rd, context);
+	}
+	
+	/**
+	 * @return the PECG data set of the registered PECG Report
+	 */
+	public static AgeSexDisaggregationDataSetDefinition getDataSetDefinition() {
+		ReportDefinition rd = Helper.findReportDefinition(REPORT_NAME);
+		return (AgeSexDisaggregationDataSetDefinition) rd.getDataSetDefinitions().get(DATA_SET_NAME).getParameterizable();
+	}
+	
+	/**
+	 * Renders evaluated PECG data with the PECG.xls design.
+	 * 
+	 * @param data the report data
+	 * @return the workbook
+	 */
+	public static byte[] render(ReportData data) throws Exception {
+		return render(data, DESIGN_NAME);
+	}
+	
+	/**
+	 * Renders evaluated PECG data with the given design into memory, see
+	 * {@link #render(ReportData, String, OutputStream)} for large reports.
+	 * 
+	 * @param data the report data
+	 * @param designName {@link #DESIGN_NAME} or {@link #STREAMING_DESIGN_NAME}
+	 * @return the rendered report
+	 */
+	public static byte[] render(ReportData data, String designName) throws Exception {
+		if (DESIGN_NAME.equals(designName)) {
+			byte[] precomputed = PrecomputedReports.getRendered(data);
+			if (precomputed != null) {
+				return precomputed;
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		render(data, designName, out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Renders evaluated PECG data with the given design straight to a stream, precomputed data is not
+	 * rendered again with the PECG.xls design.
+	 * 
+	 * @param data the report data
+	 * @param designName {@link #DESIGN_NAME} or {@link #STREAMING_DESIGN_NAME}
+	 * @param out receives the rendered report, it is not closed
+	 */
+	public static void render(ReportData data, String designName, OutputStream out) throws Exception {
+		if (DESIGN_NAME.equals(designName)) {
+			byte[] precomputed = PrecomputedReports.getRendered(data);
+			if (precomputed != null) {
+				out.write(precomputed);
+				return;
+			}
+		}
+		ReportDesign design = findReportDesign(data.getDefinition(), designName);
+		ReportRenderer renderer = design.getRendererType().newInstance();
+		renderer.render(data, design.getUuid(), out);
+	}
+	
+	/**
+	 * Looks the design up among those of the report definition rather than among all designs
+	 */
+	private static ReportDesign findReportDesign(ReportDefinition rd, String designName) {
+		if (rd == null) {
+			rd = Helper.findReportDefinition(REPORT_NAME);
+		}
+		for (ReportDesign design : Context.getService(ReportService.class).getReportDesigns(rd, null, false)) {
+			if (designName.equals(design.getName())) {
+				return design;
+			}
+		}
+		throw new RuntimeException("Couldn't find Report Design " + designName);
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+
+/**
+ * The PECG Reports evaluated ahead of time by the Precompute PECG Report task, with their PECG.xls
+ * output, served by {@link PECGReportRunner} until the data they depend on changes.
+ * <p>
+ * Like the {@link org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache}, a
+ * report is evicted by the writes that may change it: those concerning one of its patients and those
+ * whose dates overlap its period, see
+ * {@link org.openmrs.module.testingpecgreport.advice.CohortChangeAdvice}. A report is only kept when
+ * no eviction happened while it was evaluated.
+ * <p>
+ * Reports are kept in memory. Their values are also in the result store, from which they are
+ * rendered again when the module starts, see
+ * {@link org.openmrs.module.testingpecgreport.api.scheduler.PrecomputePECGReportTask#restore()}.
+ */
+public class PrecomputedReports {
+	
+	private static final Map<ReportingPeriod, Entry> entries = new HashMap<ReportingPeriod, Entry>();
+	
+	private static long generation;
+	
+	/**
+	 * @return the current generation, to be passed back to
+	 *         {@link #put(ReportingPeriod, ReportData, byte[], PatientIdBitmap, long)}
+	 */
+	public static synchronized long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Keeps an evaluated report unless an eviction happened since the given generation.
+	 * 
+	 * @param period the period of the report
+	 * @param data the report data
+	 * @param rendered the report rendered with the PECG.xls design
+	 * @param members the patients the report counts, null if unknown
+	 * @param generation the generation read before the report was evaluated
+	 * @return whether the report was kept
+	 */
+	public static synchronized boolean put(ReportingPeriod period, ReportData data, byte[] rendered,
+	        PatientIdBitmap members, long generation) {
+		if (generation != PrecomputedReports.generation) {
+			return false;
+		}
+		entries.put(period, new Entry(data, rendered, members));
+		return true;
+	}
+	
+	/**
+	 * @param period the period
+	 * @return the precomputed report data, or null
+	 */
+	public static synchronized ReportData getData(ReportingPeriod period) {
+		Entry entry = entries.get(period);
+		return entry == null ? null : entry.data;
+	}
+	
+	/**
+	 * @param data report data returned by {@link #getData(ReportingPeriod)}
+	 * @return its PECG.xls output, or null if the data is not precomputed
+	 */
+	public static synchronized byte[] getRendered(ReportData data) {
+		for (Entry entry : entries.values()) {
+			if (entry.data == data) {
+				return entry.rendered;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the periods of the precomputed reports
+	 */
+	public static synchronized List<ReportingPeriod> getPeriods() {
+		return new ArrayList<ReportingPeriod>(entries.keySet());
+	}
+	
+	/**
+	 * Forgets the reports of the other periods
+	 * 
+	 * @param periods the periods to keep
+	 */
+	public static synchronized void retain(Collection<ReportingPeriod> periods) {
+		entries.keySet().retainAll(periods);
+	}
+	
+	/**
+	 * Evicts the reports counting the patient
+	 * 
+	 * @param patientId the patient
+	 */
+	public static synchronized void evictPatient(int patientId) {
+		generation++;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.members == null || entry.members.contains(patientId)) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Evicts the reports whose period overlaps the given one
+	 * 
+	 * @param from start of the changed period, null if unbounded
+	 * @param to end of the changed period, null if unbounded
+	 */
+	public static synchronized void evictPeriod(Date from, Date to) {
+		generation++;
+		for (Iterator<ReportingPeriod> it = entries.keySet().iterator(); it.hasNext();) {
+			ReportingPeriod period = it.next();
+			if ((from == null || !from.after(period.getEndDate())) && (to == null || !to.before(period.getStartDate()))) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Evicts all reports
+	 */
+	public static synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+	
+	private static class Entry {
+		
+		private final ReportData data;
+		
+		private final byte[] rendered;
+		
+		private final PatientIdBitmap members;
+		
+		Entry(ReportData data, byte[] rendered, PatientIdBitmap members) {
+			this.data = data;
+			this.rendered = rendered;
+			this.members = members;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.Date;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+
+/**
+ * Tracks the registration of the PECG Report. The activator only registers it at startup when it
+ * was never registered. Code about to run the report calls {@link #ensureRegistered()}, which
+ * returns at once when the registration is done, waits for it when it is running, and performs it
+ * otherwise, unless an administrator removed the report.
+ */
+public class ReportRegistration {
+	
+	private static final Log log = LogFactory.getLog(ReportRegistration.class);
+	
+	public enum State {
+		NOT_STARTED, RUNNING, REGISTERED, FAILED
+	}
+	
+	private static volatile State state = State.NOT_STARTED;
+	
+	private static volatile boolean changed;
+	
+	private static volatile Date dateFinished;
+	
+	private static volatile String error;
+	
+	/**
+	 * Registers the PECG Report, saving the definition only if it changed.
+	 * 
+	 * @throws Exception if the registration failed
+	 */
+	public static void register() throws Exception {
+		register(new SetupPECGReport());
+	}
+	
+	static synchronized void register(SetupPECGReport setup) throws Exception {
+		state = State.RUNNING;
+		long start = System.currentTimeMillis();
+		try {
+			changed = setup.setup();
+			error = null;
+			state = State.REGISTERED;
+			log.info("Registered the PECG Report in " + (System.currentTimeMillis() - start) + " ms"
+			        + (changed ? "" : ", the definition was unchanged"));
+		}
+		catch (Exception e) {
+			error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+			state = State.FAILED;
+			throw e;
+		}
+		finally {
+			dateFinished = new Date();
+		}
+	}
+	
+	/**
+	 * Registers the PECG Report if it was never registered and was not removed, called at startup.
+	 * 
+	 * @return whether the report was registered
+	 * @throws Exception if the registration failed
+	 */
+	public static boolean registerIfNeverRegistered() throws Exception {
+		String version = Context.getAdministrationService().getGlobalProperty(
+		    TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION);
+		if (StringUtils.isNotBlank(version) || isRemoved()) {
+			return false;
+		}
+		register();
+		return true;
+	}
+	
+	/**
+	 * Makes sure the PECG Report is registered before it is run.
+	 * 
+	 * @throws APIException if an administrator removed the report
+	 * @throws Exception if the registration failed
+	 */
+	public static void ensureRegistered() throws Exception {
+		if (state != State.REGISTERED) {
+			synchronized (ReportRegistration.class) {
+				if (state != State.REGISTERED) {
+					if (isRemoved()) {
+						throw new APIException("The PECG Report was removed, register it again from the module page");
+					}
+					register();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return whether an administrator removed the PECG Report, it is then only registered on request
+	 */
+	public static boolean isRemoved() {
+		return "false".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty(
+		    TestingPECGReportConfig.GP_PECG_AUTO_REGISTER, "true").trim());
+	}
+	
+	/**
+	 * Forgets the registration, after the report was removed
+	 */
+	public static synchronized void reset() {
+		state = State.NOT_STARTED;
+		changed = false;
+		dateFinished = null;
+		error = null;
+	}
+	
+	public static State getState() {
+		return state;
+	}
+	
+	/**
+	 * @return whether the last registration saved the definition
+	 */
+	public static boolean isChanged() {
+		return changed;
+	}
+	
+	public static Date getDateFinished() {
+		return dateFinished;
+	}
+	
+	public static String getError() {
+		return error;
+	}
+}
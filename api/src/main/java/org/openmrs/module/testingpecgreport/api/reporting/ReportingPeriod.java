@@ -0,0 +1,108 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A reporting period, the reportingStartDate and endDate parameters of the PECG Report.
+ */
+public class ReportingPeriod {
+	
+	private final Date startDate;
+	
+	private final Date endDate;
+	
+	public ReportingPeriod(Date startDate, Date endDate) {
+		if (startDate == null || endDate == null || endDate.before(startDate)) {
+			throw new IllegalArgumentException("Invalid period from " + startDate + " to " + endDate);
+		}
+		this.startDate = startDate;
+		this.endDate = endDate;
+	}
+	
+	/**
+	 * Builds consecutive calendar months, each from the start of its first day to the end of its last
+	 * day.
+	 * 
+	 * @param firstMonth any date in the first month
+	 * @param months the number of months
+	 * @return the periods in chronological order
+	 */
+	public static List<ReportingPeriod> monthly(Date firstMonth, int months) {
+		List<ReportingPeriod> ret = new ArrayList<ReportingPeriod>();
+		Calendar start = Calendar.getInstance();
+		start.setTime(firstMonth);
+		start.set(Calendar.DAY_OF_MONTH, 1);
+		start.set(Calendar.HOUR_OF_DAY, 0);
+		start.set(Calendar.MINUTE, 0);
+		start.set(Calendar.SECOND, 0);
+		start.set(Calendar.MILLISECOND, 0);
+		for (int i = 0; i < months; i++) {
+			Calendar end = (Calendar) start.clone();
+			end.set(Calendar.DAY_OF_MONTH, end.getActualMaximum(Calendar.DAY_OF_MONTH));
+			ret.add(new ReportingPeriod(start.getTime(), endOfDay(end.getTime())));
+			start.add(Calendar.MONTH, 1);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Moves a date to the last millisecond of its day, so an end date includes the visits and
+	 * enrollments of that day, which are saved with their time.
+	 * 
+	 * @param date a date, such as an end date entered without a time
+	 * @return 23:59:59.999 on the same day
+	 */
+	public static Date endOfDay(Date date) {
+		Calendar ret = Calendar.getInstance();
+		ret.setTime(date);
+		ret.set(Calendar.HOUR_OF_DAY, 23);
+		ret.set(Calendar.MINUTE, 59);
+		ret.set(Calendar.SECOND, 59);
+		ret.set(Calendar.MILLISECOND, 999);
+		return ret.getTime();
+	}
+	
+	public Date getStartDate() {
+		return startDate;
+	}
+	
+	public Date getEndDate() {
+		return endDate;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ReportingPeriod)) {
+			return false;
+		}
+		ReportingPeriod other = (ReportingPeriod) obj;
+		return startDate.getTime() == other.startDate.getTime() && endDate.getTime() == other.endDate.getTime();
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (startDate.getTime() * 31 + endDate.getTime());
+	}
+	
+	/**
+	 * @return the period as yyyy-MM-dd_yyyy-MM-dd, suitable for file names
+	 */
+	@Override
+	public String toString() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		return format.format(startDate) + "_" + format.format(endDate);
+	}
+}
@@ -11,101 +11,220 @@ package org.openmrs.module.testingpecgreport.api.reporting;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.Program;
 import org.openmrs.VisitType;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
-import org.openmrs.module.reporting.dataset.definition.CohortIndicatorDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
 import org.openmrs.module.reporting.evaluation.parameter.ParameterizableUtil;
-import org.openmrs.module.reporting.indicator.CohortIndicator;
 import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.ReportDesignResource;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
+import org.openmrs.module.reporting.report.renderer.ExcelTemplateRenderer;
 import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
 import org.openmrs.module.testingpecgreport.api.reporting.library.Cohorts;
-import org.openmrs.module.testingpecgreport.api.reporting.library.Indicators;
+import org.openmrs.module.testingpecgreport.api.reporting.library.DefinitionRegistry;
+import org.openmrs.module.testingpecgreport.api.reporting.renderer.StreamingXlsxTemplateRenderer;
 
 public class SetupPECGReport {
 	
+	private static final Log log = LogFactory.getLog(SetupPECGReport.class);
+	
 	private Program HIVProgram;
 	
 	private List<Program> HIVPrograms = new ArrayList<Program>();
 	
 	private VisitType UPECVisitType;
 	
-	public void setup() throws Exception {
+	/**
+	 * Registers the PECG Report and its designs. The definition is only saved when its version, a
+	 * hash of its structure, differs from the version saved last time. The report may be registered
+	 * automatically again until it is deleted.
+	 * 
+	 * @return true if the definition was saved, false if it was unchanged
+	 */
+	public boolean setup() throws Exception {
 		
 		setUpProperties();
 		
-		ReportDefinition rd = createReportDefinition();
-		ReportDesign design = Helper.createRowPerPatientXlsOverviewReportDesign(rd, "PECG.xls", "PECG.xls_", null);
+		ReportDefinition rd = createReportDefinition(HIVProgram, UPECVisitType);
+		String version = getVersion(rd);
+		AdministrationService as = Context.getAdministrationService();
+		List<ReportDefinition> saved = Context.getService(ReportDefinitionService.class).getDefinitions(rd.getName(), true);
+		boolean changed = saved.isEmpty() || !version.equals(as.getGlobalProperty(TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION));
+		if (changed) {
+			Helper.saveReportDefinition(rd);
+			as.setGlobalProperty(TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION, version);
+			PrecomputedReports.clear();
+			PECGDataVersion.increment();
+		} else {
+			rd = saved.get(0);
+		}
+		
 		Properties props = new Properties();
 		props.put("repeatingSections", "sheet:1,dataset:PECG Data Set");
 		props.put("sortWeight", "5000");
-		design.setProperties(props);
-		Helper.saveReportDesign(design);
-		
+		Helper.registerReportDesign(rd, "PECG.xls", "PECG.xls_", props, ExcelTemplateRenderer.class);
+		Helper.registerReportDesign(rd, "PECG.xls", PECGReportRunner.STREAMING_DESIGN_NAME, props, StreamingXlsxTemplateRenderer.class);
+		updateDesignColumns(rd);
+		as.setGlobalProperty(TestingPECGReportConfig.GP_PECG_AUTO_REGISTER, "true");
+		return changed;
+	}
+	
+	/**
+	 * Records in {@link ColumnDemand} the columns referenced by the templates of all designs of the
+	 * report, called on registration and whenever one of its designs is saved or purged. All columns
+	 * are evaluated if the designs cannot be read.
+	 * 
+	 * @param rd the saved report definition
+	 */
+	public static void updateDesignColumns(ReportDefinition rd) {
+		Set<String> columns = null;
+		try {
+			columns = getDesignColumns(rd);
+		}
+		catch (RuntimeException e) {
+			log.warn("Unable to read the designs of " + rd.getName() + ", all PECG columns will be evaluated", e);
+		}
+		ColumnDemand.setDesignColumns(columns);
+	}
+	
+	/**
+	 * Reads the columns referenced by the templates of all designs of the report, including those
+	 * added or trimmed by the site.
+	 * 
+	 * @param rd the saved report definition
+	 * @return the union of their placeholders, or null if a design has no template or one could not
+	 *         be read
+	 */
+	private static Set<String> getDesignColumns(ReportDefinition rd) {
+		Set<String> ret = new HashSet<String>();
+		for (ReportDesign design : Context.getService(ReportService.class).getReportDesigns(rd, null, false)) {
+			if (design.getResources().isEmpty()) {
+				// such as a CSV export, which writes every column
+				return null;
+			}
+			for (ReportDesignResource resource : design.getResources()) {
+				try {
+					ret.addAll(ColumnDemand.parseTemplate(resource.getContents()));
+				}
+				catch (Exception e) {
+					log.warn("Unable to read the placeholders of " + resource.getName() + " in " + design.getName()
+					        + ", all PECG columns will be evaluated", e);
+					return null;
+				}
+			}
+		}
+		return ret;
 	}
 	
 	public void delete() {
 		ReportService rs = Context.getService(ReportService.class);
 		for (ReportDesign rd : rs.getAllReportDesigns(false)) {
-			if ("PECG.xls_".equals(rd.getName())) {
+			if ("PECG.xls_".equals(rd.getName()) || PECGReportRunner.STREAMING_DESIGN_NAME.equals(rd.getName())) {
 				rs.purgeReportDesign(rd);
 			}
 		}
 		Helper.purgeReportDefinition("PECG Report");
+		ReportRegistration.reset();
+		ColumnDemand.reset();
+		PrecomputedReports.clear();
+		Context.getAdministrationService().setGlobalProperty(TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION, "");
+		PECGDataVersion.increment();
+		// until an administrator registers it again
+		Context.getAdministrationService().setGlobalProperty(TestingPECGReportConfig.GP_PECG_AUTO_REGISTER, "false");
 	}
 	
-	private ReportDefinition createReportDefinition() {
+	/**
+	 * The version of a report definition, which changes whenever its parameters, data sets or their
+	 * mappings change
+	 */
+	private static String getVersion(ReportDefinition rd) {
+		StringBuilder sb = new StringBuilder(DefinitionRegistry.getKey(rd));
+		for (Map.Entry<String, Mapped<? extends DataSetDefinition>> entry : new TreeMap<String, Mapped<? extends DataSetDefinition>>(rd.getDataSetDefinitions()).entrySet()) {
+			sb.append(";").append(entry.getKey()).append("=").append(DefinitionRegistry.getKey(entry.getValue().getParameterizable()));
+			if (entry.getValue().getParameterMappings() != null) {
+				sb.append(new TreeMap<String, Object>(entry.getValue().getParameterMappings()));
+			}
+		}
+		return DigestUtils.shaHex(sb.toString());
+	}
+	
+	/**
+	 * Builds the PECG Report definition graph without saving it. The cohorts shared by its columns
+	 * are interned while it is built and are not retained afterwards.
+	 * 
+	 * @param program the HIV program
+	 * @param visitType the UPEC visit type
+	 * @return the report definition
+	 */
+	public ReportDefinition createReportDefinition(Program program, VisitType visitType) {
 		
 		ReportDefinition rd = new ReportDefinition();
 		rd.addParameter(new Parameter("reportingStartDate", "Start Date", Date.class));
 		rd.addParameter(new Parameter("endDate", "End Date", Date.class));
 		rd.setName("PECG Report");
-		rd.setBaseCohortDefinition(Cohorts.getPatientEnrolledInProgramWithUPECVisit(HIVProgram, UPECVisitType), ParameterizableUtil.createParameterMappings("onOrAfter=${reportingStartDate},onOrBefore=${endDate}"));
-		rd.addDataSetDefinition(createBaseDataSet(), ParameterizableUtil.createParameterMappings("endDate=${endDate},reportingStartDate=${reportingStartDate}"));
-		Helper.saveReportDefinition(rd);
+		DefinitionRegistry.beginScope();
+		try {
+			rd.addDataSetDefinition(createBaseDataSet(program, visitType), ParameterizableUtil.createParameterMappings("endDate=${endDate},reportingStartDate=${reportingStartDate}"));
+		}
+		finally {
+			DefinitionRegistry.endScope();
+		}
 		return rd;
 	}
 	
-	private CohortIndicatorDataSetDefinition createBaseDataSet() {
-		CohortIndicatorDataSetDefinition dsd = new CohortIndicatorDataSetDefinition();
+	private AgeSexDisaggregationDataSetDefinition createBaseDataSet(Program program, VisitType visitType) {
+		AgeSexDisaggregationDataSetDefinition dsd = new AgeSexDisaggregationDataSetDefinition();
 		dsd.setName("PECG Data Set");
 		dsd.addParameter(new Parameter("endDate", "End Date", Date.class));
 		dsd.addParameter(new Parameter("reportingStartDate", "Start Date", Date.class));
+		dsd.setCohortDefinition(Cohorts.getPatientEnrolledInProgramWithUPECVisit(program, visitType), ParameterizableUtil.createParameterMappings("onOrAfter=${reportingStartDate},onOrBefore=${endDate}"));
 		createIndicators(dsd);
 		return dsd;
 	}
 	
-	private void createIndicators(CohortIndicatorDataSetDefinition dsd) {
-		dsd.addColumn("2All<1", "PECG: Currently on ART: Patients below 1 year", new Mapped<CohortIndicator>(Indicators.getPatientBelow1YearIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
-		dsd.addColumn("2All1-4", "PECG: Currently on ART: Patients between 1 and 4 years", new Mapped<CohortIndicator>(Indicators.getPatientBetween1And4YearsIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
-		dsd.addColumn("2All5-9", "PECG: Currently on ART: Patients between 5 and 9 years", new Mapped<CohortIndicator>(Indicators.getPatientBetween5And9YearsIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
-		dsd.addColumn("2All10-14", "PECG: Currently on ART: Patients between 10 and 14 years", new Mapped<CohortIndicator>(Indicators.getPatientBetween10And14YearsIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
-		dsd.addColumn("2All15-19", "PECG: Currently on ART: Patients between 15 and 19 years", new Mapped<CohortIndicator>(Indicators.getPatientBetween15And19YearsIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
-		dsd.addColumn("2All20-24", "PECG: Currently on ART: Patients between 20 and 24 years", new Mapped<CohortIndicator>(Indicators.getPatientBetween20And24YearsIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
-		dsd.addColumn("2All25-49", "PECG: Currently on ART: Patients between 25 and 49 years", new Mapped<CohortIndicator>(Indicators.getPatientBetween25And49YearsIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
-		dsd.addColumn("2All50-Above", "PECG: Currently on ART: Patients between 50 years and above", new Mapped<CohortIndicator>(Indicators.getPatientBetween50AndAboveIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
+	private void createIndicators(AgeSexDisaggregationDataSetDefinition dsd) {
+		List<AgeCohortDefinition> ageRanges = Cohorts.getAllAgeRanges();
+		dsd.addColumn("2All<1", "PECG: Currently on ART: Patients below 1 year", ageRanges.get(0), null);
+		dsd.addColumn("2All1-4", "PECG: Currently on ART: Patients between 1 and 4 years", ageRanges.get(1), null);
+		dsd.addColumn("2All5-9", "PECG: Currently on ART: Patients between 5 and 9 years", ageRanges.get(2), null);
+		dsd.addColumn("2All10-14", "PECG: Currently on ART: Patients between 10 and 14 years", ageRanges.get(3), null);
+		dsd.addColumn("2All15-19", "PECG: Currently on ART: Patients between 15 and 19 years", ageRanges.get(4), null);
+		dsd.addColumn("2All20-24", "PECG: Currently on ART: Patients between 20 and 24 years", ageRanges.get(5), null);
+		dsd.addColumn("2All25-49", "PECG: Currently on ART: Patients between 25 and 49 years", ageRanges.get(6), null);
+		dsd.addColumn("2All50-Above", "PECG: Currently on ART: Patients between 50 years and above", ageRanges.get(7), null);
 		
 		// Male
 		int i = 0;
-		for (AgeCohortDefinition ageCohort : Cohorts.getAllAgeRanges()) {
-			dsd.addColumn("2M" + i, "Males:PECG: Currently on ART by age and sex: " + ageCohort.getName(), new Mapped<CohortIndicator>(Indicators.getPatientInYearRangeIndicator(ageCohort, Cohorts.getMales()), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
+		for (AgeCohortDefinition ageCohort : ageRanges) {
+			dsd.addColumn("2M" + i, "Males:PECG: Currently on ART by age and sex: " + ageCohort.getName(), ageCohort, Cohorts.getMales());
 			i++;
 		}
 		
 		// Females
 		int j = 0;
-		for (AgeCohortDefinition ageCohort : Cohorts.getAllAgeRanges()) {
-			dsd.addColumn("2F" + j, "Females:PECG: Currently on ART by age and sex: " + ageCohort.getName(), new Mapped<CohortIndicator>(Indicators.getPatientInYearRangeIndicator(ageCohort, Cohorts.getFemales()), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
+		for (AgeCohortDefinition ageCohort : ageRanges) {
+			dsd.addColumn("2F" + j, "Females:PECG: Currently on ART by age and sex: " + ageCohort.getName(), ageCohort, Cohorts.getFemales());
 			j++;
 		}
-		dsd.addColumn("2All", "PECG: Currently on ART", new Mapped<CohortIndicator>(Indicators.getAllPatientsIndicator(), ParameterizableUtil.createParameterMappings("startDate=${startDate},endDate=${endDate}")), "");
+		dsd.addColumn("2All", "PECG: Currently on ART", null, Cohorts.getMalesAndFemales());
 		
 	}
 	
@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The enrollments and visits a refresh of the ART snapshot replaced, added or removed, as the
+ * patients and the date ranges whose numbers they may change. Beyond {@link #MAX_RECORDED} rows
+ * the ranges are no longer recorded and every period should be considered changed.
+ */
+public class ArtSnapshotChanges {
+	
+	public static final int MAX_RECORDED = 1000;
+	
+	private int count;
+	
+	private final PatientIdBitmap patientIds = new PatientIdBitmap();
+	
+	private final List<Date[]> ranges = new ArrayList<Date[]>();
+	
+	/**
+	 * @param patientId the patient
+	 * @param dateEnrolled the enrollment date, null if unknown
+	 * @param dateCompleted the completion date, null if the enrollment is still active
+	 */
+	public void addEnrollment(int patientId, Date dateEnrolled, Date dateCompleted) {
+		add(patientId, dateEnrolled, dateCompleted);
+	}
+	
+	/**
+	 * @param patientId the patient
+	 * @param dateStarted the visit start date
+	 */
+	public void addVisit(int patientId, Date dateStarted) {
+		add(patientId, dateStarted, dateStarted);
+	}
+	
+	private void add(int patientId, Date from, Date to) {
+		count++;
+		if (count <= MAX_RECORDED) {
+			patientIds.add(patientId);
+			ranges.add(new Date[] { from, to });
+		}
+	}
+	
+	/**
+	 * @return the number of rows changed
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * @return whether more rows changed than could be recorded
+	 */
+	public boolean isOverflowed() {
+		return count > MAX_RECORDED;
+	}
+	
+	/**
+	 * @return the patients of the recorded rows
+	 */
+	public PatientIdBitmap getPatientIds() {
+		return patientIds;
+	}
+	
+	/**
+	 * @return the date ranges of the recorded rows, as start and end dates which are null if
+	 *         unbounded
+	 */
+	public List<Date[]> getRanges() {
+		return ranges;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the patients of a cohort query across report runs, so dashboards refreshing the same
+ * periods do not run the query again. Every entry remembers the period it was computed for, and the
+ * advice in {@link org.openmrs.module.testingpecgreport.advice.CohortChangeAdvice} evicts the entries
+ * that a visit or program enrollment write may change: those containing the patient, which covers
+ * data being removed, and those whose period overlaps the new dates, which covers data being added.
+ * <p>
+ * Every eviction increments a generation, a result is only kept when no eviction happened while it
+ * was computed. Writes which bypass the OpenMRS services are not seen, entries therefore expire after
+ * {@link #MAX_AGE_MILLIS} whatever happens.
+ */
+public class CohortResultCache {
+	
+	static final int MAX_ENTRIES = 64;
+	
+	static final long MAX_AGE_MILLIS = 60 * 60 * 1000L;
+	
+	private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	
+	private static long generation;
+	
+	/**
+	 * @return the current generation, to be passed back to
+	 *         {@link #put(String, Date, Date, PatientIdBitmap, long)}
+	 */
+	public static synchronized long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * @param key the cache key of the cohort
+	 * @return the cached patients, or null
+	 */
+	public static synchronized PatientIdBitmap get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() - entry.created > MAX_AGE_MILLIS) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.members;
+	}
+	
+	/**
+	 * Keeps the patients of a cohort unless an eviction happened since the given generation. The
+	 * bitmap must not be modified afterwards.
+	 * 
+	 * @param key the cache key of the cohort
+	 * @param onOrAfter start of the period the cohort depends on, null if unbounded
+	 * @param onOrBefore end of the period the cohort depends on, null if unbounded
+	 * @param members the patients
+	 * @param generation the generation read before the cohort was computed
+	 * @return whether the patients were kept
+	 */
+	public static synchronized boolean put(String key, Date onOrAfter, Date onOrBefore, PatientIdBitmap members,
+	        long generation) {
+		if (generation != CohortResultCache.generation) {
+			return false;
+		}
+		entries.put(key, new Entry(onOrAfter, onOrBefore, members));
+		return true;
+	}
+	
+	/**
+	 * Evicts the cohorts containing the patient
+	 * 
+	 * @param patientId the patient
+	 */
+	public static synchronized void evictPatient(int patientId) {
+		generation++;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			if (it.next().members.contains(patientId)) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Evicts the cohorts whose period overlaps the given one
+	 * 
+	 * @param from start of the changed period, null if unbounded
+	 * @param to end of the changed period, null if unbounded
+	 */
+	public static synchronized void evictPeriod(Date from, Date to) {
+		generation++;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if ((from == null || entry.onOrBefore == null || !from.after(entry.onOrBefore))
+			        && (to == null || entry.onOrAfter == null || !to.before(entry.onOrAfter))) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Evicts all cohorts
+	 */
+	public static synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+	
+	/**
+	 * @return the number of cached cohorts
+	 */
+	public static synchronized int size() {
+		return entries.size();
+	}
+	
+	private static class Entry {
+		
+		private final Date onOrAfter;
+		
+		private final Date onOrBefore;
+		
+		private final PatientIdBitmap members;
+		
+		private final long created = System.currentTimeMillis();
+		
+		Entry(Date onOrAfter, Date onOrBefore, PatientIdBitmap members) {
+			this.onOrAfter = onOrAfter;
+			this.onOrBefore = onOrBefore;
+			this.members = members;
+		}
+	}
+}
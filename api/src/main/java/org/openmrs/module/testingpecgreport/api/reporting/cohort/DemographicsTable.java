@@ -0,0 +1,95 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * The birthdate and gender of a set of patients held in memory, looked up by patient id. Patients
+ * are added in any order, {@link #seal()} must be called before the first lookup. It is immutable
+ * once sealed and can then be read from several threads.
+ */
+public class DemographicsTable {
+	
+	private static final long NO_BIRTHDATE = Long.MIN_VALUE;
+	
+	private int size;
+	
+	private int[] patientIds = new int[1024];
+	
+	private long[] birthdates = new long[1024];
+	
+	private String[] genders = new String[1024];
+	
+	private boolean sealed;
+	
+	public void add(int patientId, Date birthdate, String gender) {
+		if (sealed) {
+			throw new IllegalStateException("The table is sealed");
+		}
+		if (size == patientIds.length) {
+			patientIds = Arrays.copyOf(patientIds, size * 2);
+			birthdates = Arrays.copyOf(birthdates, size * 2);
+			genders = Arrays.copyOf(genders, size * 2);
+		}
+		patientIds[size] = patientId;
+		birthdates[size] = birthdate == null ? NO_BIRTHDATE : birthdate.getTime();
+		genders[size] = gender;
+		size++;
+	}
+	
+	/**
+	 * Sorts the table by patient id so it can be searched
+	 */
+	public void seal() {
+		long[] order = new long[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = ((long) patientIds[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		int[] sortedIds = new int[size];
+		long[] sortedBirthdates = new long[size];
+		String[] sortedGenders = new String[size];
+		for (int i = 0; i < size; i++) {
+			int index = (int) order[i];
+			sortedIds[i] = patientIds[index];
+			sortedBirthdates[i] = birthdates[index];
+			sortedGenders[i] = genders[index];
+		}
+		patientIds = sortedIds;
+		birthdates = sortedBirthdates;
+		genders = sortedGenders;
+		sealed = true;
+	}
+	
+	/**
+	 * @param patientId the patient
+	 * @return the position of the patient, or a negative value if the table does not hold them
+	 */
+	public int indexOf(int patientId) {
+		if (!sealed) {
+			throw new IllegalStateException("The table must be sealed before it is searched");
+		}
+		return Arrays.binarySearch(patientIds, 0, size, patientId);
+	}
+	
+	public Date getBirthdate(int index) {
+		return birthdates[index] == NO_BIRTHDATE ? null : new Date(birthdates[index]);
+	}
+	
+	public String getGender(int index) {
+		return genders[index];
+	}
+	
+	public int size() {
+		return size;
+	}
+}
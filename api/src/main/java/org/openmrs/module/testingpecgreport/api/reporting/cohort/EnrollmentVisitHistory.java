@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * The program enrollments and visits of a date range held in memory, so the PECG base cohort of
+ * every period inside that range can be computed without going back to the database. It is
+ * immutable once loaded and can then be read from several threads.
+ */
+public class EnrollmentVisitHistory {
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private int enrollmentCount;
+	
+	private int[] enrollmentPatientIds = new int[INITIAL_CAPACITY];
+	
+	private long[] datesEnrolled = new long[INITIAL_CAPACITY];
+	
+	private long[] datesCompleted = new long[INITIAL_CAPACITY];
+	
+	private int visitCount;
+	
+	private int[] visitPatientIds = new int[INITIAL_CAPACITY];
+	
+	private long[] datesStarted = new long[INITIAL_CAPACITY];
+	
+	/**
+	 * @param patientId the patient
+	 * @param dateEnrolled the enrollment date, an enrollment without one never matches
+	 * @param dateCompleted the completion date, or null if the enrollment is still active
+	 */
+	public void addEnrollment(int patientId, Date dateEnrolled, Date dateCompleted) {
+		if (enrollmentCount == enrollmentPatientIds.length) {
+			int capacity = enrollmentCount * 2;
+			enrollmentPatientIds = Arrays.copyOf(enrollmentPatientIds, capacity);
+			datesEnrolled = Arrays.copyOf(datesEnrolled, capacity);
+			datesCompleted = Arrays.copyOf(datesCompleted, capacity);
+		}
+		enrollmentPatientIds[enrollmentCount] = patientId;
+		datesEnrolled[enrollmentCount] = dateEnrolled == null ? Long.MAX_VALUE : dateEnrolled.getTime();
+		datesCompleted[enrollmentCount] = dateCompleted == null ? Long.MAX_VALUE : dateCompleted.getTime();
+		enrollmentCount++;
+	}
+	
+	/**
+	 * @param patientId the patient
+	 * @param dateStarted the visit start date, a visit without one never matches
+	 */
+	public void addVisit(int patientId, Date dateStarted) {
+		if (dateStarted == null) {
+			return;
+		}
+		if (visitCount == visitPatientIds.length) {
+			int capacity = visitCount * 2;
+			visitPatientIds = Arrays.copyOf(visitPatientIds, capacity);
+			datesStarted = Arrays.copyOf(datesStarted, capacity);
+		}
+		visitPatientIds[visitCount] = patientId;
+		datesStarted[visitCount] = dateStarted.getTime();
+		visitCount++;
+	}
+	
+	/**
+	 * Same semantics as TestingPECGReportDao#getPatientsEnrolledWithVisit, the period must lie within
+	 * the range the history was loaded for.
+	 * 
+	 * @param onOrAfter start of the period
+	 * @param onOrBefore end of the period
+	 * @return the patients enrolled during the period who had a visit in the same period
+	 */
+	public PatientIdBitmap getPatientsEnrolledWithVisit(Date onOrAfter, Date onOrBefore) {
+		long start = onOrAfter.getTime();
+		long end = onOrBefore.getTime();
+		PatientIdBitmap visited = new PatientIdBitmap();
+		for (int i = 0; i < visitCount; i++) {
+			if (datesStarted[i] >= start && datesStarted[i] <= end) {
+				visited.add(visitPatientIds[i]);
+			}
+		}
+		PatientIdBitmap enrolled = new PatientIdBitmap();
+		for (int i = 0; i < enrollmentCount; i++) {
+			if (datesEnrolled[i] <= end && datesCompleted[i] >= start) {
+				enrolled.add(enrollmentPatientIds[i]);
+			}
+		}
+		return enrolled.and(visited);
+	}
+	
+	public int getEnrollmentCount() {
+		return enrollmentCount;
+	}
+	
+	public int getVisitCount() {
+		return visitCount;
+	}
+}
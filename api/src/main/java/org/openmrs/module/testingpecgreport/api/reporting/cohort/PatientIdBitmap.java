@@ -0,0 +1,452 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.openmrs.Cohort;
+
+/**
+ * A compressed set of patient ids, organised like a Roaring bitmap. Ids are grouped into chunks by
+ * their upper 16 bits. A chunk holding few ids is stored as a sorted char array and a dense chunk as a
+ * 65536 bit bitmap, so set operations never box ids into Integers. Convert from and to
+ * {@link Cohort} only where the reporting API requires it.
+ */
+public class PatientIdBitmap {
+	
+	/**
+	 * Above this many values a chunk takes less memory as a bitmap than as an array
+	 */
+	private static final int MAX_ARRAY_CARDINALITY = 4096;
+	
+	private char[] keys = new char[4];
+	
+	private Container[] containers = new Container[4];
+	
+	private int size;
+	
+	public PatientIdBitmap() {
+	}
+	
+	public static PatientIdBitmap of(Collection<Integer> patientIds) {
+		PatientIdBitmap ret = new PatientIdBitmap();
+		for (Integer patientId : patientIds) {
+			ret.add(patientId);
+		}
+		return ret;
+	}
+	
+	public static PatientIdBitmap of(Cohort cohort) {
+		return of(cohort.getMemberIds());
+	}
+	
+	public void add(int patientId) {
+		char high = (char) (patientId >>> 16);
+		int i = Arrays.binarySearch(keys, 0, size, high);
+		if (i >= 0) {
+			containers[i] = containers[i].add((char) patientId);
+		} else {
+			insert(-i - 1, high, new ArrayContainer().add((char) patientId));
+		}
+	}
+	
+	public boolean contains(int patientId) {
+		int i = Arrays.binarySearch(keys, 0, size, (char) (patientId >>> 16));
+		return i >= 0 && containers[i].contains((char) patientId);
+	}
+	
+	public int getCardinality() {
+		int ret = 0;
+		for (int i = 0; i < size; i++) {
+			ret += containers[i].getCardinality();
+		}
+		return ret;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * @return a new bitmap with the ids in both this and the other bitmap
+	 */
+	public PatientIdBitmap and(PatientIdBitmap other) {
+		PatientIdBitmap ret = new PatientIdBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			if (keys[i] == other.keys[j]) {
+				ret.append(keys[i], containers[i].and(other.containers[j]));
+				i++;
+				j++;
+			} else if (keys[i] < other.keys[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return a new bitmap with the ids in this or the other bitmap
+	 */
+	public PatientIdBitmap or(PatientIdBitmap other) {
+		PatientIdBitmap ret = new PatientIdBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < size || j < other.size) {
+			if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+				ret.append(keys[i], containers[i].copy());
+				i++;
+			} else if (i == size || other.keys[j] < keys[i]) {
+				ret.append(other.keys[j], other.containers[j].copy());
+				j++;
+			} else {
+				ret.append(keys[i], containers[i].or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return a new bitmap with the ids in this bitmap that are not in the other bitmap
+	 */
+	public PatientIdBitmap andNot(PatientIdBitmap other) {
+		PatientIdBitmap ret = new PatientIdBitmap();
+		int j = 0;
+		for (int i = 0; i < size; i++) {
+			while (j < other.size && other.keys[j] < keys[i]) {
+				j++;
+			}
+			if (j < other.size && other.keys[j] == keys[i]) {
+				ret.append(keys[i], containers[i].andNot(other.containers[j]));
+			} else {
+				ret.append(keys[i], containers[i].copy());
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the ids in ascending order of their unsigned value
+	 */
+	public int[] toArray() {
+		int[] ret = new int[getCardinality()];
+		int offset = 0;
+		for (int i = 0; i < size; i++) {
+			offset = containers[i].fill(ret, offset, keys[i] << 16);
+		}
+		return ret;
+	}
+	
+	public Set<Integer> toSet() {
+		Set<Integer> ret = new LinkedHashSet<Integer>();
+		for (int patientId : toArray()) {
+			ret.add(patientId);
+		}
+		return ret;
+	}
+	
+	public Cohort toCohort() {
+		return new Cohort(toSet());
+	}
+	
+	@Override
+	public String toString() {
+		return "PatientIdBitmap" + Arrays.toString(toArray());
+	}
+	
+	private void insert(int index, char key, Container container) {
+		ensureCapacity();
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = key;
+		containers[index] = container;
+		size++;
+	}
+	
+	/**
+	 * Appends a chunk whose key is greater than all existing keys, dropping empty chunks
+	 */
+	private void append(char key, Container container) {
+		if (container.getCardinality() == 0) {
+			return;
+		}
+		ensureCapacity();
+		keys[size] = key;
+		containers[size] = container;
+		size++;
+	}
+	
+	private void ensureCapacity() {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			containers = Arrays.copyOf(containers, size * 2);
+		}
+	}
+	
+	/**
+	 * The lower 16 bits of the ids of one chunk. Operations returning a container may convert between
+	 * the array and bitmap forms, callers must use the returned instance.
+	 */
+	private abstract static class Container {
+		
+		abstract Container add(char value);
+		
+		abstract boolean contains(char value);
+		
+		abstract int getCardinality();
+		
+		abstract Container and(Container other);
+		
+		abstract Container or(Container other);
+		
+		abstract Container andNot(Container other);
+		
+		abstract Container copy();
+		
+		abstract int fill(int[] out, int offset, int high);
+	}
+	
+	private static final class ArrayContainer extends Container {
+		
+		private char[] values;
+		
+		private int cardinality;
+		
+		ArrayContainer() {
+			this(new char[4], 0);
+		}
+		
+		ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+		
+		@Override
+		Container add(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) {
+				return this;
+			}
+			if (cardinality == MAX_ARRAY_CARDINALITY) {
+				return toBitmap().add(value);
+			}
+			i = -i - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(Math.max(4, cardinality * 2), MAX_ARRAY_CARDINALITY));
+			}
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return this;
+		}
+		
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+		
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+		
+		@Override
+		Container and(Container other) {
+			char[] ret = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (other.contains(values[i])) {
+					ret[n++] = values[i];
+				}
+			}
+			return new ArrayContainer(ret, n);
+		}
+		
+		@Override
+		Container or(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.or(this);
+			}
+			ArrayContainer o = (ArrayContainer) other;
+			char[] ret = new char[cardinality + o.cardinality];
+			int n = 0;
+			int i = 0;
+			int j = 0;
+			while (i < cardinality || j < o.cardinality) {
+				if (j == o.cardinality || (i < cardinality && values[i] < o.values[j])) {
+					ret[n++] = values[i++];
+				} else if (i == cardinality || o.values[j] < values[i]) {
+					ret[n++] = o.values[j++];
+				} else {
+					ret[n++] = values[i++];
+					j++;
+				}
+			}
+			ArrayContainer merged = new ArrayContainer(ret, n);
+			return n > MAX_ARRAY_CARDINALITY ? merged.toBitmap() : merged;
+		}
+		
+		@Override
+		Container andNot(Container other) {
+			char[] ret = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (!other.contains(values[i])) {
+					ret[n++] = values[i];
+				}
+			}
+			return new ArrayContainer(ret, n);
+		}
+		
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, values.length), cardinality);
+		}
+		
+		@Override
+		int fill(int[] out, int offset, int high) {
+			for (int i = 0; i < cardinality; i++) {
+				out[offset++] = high | values[i];
+			}
+			return offset;
+		}
+		
+		private BitmapContainer toBitmap() {
+			BitmapContainer ret = new BitmapContainer(new long[1024]);
+			for (int i = 0; i < cardinality; i++) {
+				ret.add(values[i]);
+			}
+			return ret;
+		}
+	}
+	
+	private static final class BitmapContainer extends Container {
+		
+		private final long[] words;
+		
+		private int cardinality;
+		
+		BitmapContainer(long[] words) {
+			this.words = words;
+			for (long word : words) {
+				cardinality += Long.bitCount(word);
+			}
+		}
+		
+		@Override
+		Container add(char value) {
+			long mask = 1L << value;
+			if ((words[value >>> 6] & mask) == 0) {
+				words[value >>> 6] |= mask;
+				cardinality++;
+			}
+			return this;
+		}
+		
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+		
+		@Override
+		int getCardinality() {
+			return cardinality;
+		}
+		
+		@Override
+		Container and(Container other) {
+			if (other instanceof ArrayContainer) {
+				return other.and(this);
+			}
+			long[] o = ((BitmapContainer) other).words;
+			long[] ret = new long[words.length];
+			for (int i = 0; i < words.length; i++) {
+				ret[i] = words[i] & o[i];
+			}
+			return new BitmapContainer(ret).shrink();
+		}
+		
+		@Override
+		Container or(Container other) {
+			if (other instanceof ArrayContainer) {
+				ArrayContainer o = (ArrayContainer) other;
+				BitmapContainer ret = (BitmapContainer) copy();
+				for (int i = 0; i < o.cardinality; i++) {
+					ret.add(o.values[i]);
+				}
+				return ret;
+			}
+			long[] o = ((BitmapContainer) other).words;
+			long[] ret = new long[words.length];
+			for (int i = 0; i < words.length; i++) {
+				ret[i] = words[i] | o[i];
+			}
+			return new BitmapContainer(ret);
+		}
+		
+		@Override
+		Container andNot(Container other) {
+			long[] ret = Arrays.copyOf(words, words.length);
+			if (other instanceof ArrayContainer) {
+				ArrayContainer o = (ArrayContainer) other;
+				for (int i = 0; i < o.cardinality; i++) {
+					ret[o.values[i] >>> 6] &= ~(1L << o.values[i]);
+				}
+			} else {
+				long[] o = ((BitmapContainer) other).words;
+				for (int i = 0; i < ret.length; i++) {
+					ret[i] &= ~o[i];
+				}
+			}
+			return new BitmapContainer(ret).shrink();
+		}
+		
+		@Override
+		Container copy() {
+			return new BitmapContainer(Arrays.copyOf(words, words.length));
+		}
+		
+		@Override
+		int fill(int[] out, int offset, int high) {
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					out[offset++] = high | (i << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return offset;
+		}
+		
+		private Container shrink() {
+			if (cardinality > MAX_ARRAY_CARDINALITY) {
+				return this;
+			}
+			char[] values = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, n);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.definition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.dataset.definition.BaseDataSetDefinition;
+import org.openmrs.module.reporting.definition.configuration.ConfigurationProperty;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+
+/**
+ * Counts the patients of the base cohort by age range and gender. Unlike a
+ * CohortIndicatorDataSetDefinition, where each column is evaluated as its own cohort, all columns are
+ * filled from a single scan of the birthdate and gender of the base cohort. The age ranges are
+ * evaluated as of the endDate parameter.
+ * <p>
+ * The cohort, when set, is evaluated by the data set itself and restricted to the base cohort of the
+ * context, if any. Keeping it out of the report base cohort lets the values of closed periods be
+ * served from the result store without evaluating it, see AgeSexDisaggregationDataSetEvaluator.
+ */
+public class AgeSexDisaggregationDataSetDefinition extends BaseDataSetDefinition {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@ConfigurationProperty
+	private Mapped<CohortDefinition> cohortDefinition;
+	
+	@ConfigurationProperty
+	private List<DisaggregationColumn> columns;
+	
+	public AgeSexDisaggregationDataSetDefinition() {
+		super();
+	}
+	
+	public Mapped<CohortDefinition> getCohortDefinition() {
+		return cohortDefinition;
+	}
+	
+	public void setCohortDefinition(Mapped<CohortDefinition> cohortDefinition) {
+		this.cohortDefinition = cohortDefinition;
+	}
+	
+	public void setCohortDefinition(CohortDefinition cohortDefinition, Map<String, Object> mappings) {
+		this.cohortDefinition = new Mapped<CohortDefinition>(cohortDefinition, mappings);
+	}
+	
+	public void addColumn(String name, String label, AgeCohortDefinition ageRange, GenderCohortDefinition gender) {
+		getColumns().add(new DisaggregationColumn(name, label, ageRange, gender));
+	}
+	
+	public List<DisaggregationColumn> getColumns() {
+		if (columns == null) {
+			columns = new ArrayList<DisaggregationColumn>();
+		}
+		return columns;
+	}
+	
+	public void setColumns(List<DisaggregationColumn> columns) {
+		this.columns = columns;
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.definition;
+
+import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
+
+/**
+ * A CompositionCohortDefinition whose composition string is evaluated on PatientIdBitmaps instead of
+ * sets of Integers, see BitmapCompositionCohortDefinitionEvaluator. The composition string supports
+ * the search keys, AND, OR, NOT and parentheses.
+ */
+public class BitmapCompositionCohortDefinition extends CompositionCohortDefinition {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public BitmapCompositionCohortDefinition() {
+		super();
+	}
+}
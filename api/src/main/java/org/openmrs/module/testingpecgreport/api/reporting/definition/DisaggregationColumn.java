@@ -0,0 +1,85 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.definition;
+
+import java.io.Serializable;
+
+import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.library.DefinitionRegistry;
+
+/**
+ * One cell of an {@link AgeSexDisaggregationDataSetDefinition}. A patient falls into the column when
+ * they match both the age range and the gender, a null criterion matching everybody.
+ */
+public class DisaggregationColumn implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private String name;
+	
+	private String label;
+	
+	private AgeCohortDefinition ageRange;
+	
+	private GenderCohortDefinition gender;
+	
+	public DisaggregationColumn() {
+	}
+	
+	public DisaggregationColumn(String name, String label, AgeCohortDefinition ageRange, GenderCohortDefinition gender) {
+		this.name = name;
+		this.label = label;
+		this.ageRange = ageRange;
+		this.gender = gender;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	public String getLabel() {
+		return label;
+	}
+	
+	public void setLabel(String label) {
+		this.label = label;
+	}
+	
+	public AgeCohortDefinition getAgeRange() {
+		return ageRange;
+	}
+	
+	public void setAgeRange(AgeCohortDefinition ageRange) {
+		this.ageRange = ageRange;
+	}
+	
+	public GenderCohortDefinition getGender() {
+		return gender;
+	}
+	
+	public void setGender(GenderCohortDefinition gender) {
+		this.gender = gender;
+	}
+	
+	/**
+	 * Describes the column by value, it is part of the DefinitionRegistry key of the data set.
+	 */
+	@Override
+	public String toString() {
+		return "column[name=" + name + ";label=" + label + ";ageRange="
+		        + (ageRange == null ? "null" : DefinitionRegistry.getKey(ageRange)) + ";gender="
+		        + (gender == null ? "null" : DefinitionRegistry.getKey(gender)) + "]";
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.definition;
+
+import java.util.Date;
+
+import org.openmrs.Program;
+import org.openmrs.VisitType;
+import org.openmrs.module.reporting.cohort.definition.BaseCohortDefinition;
+import org.openmrs.module.reporting.definition.configuration.ConfigurationProperty;
+
+/**
+ * Patients enrolled in a program during the period who also had a visit of the given type in that
+ * period. The result is evaluated at most once per program, visit type and period within an
+ * evaluation, see PatientsEnrolledWithVisitCohortDefinitionEvaluator.
+ */
+public class PatientsEnrolledWithVisitCohortDefinition extends BaseCohortDefinition {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@ConfigurationProperty
+	private Program program;
+	
+	@ConfigurationProperty
+	private VisitType visitType;
+	
+	@ConfigurationProperty
+	private Date onOrAfter;
+	
+	@ConfigurationProperty
+	private Date onOrBefore;
+	
+	public PatientsEnrolledWithVisitCohortDefinition() {
+		super();
+	}
+	
+	public Program getProgram() {
+		return program;
+	}
+	
+	public void setProgram(Program program) {
+		this.program = program;
+	}
+	
+	public VisitType getVisitType() {
+		return visitType;
+	}
+	
+	public void setVisitType(VisitType visitType) {
+		this.visitType = visitType;
+	}
+	
+	public Date getOnOrAfter() {
+		return onOrAfter;
+	}
+	
+	public void setOnOrAfter(Date onOrAfter) {
+		this.onOrAfter = onOrAfter;
+	}
+	
+	public Date getOnOrBefore() {
+		return onOrBefore;
+	}
+	
+	public void setOnOrBefore(Date onOrBefore) {
+		this.onOrBefore = onOrBefore;
+	}
+}
@@ -0,0 +1,343 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import org.openmrs.Cohort;
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.evaluator.DataSetEvaluator;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao.DemographicsHandler;
+import org.openmrs.module.testingpecgreport.api.reporting.ColumnDemand;
+import org.openmrs.module.testingpecgreport.api.reporting.LocationPartitionedResult;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataVersion;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.PatientsEnrolledWithVisitCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.job.EvaluationWorkers;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJob;
+import org.openmrs.module.testingpecgreport.api.reporting.library.DefinitionRegistry;
+import org.openmrs.module.testingpecgreport.api.reporting.metrics.EvaluationMetrics;
+import org.openmrs.module.testingpecgreport.api.reporting.metrics.EvaluationRun;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Evaluates an {@link AgeSexDisaggregationDataSetDefinition} by reading the birthdate and gender of
+ * the base cohort once and filling every column from that single scan.
+ * <p>
+ * The values of closed periods are kept in the result store of {@link TestingPECGReportService},
+ * keyed by a version derived from the definition, so later runs of the same period skip the cohort
+ * and the scan altogether, until CohortChangeAdvice forgets them. Values computed while the
+ * {@link PECGDataVersion} changed are not stored. Evaluations restricted to a base cohort count a
+ * subset of the patients, they neither read nor write the store.
+ * <p>
+ * Only the columns in {@link ColumnDemand} are evaluated, the others are present with no value.
+ * <p>
+ * Each evaluation is recorded as a run in {@link EvaluationMetrics}, with the result store lookup,
+ * the cohort, the scan and the cardinality of every column.
+ * <p>
+ * {@link #evaluateByLocation(AgeSexDisaggregationDataSetDefinition, EvaluationContext)} evaluates
+ * the same cells for each visit location in parallel and merges their patients into the total.
+ */
+@Handler(supports = { AgeSexDisaggregationDataSetDefinition.class })
+public class AgeSexDisaggregationDataSetEvaluator implements DataSetEvaluator {
+	
+	/**
+	 * Smallest cohort whose demographics scan is split among the evaluation workers
+	 */
+	private static final int PARALLEL_SCAN_THRESHOLD = 20000;
+	
+	@Autowired
+	TestingPECGReportDao dao;
+	
+	@Autowired
+	TestingPECGReportService service;
+	
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+	
+	@Autowired
+	EvaluationWorkers workers;
+	
+	/**
+	 * @see DataSetEvaluator#evaluate(DataSetDefinition, EvaluationContext)
+	 */
+	public DataSet evaluate(DataSetDefinition dataSetDefinition, EvaluationContext context) throws EvaluationException {
+		AgeSexDisaggregationDataSetDefinition dsd = (AgeSexDisaggregationDataSetDefinition) dataSetDefinition;
+		Date startDate = (Date) context.getParameterValue("reportingStartDate");
+		Date endDate = (Date) context.getParameterValue("endDate");
+		List<DisaggregationColumn> columns = getEvaluatedColumns(dsd);
+		ReportJob.addSteps(dsd.getColumns().size() + 1);
+		EvaluationRun run = EvaluationMetrics.startRun(dsd.getName(), startDate, endDate);
+		try {
+			String version = null;
+			Map<String, Integer> values = null;
+			if (startDate != null && context.getBaseCohort() == null && service.isClosedPeriod(endDate)) {
+				long start = System.nanoTime();
+				version = getDefinitionVersion(dsd);
+				values = service.getIndicatorResults(version, startDate, endDate);
+				if (!values.keySet().containsAll(getColumnNames(columns))) {
+					values = null;
+				}
+				long nanos = System.nanoTime() - start;
+				run.setCacheHit(values != null);
+				EvaluationMetrics.record("resultStore:" + dsd.getName(), nanos, nanos, values == null ? 0 : values.size(),
+				    values != null);
+			}
+			
+			if (values == null) {
+				String dataVersion = PECGDataVersion.get();
+				values = compute(dsd, columns, context, endDate);
+				ReportJob.step("Evaluated the cohort of " + dsd.getName());
+				// values read while a write was being made could outlive its invalidation
+				if (version != null && dataVersion.equals(PECGDataVersion.get())) {
+					service.saveIndicatorResults(version, startDate, endDate, values);
+				}
+			} else {
+				ReportJob.step("Read the stored values of " + dsd.getName());
+			}
+			
+			MapDataSet ret = new MapDataSet(dsd, context);
+			for (DisaggregationColumn column : dsd.getColumns()) {
+				Integer value = values.get(column.getName());
+				ret.addData(new DataSetColumn(column.getName(), column.getLabel(), Integer.class), value);
+				if (value != null) {
+					run.addCardinality(column.getName(), value);
+				}
+				ReportJob.step(column.getName());
+			}
+			return ret;
+		}
+		finally {
+			EvaluationMetrics.finishRun(run);
+		}
+	}
+	
+	/**
+	 * Evaluates the cells of the definition for every visit location of its cohort, scanning the
+	 * demographics of each location on the evaluation workers. The total is counted on the union of
+	 * the per location patients, not on the sum of their counts, so a patient seen at several
+	 * locations counts once in it. Nothing is read from or written to the result store.
+	 * 
+	 * @param dsd a definition whose cohort is a {@link PatientsEnrolledWithVisitCohortDefinition}
+	 * @param context the context of the data set, with the reportingStartDate and endDate parameters
+	 * @return the cells per location and in total
+	 */
+	public LocationPartitionedResult evaluateByLocation(AgeSexDisaggregationDataSetDefinition dsd,
+	        EvaluationContext context) throws EvaluationException {
+		final Date endDate = (Date) context.getParameterValue("endDate");
+		final List<DisaggregationColumn> columns = getEvaluatedColumns(dsd);
+		long start = System.nanoTime();
+		Map<Integer, PatientIdBitmap> partitions = getLocationPartitions(dsd, context);
+		EvaluationMetrics.record("locations:" + dsd.getName(), System.nanoTime() - start, 0, partitions.size(), null);
+		
+		List<Integer> locationIds = new ArrayList<Integer>(partitions.keySet());
+		List<Callable<AgeSexDisaggregator>> tasks = new ArrayList<Callable<AgeSexDisaggregator>>();
+		for (Integer locationId : locationIds) {
+			final Cohort cohort = partitions.get(locationId).toCohort();
+			tasks.add(new Callable<AgeSexDisaggregator>() {
+				
+				public AgeSexDisaggregator call() {
+					return scanPartition(columns, cohort, endDate);
+				}
+			});
+		}
+		start = System.nanoTime();
+		List<AgeSexDisaggregator> partials;
+		try {
+			partials = workers.invokeAll(tasks);
+		}
+		catch (Exception e) {
+			throw new EvaluationException("demographics by location of " + dsd.getName(), e);
+		}
+		long scanNanos = System.nanoTime() - start;
+		EvaluationMetrics.record("scanByLocation:" + dsd.getName(), scanNanos, scanNanos, locationIds.size(), null);
+		
+		LocationPartitionedResult ret = new LocationPartitionedResult();
+		AgeSexDisaggregator total = new AgeSexDisaggregator(columns, endDate);
+		for (int i = 0; i < locationIds.size(); i++) {
+			ret.addLocation(locationIds.get(i), getValues(columns, partials.get(i)));
+			total.addAll(partials.get(i));
+		}
+		ret.setTotal(getValues(columns, total));
+		return ret;
+	}
+	
+	/**
+	 * @param dsd the data set definition
+	 * @return a version which changes whenever the structure of the definition does
+	 */
+	public static String getDefinitionVersion(AgeSexDisaggregationDataSetDefinition dsd) {
+		return UUID.nameUUIDFromBytes(DefinitionRegistry.getKey(dsd).getBytes()).toString();
+	}
+	
+	private Map<String, Integer> compute(AgeSexDisaggregationDataSetDefinition dsd, List<DisaggregationColumn> columns,
+	        EvaluationContext context, Date endDate) throws EvaluationException {
+		if (columns.isEmpty()) {
+			return new LinkedHashMap<String, Integer>();
+		}
+		Cohort cohort = context.getBaseCohort();
+		long start = System.nanoTime();
+		if (dsd.getCohortDefinition() != null) {
+			PatientIdBitmap members = PatientIdBitmap.of(cohortDefinitionService.evaluate(dsd.getCohortDefinition(),
+			    context));
+			if (cohort != null) {
+				members = members.and(PatientIdBitmap.of(cohort));
+			}
+			cohort = members.toCohort();
+			EvaluationMetrics.record("cohort:" + dsd.getName(), System.nanoTime() - start, 0, cohort.size(), null);
+		}
+		
+		start = System.nanoTime();
+		AgeSexDisaggregator disaggregator = scan(dsd, columns, cohort, endDate);
+		long scanNanos = System.nanoTime() - start;
+		EvaluationMetrics.record("scan:" + dsd.getName(), scanNanos, scanNanos, cohort == null ? 0 : cohort.size(), null);
+		
+		return getValues(columns, disaggregator);
+	}
+	
+	private Map<String, Integer> getValues(List<DisaggregationColumn> columns, AgeSexDisaggregator disaggregator) {
+		Map<String, Integer> ret = new LinkedHashMap<String, Integer>();
+		for (DisaggregationColumn column : columns) {
+			ret.put(column.getName(), disaggregator.getCells().get(column.getName()).getCardinality());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Splits the cohort of the definition by visit location with one query, restricted to the base
+	 * cohort of the context if any
+	 */
+	private Map<Integer, PatientIdBitmap> getLocationPartitions(AgeSexDisaggregationDataSetDefinition dsd,
+	        EvaluationContext context) {
+		Mapped<CohortDefinition> mapped = dsd.getCohortDefinition();
+		if (mapped == null || !(mapped.getParameterizable() instanceof PatientsEnrolledWithVisitCohortDefinition)) {
+			throw new IllegalArgumentException(dsd.getName()
+			        + " can only be partitioned by location with a PatientsEnrolledWithVisitCohortDefinition");
+		}
+		PatientsEnrolledWithVisitCohortDefinition cd = (PatientsEnrolledWithVisitCohortDefinition) mapped
+		        .getParameterizable();
+		EvaluationContext child = EvaluationContext.cloneForChild(context, mapped);
+		Date onOrAfter = child.containsParameter("onOrAfter") ? (Date) child.getParameterValue("onOrAfter") : cd
+		        .getOnOrAfter();
+		Date onOrBefore = child.containsParameter("onOrBefore") ? (Date) child.getParameterValue("onOrBefore") : cd
+		        .getOnOrBefore();
+		Map<Integer, PatientIdBitmap> ret = service.getPatientsEnrolledWithVisitByLocation(cd.getProgram(),
+		    cd.getVisitType(), onOrAfter, onOrBefore);
+		if (context.getBaseCohort() != null) {
+			PatientIdBitmap base = PatientIdBitmap.of(context.getBaseCohort());
+			Map<Integer, PatientIdBitmap> restricted = new LinkedHashMap<Integer, PatientIdBitmap>();
+			for (Map.Entry<Integer, PatientIdBitmap> partition : ret.entrySet()) {
+				PatientIdBitmap members = partition.getValue().and(base);
+				if (members.getCardinality() > 0) {
+					restricted.put(partition.getKey(), members);
+				}
+			}
+			ret = restricted;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Bins the cohort, splitting it among the evaluation workers when it is large and parallelism is
+	 * enabled. Every worker scans a contiguous range of patient ids into its own disaggregator.
+	 */
+	private AgeSexDisaggregator scan(final AgeSexDisaggregationDataSetDefinition dsd,
+	        final List<DisaggregationColumn> columns, Cohort cohort, final Date endDate) throws EvaluationException {
+		int parallelism = workers.getParallelism();
+		if (parallelism <= 1 || cohort == null || cohort.size() < PARALLEL_SCAN_THRESHOLD) {
+			return scanPartition(columns, cohort, endDate);
+		}
+		int[] ids = PatientIdBitmap.of(cohort).toArray();
+		int partitionSize = (ids.length + parallelism - 1) / parallelism;
+		List<Callable<AgeSexDisaggregator>> tasks = new ArrayList<Callable<AgeSexDisaggregator>>();
+		for (int from = 0; from < ids.length; from += partitionSize) {
+			final PatientIdBitmap partition = new PatientIdBitmap();
+			for (int i = from; i < Math.min(from + partitionSize, ids.length); i++) {
+				partition.add(ids[i]);
+			}
+			tasks.add(new Callable<AgeSexDisaggregator>() {
+				
+				public AgeSexDisaggregator call() {
+					return scanPartition(columns, partition.toCohort(), endDate);
+				}
+			});
+		}
+		try {
+			AgeSexDisaggregator ret = null;
+			for (AgeSexDisaggregator partial : workers.invokeAll(tasks)) {
+				if (ret == null) {
+					ret = partial;
+				} else {
+					ret.addAll(partial);
+				}
+			}
+			return ret;
+		}
+		catch (Exception e) {
+			throw new EvaluationException("demographics of " + dsd.getName(), e);
+		}
+	}
+	
+	private AgeSexDisaggregator scanPartition(List<DisaggregationColumn> columns, Cohort cohort, Date endDate) {
+		final AgeSexDisaggregator ret = new AgeSexDisaggregator(columns, endDate);
+		dao.scanDemographics(cohort, new DemographicsHandler() {
+			
+			public void handle(int patientId, Date birthdate, String gender) {
+				ret.add(patientId, birthdate, gender);
+			}
+		});
+		return ret;
+	}
+	
+	/**
+	 * @return the columns of the definition which are asked for, see {@link ColumnDemand}
+	 */
+	public static List<DisaggregationColumn> getEvaluatedColumns(AgeSexDisaggregationDataSetDefinition dsd) {
+		Set<String> demand = ColumnDemand.getColumns();
+		if (demand == null) {
+			return dsd.getColumns();
+		}
+		List<DisaggregationColumn> ret = new ArrayList<DisaggregationColumn>();
+		for (DisaggregationColumn column : dsd.getColumns()) {
+			if (demand.contains(column.getName())) {
+				ret.add(column);
+			}
+		}
+		return ret;
+	}
+	
+	private List<String> getColumnNames(List<DisaggregationColumn> columns) {
+		List<String> ret = new ArrayList<String>();
+		for (DisaggregationColumn column : columns) {
+			ret.add(column.getName());
+		}
+		return ret;
+	}
+}
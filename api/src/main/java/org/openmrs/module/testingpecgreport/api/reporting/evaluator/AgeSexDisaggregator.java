@@ -0,0 +1,165 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.common.DurationUnit;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+
+/**
+ * Bins patients into the columns of an AgeSexDisaggregationDataSetDefinition. The birthdate bounds of
+ * every age range are computed once, the same way the reporting module evaluates an
+ * AgeCohortDefinition, so each patient only costs a few date comparisons per column.
+ */
+public class AgeSexDisaggregator {
+	
+	private final List<DisaggregationColumn> columns;
+	
+	/**
+	 * Exclusive lower birthdate bound per column, null when the column has no maximum age
+	 */
+	private final Date[] minBirthdates;
+	
+	/**
+	 * Inclusive upper birthdate bound per column, the effective date when the column has no minimum
+	 * age so patients born after it are in no age range
+	 */
+	private final Date[] maxBirthdates;
+	
+	private final Map<String, PatientIdBitmap> cells = new LinkedHashMap<String, PatientIdBitmap>();
+	
+	public AgeSexDisaggregator(List<DisaggregationColumn> columns, Date effectiveDate) {
+		this.columns = columns;
+		this.minBirthdates = new Date[columns.size()];
+		this.maxBirthdates = new Date[columns.size()];
+		if (effectiveDate == null) {
+			effectiveDate = new Date();
+		}
+		for (int i = 0; i < columns.size(); i++) {
+			DisaggregationColumn column = columns.get(i);
+			AgeCohortDefinition ageRange = column.getAgeRange();
+			if (ageRange != null) {
+				if (ageRange.getMinAge() != null) {
+					maxBirthdates[i] = subtract(effectiveDate, ageRange.getMinAge(), ageRange.getMinAgeUnit());
+				} else {
+					maxBirthdates[i] = effectiveDate;
+				}
+				if (ageRange.getMaxAge() != null) {
+					minBirthdates[i] = subtract(effectiveDate, ageRange.getMaxAge() + 1, ageRange.getMaxAgeUnit());
+				}
+			}
+			cells.put(column.getName(), new PatientIdBitmap());
+		}
+	}
+	
+	/**
+	 * Adds the patient to every column whose age range and gender they match
+	 *
+	 * @param patientId the patient
+	 * @param birthdate the birthdate, may be null
+	 * @param gender the gender as stored on person, may be null
+	 */
+	public void add(int patientId, Date birthdate, String gender) {
+		for (int i = 0; i < columns.size(); i++) {
+			if (matches(i, birthdate, gender)) {
+				cells.get(columns.get(i).getName()).add(patientId);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the columns a patient would be added to, without adding them
+	 *
+	 * @param birthdate the birthdate, may be null
+	 * @param gender the gender as stored on person, may be null
+	 * @return the matching columns in column order
+	 */
+	public List<DisaggregationColumn> getMatchingColumns(Date birthdate, String gender) {
+		List<DisaggregationColumn> ret = new ArrayList<DisaggregationColumn>();
+		for (int i = 0; i < columns.size(); i++) {
+			if (matches(i, birthdate, gender)) {
+				ret.add(columns.get(i));
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Adds the patients binned by another disaggregator over the same columns, used to merge the
+	 * partial results of a parallel scan
+	 *
+	 * @param other a disaggregator built from the same columns and effective date
+	 */
+	public void addAll(AgeSexDisaggregator other) {
+		for (Map.Entry<String, PatientIdBitmap> cell : cells.entrySet()) {
+			cell.setValue(cell.getValue().or(other.cells.get(cell.getKey())));
+		}
+	}
+	
+	/**
+	 * @return the patient ids of each column, keyed by column name in column order
+	 */
+	public Map<String, PatientIdBitmap> getCells() {
+		return cells;
+	}
+	
+	private boolean matches(int column, Date birthdate, String gender) {
+		DisaggregationColumn c = columns.get(column);
+		return matchesGender(c.getGender(), gender) && matchesAge(column, c.getAgeRange(), birthdate);
+	}
+	
+	private boolean matchesAge(int column, AgeCohortDefinition ageRange, Date birthdate) {
+		if (ageRange == null) {
+			return true;
+		}
+		if (birthdate == null) {
+			return Boolean.TRUE.equals(ageRange.isUnknownAgeIncluded());
+		}
+		if (maxBirthdates[column] != null && birthdate.after(maxBirthdates[column])) {
+			return false;
+		}
+		if (minBirthdates[column] != null && !birthdate.after(minBirthdates[column])) {
+			return false;
+		}
+		return true;
+	}
+	
+	private static boolean matchesGender(GenderCohortDefinition genderCohort, String gender) {
+		if (genderCohort == null) {
+			return true;
+		}
+		if ("M".equals(gender)) {
+			return Boolean.TRUE.equals(genderCohort.isMaleIncluded());
+		}
+		if ("F".equals(gender)) {
+			return Boolean.TRUE.equals(genderCohort.isFemaleIncluded());
+		}
+		return Boolean.TRUE.equals(genderCohort.isUnknownGenderIncluded());
+	}
+	
+	private static Date subtract(Date date, int quantity, DurationUnit unit) {
+		if (unit == null) {
+			unit = DurationUnit.YEARS;
+		}
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		cal.add(unit.getCalendarField(), -quantity * unit.getFieldQuantity());
+		return cal.getTime();
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.BitmapCompositionCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.metrics.EvaluationMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Evaluates a {@link BitmapCompositionCohortDefinition}. Each search is evaluated once through the
+ * CohortDefinitionService and converted to a {@link PatientIdBitmap}, the composition string is then
+ * applied on the bitmaps. NOT is taken relative to the base cohort, or to all patients when there is
+ * none. The wall time, searches included, is recorded in {@link EvaluationMetrics} under
+ * composition:name.
+ */
+@Handler(supports = { BitmapCompositionCohortDefinition.class }, order = 50)
+public class BitmapCompositionCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
+	
+	@Autowired
+	TestingPECGReportDao dao;
+	
+	@Autowired
+	CohortDefinitionService cohortDefinitionService;
+	
+	/**
+	 * @see CohortDefinitionEvaluator#evaluate(CohortDefinition, EvaluationContext)
+	 */
+	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context)
+	        throws EvaluationException {
+		BitmapCompositionCohortDefinition cd = (BitmapCompositionCohortDefinition) cohortDefinition;
+		long start = System.nanoTime();
+		Composition composition = new Composition(cd, context);
+		PatientIdBitmap result = composition.parseExpression();
+		if (composition.position != composition.tokens.size()) {
+			throw new IllegalArgumentException("Unexpected '" + composition.tokens.get(composition.position)
+			        + "' in composition string: " + cd.getCompositionString());
+		}
+		EvaluationMetrics.record("composition:" + cd.getName(), System.nanoTime() - start, 0, result.getCardinality(),
+		    null);
+		return new EvaluatedCohort(result.toCohort(), cd, context);
+	}
+	
+	/**
+	 * Recursive descent over the composition string, NOT binding tighter than AND, and AND tighter
+	 * than OR.
+	 */
+	private class Composition {
+		
+		private final BitmapCompositionCohortDefinition definition;
+		
+		private final EvaluationContext context;
+		
+		private final List<String> tokens = new ArrayList<String>();
+		
+		private final Map<String, PatientIdBitmap> searches = new HashMap<String, PatientIdBitmap>();
+		
+		private PatientIdBitmap universe;
+		
+		private int position;
+		
+		Composition(BitmapCompositionCohortDefinition definition, EvaluationContext context) {
+			this.definition = definition;
+			this.context = context;
+			String compositionString = definition.getCompositionString().replace("(", " ( ").replace(")", " ) ");
+			for (String token : compositionString.trim().split("\\s+")) {
+				if (token.length() > 0) {
+					tokens.add(token);
+				}
+			}
+		}
+		
+		PatientIdBitmap parseExpression() throws EvaluationException {
+			PatientIdBitmap ret = parseTerm();
+			while (accept("or")) {
+				ret = ret.or(parseTerm());
+			}
+			return ret;
+		}
+		
+		PatientIdBitmap parseTerm() throws EvaluationException {
+			PatientIdBitmap ret = parseFactor();
+			while (accept("and")) {
+				ret = ret.and(parseFactor());
+			}
+			return ret;
+		}
+		
+		PatientIdBitmap parseFactor() throws EvaluationException {
+			if (accept("not")) {
+				return getUniverse().andNot(parseFactor());
+			}
+			if (accept("(")) {
+				PatientIdBitmap ret = parseExpression();
+				if (!accept(")")) {
+					throw new IllegalArgumentException("Missing ')' in composition string: "
+					        + definition.getCompositionString());
+				}
+				return ret;
+			}
+			if (position == tokens.size()) {
+				throw new IllegalArgumentException("Incomplete composition string: " + definition.getCompositionString());
+			}
+			return getSearch(tokens.get(position++));
+		}
+		
+		private boolean accept(String token) {
+			if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(token)) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+		
+		private PatientIdBitmap getSearch(String key) throws EvaluationException {
+			PatientIdBitmap ret = searches.get(key);
+			if (ret == null) {
+				Mapped<CohortDefinition> search = definition.getSearches().get(key);
+				if (search == null) {
+					throw new IllegalArgumentException("No search named " + key + " in composition string: "
+					        + definition.getCompositionString());
+				}
+				ret = PatientIdBitmap.of(cohortDefinitionService.evaluate(search, context));
+				searches.put(key, ret);
+			}
+			return ret;
+		}
+		
+		private PatientIdBitmap getUniverse() {
+			if (universe == null) {
+				universe = context.getBaseCohort() == null ? dao.getPatientIds() : PatientIdBitmap.of(context
+				        .getBaseCohort());
+			}
+			return universe;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.PatientsEnrolledWithVisitCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.metrics.EvaluationMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Evaluates a {@link PatientsEnrolledWithVisitCohortDefinition}. The query result is kept in the
+ * evaluation context cache, which is shared by the report and all of its data sets, so the query runs
+ * once per program, visit type and period no matter how the parameters were mapped to it. Across
+ * evaluations the result is kept in the {@link CohortResultCache}, which is evicted by visit and
+ * program enrollment writes. Every
+ * evaluation is recorded in {@link EvaluationMetrics} under cohort:name, with the query time on a
+ * cache miss.
+ */
+@Handler(supports = { PatientsEnrolledWithVisitCohortDefinition.class })
+public class PatientsEnrolledWithVisitCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
+	
+	private static final AtomicLong queryCount = new AtomicLong();
+	
+	private static final AtomicLong cacheHitCount = new AtomicLong();
+	
+	@Autowired
+	TestingPECGReportService service;
+	
+	/**
+	 * @see CohortDefinitionEvaluator#evaluate(CohortDefinition, EvaluationContext)
+	 */
+	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context)
+	        throws EvaluationException {
+		PatientsEnrolledWithVisitCohortDefinition cd = (PatientsEnrolledWithVisitCohortDefinition) cohortDefinition;
+		long start = System.nanoTime();
+		long sqlNanos = 0;
+		
+		String key = getCacheKey(cd);
+		PatientIdBitmap memberIds = (PatientIdBitmap) context.getFromCache(key);
+		if (memberIds == null) {
+			memberIds = CohortResultCache.get(key);
+			if (memberIds != null) {
+				context.addToCache(key, memberIds);
+			}
+		}
+		boolean cacheHit = memberIds != null;
+		if (memberIds == null) {
+			long generation = CohortResultCache.getGeneration();
+			memberIds = service.getPatientsEnrolledWithVisit(cd.getProgram(), cd.getVisitType(), cd.getOnOrAfter(),
+			    cd.getOnOrBefore());
+			sqlNanos = System.nanoTime() - start;
+			context.addToCache(key, memberIds);
+			CohortResultCache.put(key, cd.getOnOrAfter(), cd.getOnOrBefore(), memberIds, generation);
+			queryCount.incrementAndGet();
+		} else {
+			cacheHitCount.incrementAndGet();
+		}
+		EvaluatedCohort ret = new EvaluatedCohort(memberIds.toCohort(), cd, context);
+		EvaluationMetrics.record("cohort:" + cd.getName(), System.nanoTime() - start, sqlNanos, ret.size(), cacheHit);
+		return ret;
+	}
+	
+	/**
+	 * @return how many times the enrollment query was run against the database since startup
+	 */
+	public static long getQueryCount() {
+		return queryCount.get();
+	}
+	
+	/**
+	 * @return how many evaluations were answered from the evaluation context cache or the
+	 *         {@link CohortResultCache} since startup
+	 */
+	public static long getCacheHitCount() {
+		return cacheHitCount.get();
+	}
+	
+	private static String getCacheKey(PatientsEnrolledWithVisitCohortDefinition cd) {
+		return PatientsEnrolledWithVisitCohortDefinition.class.getName() + ":"
+		        + (cd.getProgram() == null ? null : cd.getProgram().getProgramId()) + ":"
+		        + (cd.getVisitType() == null ? null : cd.getVisitType().getVisitTypeId()) + ":"
+		        + getTime(cd.getOnOrAfter()) + ":" + getTime(cd.getOnOrBefore());
+	}
+	
+	private static Long getTime(Date date) {
+		return date == null ? null : date.getTime();
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the parts of an evaluation that can be split, such as the demographics scan of a large
+ * cohort, on a pool shared by all evaluations. Its size is read from
+ * {@link TestingPECGReportConfig#GP_EVALUATION_PARALLELISM} on every call so the load put on the
+ * database can be tuned without a restart. Each task runs in its own session as the calling user.
+ */
+@Component("testingpecgreport.EvaluationWorkers")
+public class EvaluationWorkers {
+	
+	private static final int MAX_PARALLELISM = 32;
+	
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+	        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		
+		        private final AtomicInteger count = new AtomicInteger();
+		
+		        public Thread newThread(Runnable runnable) {
+			        Thread thread = new Thread(runnable, "testingpecgreport-worker-" + count.incrementAndGet());
+			        thread.setDaemon(true);
+			        return thread;
+		        }
+	        });
+	
+	public EvaluationWorkers() {
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * @return the configured number of workers, 1 meaning that evaluations are not split
+	 */
+	public int getParallelism() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    TestingPECGReportConfig.GP_EVALUATION_PARALLELISM);
+		if (StringUtils.isBlank(value)) {
+			return 1;
+		}
+		try {
+			return Math.max(1, Math.min(MAX_PARALLELISM, Integer.parseInt(value.trim())));
+		}
+		catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+	
+	/**
+	 * Runs the tasks on the pool and waits for all of them.
+	 * 
+	 * @param tasks the tasks
+	 * @return their results, in the order of the tasks
+	 * @throws Exception the failure of the first failed task
+	 */
+	public <T> List<T> invokeAll(List<Callable<T>> tasks) throws Exception {
+		resize(getParallelism());
+		final UserContext userContext = Context.getUserContext();
+		List<Callable<T>> scoped = new ArrayList<Callable<T>>();
+		for (final Callable<T> task : tasks) {
+			scoped.add(new Callable<T>() {
+				
+				public T call() throws Exception {
+					Context.openSession();
+					try {
+						Context.setUserContext(userContext);
+						return task.call();
+					}
+					finally {
+						Context.closeSession();
+					}
+				}
+			});
+		}
+		List<T> ret = new ArrayList<T>();
+		for (Future<T> future : executor.invokeAll(scoped)) {
+			try {
+				ret.add(future.get());
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+		return ret;
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	private synchronized void resize(int size) {
+		if (size > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
+		} else if (size < executor.getMaximumPoolSize()) {
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.job;
+
+import java.io.File;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+
+/**
+ * A unit of work run in the background by {@link ReportJobManager}, together with its progress and
+ * result. Code running inside a job reports its progress through the static {@link #addSteps(int)}
+ * and {@link #step(String)}, which do nothing outside of a job.
+ */
+public class ReportJob {
+	
+	private static final Log log = LogFactory.getLog(ReportJob.class);
+	
+	private static final ThreadLocal<ReportJob> current = new ThreadLocal<ReportJob>();
+	
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, FAILED
+	}
+	
+	/**
+	 * The work done by a job
+	 */
+	public interface Work {
+		
+		void run(ReportJob job) throws Exception;
+	}
+	
+	private final String id = UUID.randomUUID().toString();
+	
+	private final String name;
+	
+	private final Integer ownerId;
+	
+	private final Date dateQueued = new Date();
+	
+	private volatile Date dateStarted;
+	
+	private volatile Date dateFinished;
+	
+	private volatile Status status = Status.QUEUED;
+	
+	private final AtomicInteger totalSteps = new AtomicInteger();
+	
+	private final AtomicInteger completedSteps = new AtomicInteger();
+	
+	private volatile String currentStep;
+	
+	private volatile String error;
+	
+	private volatile byte[] result;
+	
+	private volatile File resultFile;
+	
+	private volatile String resultFilename;
+	
+	private volatile String resultContentType;
+	
+	public ReportJob(String name) {
+		this(name, null);
+	}
+	
+	/**
+	 * @param name a description of the work
+	 * @param owner the user who submitted the job, the only one allowed to see it
+	 */
+	public ReportJob(String name, User owner) {
+		this.name = name;
+		this.ownerId = owner == null ? null : owner.getUserId();
+	}
+	
+	/**
+	 * @return the job running in the current thread, or null
+	 */
+	public static ReportJob getCurrent() {
+		return current.get();
+	}
+	
+	/**
+	 * Announces steps still to be done by the job running in the current thread, if any
+	 */
+	public static void addSteps(int steps) {
+		ReportJob job = current.get();
+		if (job != null) {
+			job.totalSteps.addAndGet(steps);
+		}
+	}
+	
+	/**
+	 * Marks one step of the job running in the current thread, if any, as done
+	 */
+	public static void step(String description) {
+		ReportJob job = current.get();
+		if (job != null) {
+			job.currentStep = description;
+			job.completedSteps.incrementAndGet();
+		}
+	}
+	
+	void run(Work work) {
+		dateStarted = new Date();
+		status = Status.RUNNING;
+		current.set(this);
+		try {
+			work.run(this);
+			status = Status.COMPLETED;
+		}
+		catch (Throwable t) {
+			log.error("PECG job " + name + " failed", t);
+			error = t.getMessage() == null ? t.getClass().getName() : t.getMessage();
+			status = Status.FAILED;
+		}
+		finally {
+			current.remove();
+			dateFinished = new Date();
+		}
+	}
+	
+	public void setResult(byte[] result, String filename, String contentType) {
+		this.resultFilename = filename;
+		this.resultContentType = contentType;
+		this.result = result;
+	}
+	
+	/**
+	 * Sets a result too large to be kept in memory, the file is deleted when the job is discarded.
+	 */
+	public void setResultFile(File resultFile, String filename, String contentType) {
+		this.resultFilename = filename;
+		this.resultContentType = contentType;
+		this.resultFile = resultFile;
+	}
+	
+	/**
+	 * @return whether the job has a result, in memory or in a file
+	 */
+	public boolean hasResult() {
+		return result != null || resultFile != null;
+	}
+	
+	/**
+	 * Deletes the result file, if any
+	 */
+	public void discardResult() {
+		File file = resultFile;
+		resultFile = null;
+		result = null;
+		if (file != null && file.exists() && !file.delete()) {
+			log.warn("Unable to delete the result of PECG job " + name + ": " + file);
+		}
+	}
+	
+	/**
+	 * @return the share of announced steps done, 100 once the job is finished
+	 */
+	public int getPercentComplete() {
+		if (isFinished()) {
+			return 100;
+		}
+		int total = totalSteps.get();
+		return total == 0 ? 0 : Math.min(99, completedSteps.get() * 100 / total);
+	}
+	
+	/**
+	 * @return whether the user submitted the job, jobs without an owner belong to nobody
+	 */
+	public boolean isOwnedBy(User user) {
+		return ownerId != null && user != null && ownerId.equals(user.getUserId());
+	}
+	
+	public boolean isFinished() {
+		return status == Status.COMPLETED || status == Status.FAILED;
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public Date getDateQueued() {
+		return dateQueued;
+	}
+	
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+	
+	public Date getDateFinished() {
+		return dateFinished;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	public int getTotalSteps() {
+		return totalSteps.get();
+	}
+	
+	public int getCompletedSteps() {
+		return completedSteps.get();
+	}
+	
+	public String getCurrentStep() {
+		return currentStep;
+	}
+	
+	public String getError() {
+		return error;
+	}
+	
+	public byte[] getResult() {
+		return result;
+	}
+	
+	public File getResultFile() {
+		return resultFile;
+	}
+	
+	public String getResultFilename() {
+		return resultFilename;
+	}
+	
+	public String getResultContentType() {
+		return resultContentType;
+	}
+}
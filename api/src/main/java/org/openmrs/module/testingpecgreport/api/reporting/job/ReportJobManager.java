@@ -0,0 +1,139 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs long PECG operations, such as registering or evaluating the report, on a small bounded pool
+ * owned by the module so they do not hold servlet threads. Jobs run as the user who submitted them
+ * and are kept for an hour after they finish so their status and result can be fetched by that user
+ * only.
+ */
+@Component("testingpecgreport.ReportJobManager")
+public class ReportJobManager {
+	
+	private static final int POOL_SIZE = 2;
+	
+	private static final int QUEUE_CAPACITY = 20;
+	
+	private static final long RETENTION_MILLIS = 60 * 60 * 1000;
+	
+	private final ConcurrentMap<String, ReportJob> jobs = new ConcurrentHashMap<String, ReportJob>();
+	
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+	        new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+		
+		        private final AtomicInteger count = new AtomicInteger();
+		
+		        public Thread newThread(Runnable runnable) {
+			        Thread thread = new Thread(runnable, "testingpecgreport-job-" + count.incrementAndGet());
+			        thread.setDaemon(true);
+			        return thread;
+		        }
+	        });
+	
+	/**
+	 * Queues work to be run in the background as the authenticated user.
+	 * 
+	 * @param name a description of the work
+	 * @param work the work
+	 * @return the queued job
+	 * @throws APIException if the queue is full
+	 */
+	public ReportJob submit(String name, final ReportJob.Work work) throws APIException {
+		purgeFinishedJobs();
+		final UserContext userContext = Context.getUserContext();
+		final ReportJob job = new ReportJob(name, userContext.getAuthenticatedUser());
+		jobs.put(job.getId(), job);
+		try {
+			executor.execute(new Runnable() {
+				
+				public void run() {
+					Context.openSession();
+					try {
+						Context.setUserContext(userContext);
+						job.run(work);
+					}
+					finally {
+						Context.closeSession();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			throw new APIException("Too many PECG jobs are queued, try again later", e);
+		}
+		return job;
+	}
+	
+	/**
+	 * @param id the job id
+	 * @return the job, or null if it is unknown, was purged or was not submitted by the authenticated
+	 *         user
+	 */
+	public ReportJob getJob(String id) {
+		ReportJob job = id == null ? null : jobs.get(id);
+		return job != null && job.isOwnedBy(Context.getAuthenticatedUser()) ? job : null;
+	}
+	
+	/**
+	 * @return the known jobs, most recent first
+	 */
+	public List<ReportJob> getJobs() {
+		List<ReportJob> ret = new ArrayList<ReportJob>(jobs.values());
+		Collections.sort(ret, new Comparator<ReportJob>() {
+			
+			public int compare(ReportJob left, ReportJob right) {
+				return right.getDateQueued().compareTo(left.getDateQueued());
+			}
+		});
+		return ret;
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+		for (ReportJob job : jobs.values()) {
+			job.discardResult();
+		}
+	}
+	
+	private void purgeFinishedJobs() {
+		long oldest = System.currentTimeMillis() - RETENTION_MILLIS;
+		for (Iterator<ReportJob> it = jobs.values().iterator(); it.hasNext();) {
+			ReportJob job = it.next();
+			if (job.isFinished() && job.getDateFinished().getTime() < oldest) {
+				it.remove();
+				job.discardResult();
+			}
+		}
+	}
+}
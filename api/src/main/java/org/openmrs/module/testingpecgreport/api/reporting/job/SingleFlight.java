@@ -0,0 +1,140 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.job;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Coalesces concurrent identical computations: the first caller for a key runs it and the callers
+ * arriving while it runs wait for its result instead of starting their own. Distinct computations
+ * take turns on a fair semaphore so only a few run at once, and callers are refused when too many
+ * distinct computations are already running or waiting. Several SingleFlights may share a
+ * {@link Limit} so their computations count against the same bounds.
+ */
+public class SingleFlight<T> {
+	
+	private final ConcurrentMap<String, FutureTask<T>> inFlight = new ConcurrentHashMap<String, FutureTask<T>>();
+	
+	private final Limit limit;
+	
+	private final AtomicInteger coalesced = new AtomicInteger();
+	
+	/**
+	 * Bounds the distinct computations of the SingleFlights sharing it
+	 */
+	public static class Limit {
+		
+		private final Semaphore permits;
+		
+		private final int maxFlights;
+		
+		private final AtomicInteger flights = new AtomicInteger();
+		
+		/**
+		 * @param maxRunning how many distinct computations may run at once
+		 * @param maxWaiting how many distinct computations may wait for their turn
+		 */
+		public Limit(int maxRunning, int maxWaiting) {
+			this.permits = new Semaphore(maxRunning, true);
+			this.maxFlights = maxRunning + maxWaiting;
+		}
+	}
+	
+	/**
+	 * @param maxRunning how many distinct computations may run at once
+	 * @param maxWaiting how many distinct computations may wait for their turn
+	 */
+	public SingleFlight(int maxRunning, int maxWaiting) {
+		this(new Limit(maxRunning, maxWaiting));
+	}
+	
+	/**
+	 * @param limit the bounds, possibly shared with other SingleFlights
+	 */
+	public SingleFlight(Limit limit) {
+		this.limit = limit;
+	}
+	
+	/**
+	 * Runs the computation unless one with the same key is in flight, in which case its result is
+	 * returned.
+	 * 
+	 * @param key identifies the computation
+	 * @param computation the computation
+	 * @return the result of the computation with the key
+	 * @throws APIException if too many distinct computations are in flight
+	 * @throws Exception the failure of the computation
+	 */
+	public T run(String key, Callable<T> computation) throws Exception {
+		FutureTask<T> task = new FutureTask<T>(computation);
+		FutureTask<T> existing = inFlight.putIfAbsent(key, task);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return get(existing);
+		}
+		try {
+			if (limit.flights.incrementAndGet() > limit.maxFlights) {
+				throw new APIException("Too many PECG evaluations are running, try again later");
+			}
+			limit.permits.acquire();
+			try {
+				task.run();
+			}
+			finally {
+				limit.permits.release();
+			}
+		}
+		finally {
+			limit.flights.decrementAndGet();
+			inFlight.remove(key, task);
+			// followers waiting on a refused or interrupted flight must not wait forever
+			task.cancel(false);
+		}
+		return get(task);
+	}
+	
+	/**
+	 * @return the number of distinct computations running or waiting
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	/**
+	 * @return how many callers were given the result of a computation already in flight
+	 */
+	public int getCoalescedCount() {
+		return coalesced.get();
+	}
+	
+	private T get(FutureTask<T> task) throws Exception {
+		try {
+			return task.get();
+		}
+		catch (CancellationException e) {
+			throw new APIException("The PECG evaluation this request was waiting for did not complete, try again", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
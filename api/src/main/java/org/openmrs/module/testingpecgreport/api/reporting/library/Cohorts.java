@@ -21,11 +21,12 @@ import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
-import org.openmrs.module.reporting.cohort.definition.SqlCohortDefinition;
 import org.openmrs.module.reporting.common.DurationUnit;
 import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
 import org.openmrs.module.reporting.evaluation.parameter.ParameterizableUtil;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.BitmapCompositionCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.PatientsEnrolledWithVisitCohortDefinition;
 
 public class Cohorts {
 	
@@ -36,7 +37,7 @@ public class Cohorts {
 		males.setName("male Patients");
 		males.setMaleIncluded(true);
 		males.setFemaleIncluded(false);
-		return males;
+		return DefinitionRegistry.intern(males);
 	}
 	
 	public static GenderCohortDefinition getFemales() {
@@ -44,25 +45,41 @@ public class Cohorts {
 		females.setName("female Patients");
 		females.setMaleIncluded(false);
 		females.setFemaleIncluded(true);
-		return females;
+		return DefinitionRegistry.intern(females);
+	}
+	
+	public static GenderCohortDefinition getMalesAndFemales() {
+		GenderCohortDefinition malesAndFemales = new GenderCohortDefinition();
+		malesAndFemales.setName("male and female Patients");
+		malesAndFemales.setMaleIncluded(true);
+		malesAndFemales.setFemaleIncluded(true);
+		return DefinitionRegistry.intern(malesAndFemales);
 	}
 	
 	public static AgeCohortDefinition patientWithAgeBelow(int age) {
+		return patientWithAgeBelow("patientsWithAgebelow", age);
+	}
+	
+	public static AgeCohortDefinition patientWithAgeBelow(String name, int age) {
 		AgeCohortDefinition patientsWithAgebelow = new AgeCohortDefinition();
-		patientsWithAgebelow.setName("patientsWithAgebelow");
+		patientsWithAgebelow.setName(name);
 		patientsWithAgebelow.addParameter(new Parameter("effectiveDate", "effectiveDate", Date.class));
 		patientsWithAgebelow.setMaxAge(age - 1);
 		patientsWithAgebelow.setMaxAgeUnit(DurationUnit.YEARS);
-		return patientsWithAgebelow;
+		return DefinitionRegistry.intern(patientsWithAgebelow);
 	}
 	
 	public static AgeCohortDefinition patientWithAgeAbove(int age) {
+		return patientWithAgeAbove("patientsWithAge", age);
+	}
+	
+	public static AgeCohortDefinition patientWithAgeAbove(String name, int age) {
 		AgeCohortDefinition patientsWithAge = new AgeCohortDefinition();
-		patientsWithAge.setName("patientsWithAge");
+		patientsWithAge.setName(name);
 		patientsWithAge.addParameter(new Parameter("effectiveDate", "effectiveDate", Date.class));
 		patientsWithAge.setMinAge(age);
 		patientsWithAge.setMinAgeUnit(DurationUnit.YEARS);
-		return patientsWithAge;
+		return DefinitionRegistry.intern(patientsWithAge);
 	}
 	
 	public static AgeCohortDefinition createXtoYAgeCohort(String name, int minAge, int maxAge) {
@@ -71,7 +88,7 @@ public class Cohorts {
 		xToYCohort.setMaxAge(new Integer(maxAge));
 		xToYCohort.setMinAge(new Integer(minAge));
 		xToYCohort.addParameter(new Parameter("effectiveDate", "endDate", Date.class));
-		return xToYCohort;
+		return DefinitionRegistry.intern(xToYCohort);
 	}
 	
 	public static AgeCohortDefinition createOverXAgeCohort(String name, int minAge) {
@@ -79,44 +96,42 @@ public class Cohorts {
 		overXCohort.setName(name);
 		overXCohort.setMinAge(new Integer(minAge));
 		overXCohort.addParameter(new Parameter("effectiveDate", "endDate", Date.class));
-		return overXCohort;
+		return DefinitionRegistry.intern(overXCohort);
 	}
 	
 	public static CompositionCohortDefinition getpatientInYearRange(AgeCohortDefinition ageCohort, GenderCohortDefinition genderCohort) {
 		
-		CompositionCohortDefinition patientInYearRange = new CompositionCohortDefinition();
+		CompositionCohortDefinition patientInYearRange = new BitmapCompositionCohortDefinition();
 		patientInYearRange.setName("patientInYearRangeEnrolledInHIVStarted");
 		patientInYearRange.addParameter(new Parameter("effectiveDate", "effectiveDate", Date.class));
 		patientInYearRange.getSearches().put("1", new Mapped<CohortDefinition>(ageCohort, ParameterizableUtil.createParameterMappings("effectiveDate=${effectiveDate}")));
 		patientInYearRange.getSearches().put("2", new Mapped<CohortDefinition>(genderCohort, null));
 		patientInYearRange.setCompositionString("1 and 2");
-		return patientInYearRange;
+		return DefinitionRegistry.identify(patientInYearRange);
 		
 	}
 	
 	public static CompositionCohortDefinition getAllPatientsByGender(GenderCohortDefinition males, GenderCohortDefinition females) {
 		
-		CompositionCohortDefinition allPatients = new CompositionCohortDefinition();
+		CompositionCohortDefinition allPatients = new BitmapCompositionCohortDefinition();
 		allPatients.setName("patientInYearRangeEnrolledInHIVStarted");
 		allPatients.addParameter(new Parameter("effectiveDate", "effectiveDate", Date.class));
 		allPatients.getSearches().put("1", new Mapped<CohortDefinition>(males, null));
 		allPatients.getSearches().put("2", new Mapped<CohortDefinition>(females, null));
 		allPatients.setCompositionString("1 or 2");
-		return allPatients;
+		return DefinitionRegistry.identify(allPatients);
 	}
 	
 	public static List<AgeCohortDefinition> getAllAgeRanges() {
 		
-		AgeCohortDefinition PatientBelow1Year = Cohorts.patientWithAgeBelow(1);
-		PatientBelow1Year.setName("PatientBelow1Year");
+		AgeCohortDefinition PatientBelow1Year = Cohorts.patientWithAgeBelow("PatientBelow1Year", 1);
 		AgeCohortDefinition PatientBetween1And4Years = Cohorts.createXtoYAgeCohort("PatientBetween1And4Years", 1, 4);
 		AgeCohortDefinition PatientBetween5And9Years = Cohorts.createXtoYAgeCohort("PatientBetween5And9Years", 5, 9);
 		AgeCohortDefinition PatientBetween10And14Years = Cohorts.createXtoYAgeCohort("PatientBetween10And14Years", 10, 14);
 		AgeCohortDefinition PatientBetween15And19Years = Cohorts.createXtoYAgeCohort("PatientBetween15And19Years", 15, 19);
 		AgeCohortDefinition PatientBetween20And24Years = Cohorts.createXtoYAgeCohort("PatientBetween20And24Years", 20, 24);
 		AgeCohortDefinition PatientBetween25And49Years = Cohorts.createXtoYAgeCohort("PatientBetween25And49Years", 25, 49);
-		AgeCohortDefinition PatientBetween50YearsAndAbove = Cohorts.patientWithAgeAbove(50);
-		PatientBetween50YearsAndAbove.setName("PatientBetween50YearsAndAbove");
+		AgeCohortDefinition PatientBetween50YearsAndAbove = Cohorts.patientWithAgeAbove("PatientBetween50YearsAndAbove", 50);
 		
 		ArrayList<AgeCohortDefinition> allAgeRanges = new ArrayList<AgeCohortDefinition>();
 		allAgeRanges.add(PatientBelow1Year);
@@ -131,17 +146,18 @@ public class Cohorts {
 	}
 	
 	/*
-	 * Just to demo that you can use SQL queries for cohort definitions.
+	 * The query itself lives in TestingPECGReportDao, the evaluator keeps its result for the whole report run.
 	 * You can achieve the same here using a Program Enrollment Query and a VisitCohortDefinition from the reporting module
 	 */
-	public static SqlCohortDefinition getPatientEnrolledInProgramWithUPECVisit(Program HIVProgram, VisitType UPECVisitType) {
-		SqlCohortDefinition patientEnrolledInProgramWithUPECVisit = new SqlCohortDefinition();
+	public static PatientsEnrolledWithVisitCohortDefinition getPatientEnrolledInProgramWithUPECVisit(Program HIVProgram, VisitType UPECVisitType) {
+		PatientsEnrolledWithVisitCohortDefinition patientEnrolledInProgramWithUPECVisit = new PatientsEnrolledWithVisitCohortDefinition();
 		patientEnrolledInProgramWithUPECVisit.setName("patientWithHIVOutcomes");
-		patientEnrolledInProgramWithUPECVisit.setQuery("select v.patient_id from visit v,patient_program pp where v.visit_type_id=" + UPECVisitType.getVisitTypeId() + " and v.patient_id=pp.patient_id and pp.program_id=" + HIVProgram.getProgramId() + " and pp.voided=0 and pp.date_enrolled <= :onOrBefore" + " and (pp.date_completed >= :onOrAfter or pp.date_completed is null)" + " and v.voided=0 and v.date_started >= :onOrAfter and v.date_started <= :onOrBefore");
+		patientEnrolledInProgramWithUPECVisit.setProgram(HIVProgram);
+		patientEnrolledInProgramWithUPECVisit.setVisitType(UPECVisitType);
 		
 		patientEnrolledInProgramWithUPECVisit.addParameter(new Parameter("onOrAfter", "onOrAfter", Date.class));
 		patientEnrolledInProgramWithUPECVisit.addParameter(new Parameter("onOrBefore", "onOrBefore", Date.class));
-		return patientEnrolledInProgramWithUPECVisit;
+		return DefinitionRegistry.intern(patientEnrolledInProgramWithUPECVisit);
 	}
 	
 }
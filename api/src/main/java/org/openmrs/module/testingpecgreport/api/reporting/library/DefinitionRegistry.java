@@ -0,0 +1,172 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.library;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.reporting.definition.configuration.ConfigurationProperty;
+import org.openmrs.module.reporting.evaluation.Definition;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+
+/**
+ * Interns structurally equal definitions to one canonical instance. Two definitions are equal when
+ * they have the same class, name, parameters and configuration property values, nested definitions
+ * and parameter mappings included. Every definition passed through the registry gets a uuid derived
+ * from that key so it is the same across report runs and server restarts.
+ * <p>
+ * Canonical instances are only kept while a report definition is being built, between
+ * {@link #beginScope()} and {@link #endScope()} on the building thread. Outside a scope definitions
+ * only get their uuid and are never retained. Canonical instances are shared within the scope,
+ * callers must finish configuring a definition before interning it and must not modify it
+ * afterwards.
+ */
+public class DefinitionRegistry {
+	
+	private static final ThreadLocal<Map<String, Definition>> definitions = new ThreadLocal<Map<String, Definition>>();
+	
+	/**
+	 * Starts keeping canonical instances for the current thread, until {@link #endScope()}
+	 */
+	public static void beginScope() {
+		definitions.set(new HashMap<String, Definition>());
+	}
+	
+	/**
+	 * Forgets the canonical instances kept for the current thread
+	 */
+	public static void endScope() {
+		definitions.remove();
+	}
+	
+	/**
+	 * Returns the canonical instance structurally equal to the given definition, registering the
+	 * given definition if there is none yet. Outside a scope the given definition is returned.
+	 *
+	 * @param definition a fully configured definition
+	 * @return the canonical instance
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Definition> T intern(T definition) {
+		String key = getKey(definition);
+		Map<String, Definition> scope = definitions.get();
+		Definition canonical = scope == null ? null : scope.get(key);
+		if (canonical == null) {
+			canonical = identify(definition, key);
+			if (scope != null) {
+				scope.put(key, canonical);
+			}
+		}
+		return (T) canonical;
+	}
+	
+	/**
+	 * Gives the definition the uuid derived from its structural key without registering it
+	 *
+	 * @param definition a fully configured definition
+	 * @return the given definition
+	 */
+	public static <T extends Definition> T identify(T definition) {
+		return identify(definition, getKey(definition));
+	}
+	
+	private static <T extends Definition> T identify(T definition, String key) {
+		definition.setUuid(UUID.nameUUIDFromBytes(key.getBytes()).toString());
+		return definition;
+	}
+	
+	/**
+	 * Builds the structural key of a definition, which does not depend on its uuid or description.
+	 *
+	 * @param definition the definition
+	 * @return the key
+	 */
+	public static String getKey(Definition definition) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(definition.getClass().getName()).append("[name=").append(definition.getName());
+		
+		List<String> parameters = new ArrayList<String>();
+		for (Parameter parameter : definition.getParameters()) {
+			parameters.add(parameter.getName() + ":" + parameter.getType().getName());
+		}
+		Collections.sort(parameters);
+		sb.append(";parameters=").append(parameters);
+		
+		Map<String, String> properties = new TreeMap<String, String>();
+		for (Class<?> c = definition.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (field.isAnnotationPresent(ConfigurationProperty.class) && !properties.containsKey(field.getName())) {
+					field.setAccessible(true);
+					try {
+						properties.put(field.getName(), getValueKey(field.get(definition)));
+					}
+					catch (IllegalAccessException e) {
+						throw new IllegalStateException("Unable to read " + field.getName() + " of " + definition, e);
+					}
+				}
+			}
+		}
+		return sb.append(";properties=").append(properties).append("]").toString();
+	}
+	
+	private static String getValueKey(Object value) {
+		if (value == null) {
+			return "null";
+		}
+		if (value instanceof Definition) {
+			return getKey((Definition) value);
+		}
+		if (value instanceof Mapped) {
+			Mapped<?> mapped = (Mapped<?>) value;
+			String parameterizable = mapped.getParameterizable() == null ? "null" : getValueKey(mapped
+			        .getParameterizable());
+			Map<String, Object> mappings = new TreeMap<String, Object>();
+			if (mapped.getParameterMappings() != null) {
+				mappings.putAll(mapped.getParameterMappings());
+			}
+			return "mapped(" + parameterizable + "," + mappings + ")";
+		}
+		if (value instanceof OpenmrsObject) {
+			return value.getClass().getName() + "#" + ((OpenmrsObject) value).getUuid();
+		}
+		if (value instanceof Date) {
+			return "date:" + ((Date) value).getTime();
+		}
+		if (value instanceof Collection) {
+			List<String> items = new ArrayList<String>();
+			for (Object item : (Collection<?>) value) {
+				items.add(getValueKey(item));
+			}
+			if (value instanceof Set) {
+				Collections.sort(items);
+			}
+			return items.toString();
+		}
+		if (value instanceof Map) {
+			Map<String, String> entries = new TreeMap<String, String>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				entries.put(String.valueOf(entry.getKey()), getValueKey(entry.getValue()));
+			}
+			return entries.toString();
+		}
+		return value.toString();
+	}
+}
@@ -30,7 +30,7 @@ public class Indicators {
 		i.addParameter(new Parameter("startDate", "Start date", Date.class));
 		i.addParameter(new Parameter("endDate", "End date", Date.class));
 		
-		return i;
+		return DefinitionRegistry.identify(i);
 	}
 	
 	public static CohortIndicator getPatientBetween50AndAboveIndicator() {
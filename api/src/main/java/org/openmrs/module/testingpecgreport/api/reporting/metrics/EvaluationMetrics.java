@@ -0,0 +1,130 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.metrics;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory instrumentation of the evaluation of this module's definitions. Evaluators record each
+ * stage they run, with its wall time, SQL time, row count and whether it was answered from a cache.
+ * Stages are aggregated by name into {@link TimingStats}, and also added to the run of the data set
+ * being evaluated in the current thread so the most recent runs can be inspected one by one.
+ */
+public class EvaluationMetrics {
+	
+	static final int RUNS_KEPT = 50;
+	
+	private static final ConcurrentMap<String, TimingStats> stats = new ConcurrentHashMap<String, TimingStats>();
+	
+	private static final LinkedList<EvaluationRun> runs = new LinkedList<EvaluationRun>();
+	
+	private static final ThreadLocal<EvaluationRun> current = new ThreadLocal<EvaluationRun>();
+	
+	/**
+	 * Starts a run in the current thread, stages recorded until {@link #finishRun(EvaluationRun)} are
+	 * added to it.
+	 * 
+	 * @param name the evaluated definition
+	 * @param startDate start of the period
+	 * @param endDate end of the period
+	 * @return the run
+	 */
+	public static EvaluationRun startRun(String name, Date startDate, Date endDate) {
+		EvaluationRun run = new EvaluationRun(name, startDate, endDate);
+		current.set(run);
+		return run;
+	}
+	
+	/**
+	 * Ends a run and keeps it among the most recent ones
+	 */
+	public static void finishRun(EvaluationRun run) {
+		run.finish();
+		current.remove();
+		record("dataset:" + run.getName(), run.getDurationMillis(), 0, run.getCardinalities().size(), run.getCacheHit(),
+		    null);
+		synchronized (runs) {
+			runs.addFirst(run);
+			while (runs.size() > RUNS_KEPT) {
+				runs.removeLast();
+			}
+		}
+	}
+	
+	/**
+	 * Records one evaluation of a stage
+	 * 
+	 * @param stage the stage, such as cohort:name
+	 * @param wallNanos elapsed time
+	 * @param sqlNanos time spent in SQL, 0 if none
+	 * @param rows number of rows or patients produced
+	 * @param cacheHit whether it was answered from a cache, null if the stage has no cache
+	 */
+	public static void record(String stage, long wallNanos, long sqlNanos, int rows, Boolean cacheHit) {
+		record(stage, wallNanos / 1e6, sqlNanos / 1e6, rows, cacheHit, current.get());
+	}
+	
+	private static void record(String stage, double wallMillis, double sqlMillis, int rows, Boolean cacheHit,
+	        EvaluationRun run) {
+		TimingStats timing = stats.get(stage);
+		if (timing == null) {
+			stats.putIfAbsent(stage, new TimingStats());
+			timing = stats.get(stage);
+		}
+		timing.add(wallMillis, sqlMillis, rows, cacheHit);
+		if (run != null) {
+			run.addStage(new EvaluationRun.Stage(stage, wallMillis, sqlMillis, rows, cacheHit));
+		}
+	}
+	
+	/**
+	 * @return the run of the current thread, or null
+	 */
+	public static EvaluationRun getCurrentRun() {
+		return current.get();
+	}
+	
+	/**
+	 * @return the statistics of every stage, by stage name
+	 */
+	public static Map<String, TimingStats.Snapshot> getStats() {
+		Map<String, TimingStats.Snapshot> ret = new TreeMap<String, TimingStats.Snapshot>();
+		for (Map.Entry<String, TimingStats> entry : stats.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().getSnapshot());
+		}
+		return ret;
+	}
+	
+	/**
+	 * @return the most recent runs, most recent first
+	 */
+	public static List<EvaluationRun> getRuns() {
+		synchronized (runs) {
+			return new ArrayList<EvaluationRun>(runs);
+		}
+	}
+	
+	/**
+	 * Forgets all statistics and runs
+	 */
+	public static void reset() {
+		stats.clear();
+		synchronized (runs) {
+			runs.clear();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stages and column cardinalities of one evaluation of a data set
+ */
+public class EvaluationRun {
+	
+	private final String name;
+	
+	private final Date startDate;
+	
+	private final Date endDate;
+	
+	private final Date dateStarted = new Date();
+	
+	private final long startNanos = System.nanoTime();
+	
+	private volatile double durationMillis;
+	
+	private volatile Boolean cacheHit;
+	
+	private final List<Stage> stages = Collections.synchronizedList(new ArrayList<Stage>());
+	
+	private final Map<String, Integer> cardinalities = Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
+	
+	EvaluationRun(String name, Date startDate, Date endDate) {
+		this.name = name;
+		this.startDate = startDate;
+		this.endDate = endDate;
+	}
+	
+	void addStage(Stage stage) {
+		stages.add(stage);
+	}
+	
+	void finish() {
+		durationMillis = (System.nanoTime() - startNanos) / 1e6;
+	}
+	
+	/**
+	 * @param cacheHit whether the values came from the result store
+	 */
+	public void setCacheHit(Boolean cacheHit) {
+		this.cacheHit = cacheHit;
+	}
+	
+	/**
+	 * Records the number of patients counted in a column
+	 */
+	public void addCardinality(String column, int patients) {
+		cardinalities.put(column, patients);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public Date getStartDate() {
+		return startDate;
+	}
+	
+	public Date getEndDate() {
+		return endDate;
+	}
+	
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+	
+	public double getDurationMillis() {
+		return durationMillis;
+	}
+	
+	public Boolean getCacheHit() {
+		return cacheHit;
+	}
+	
+	public List<Stage> getStages() {
+		synchronized (stages) {
+			return new ArrayList<Stage>(stages);
+		}
+	}
+	
+	public Map<String, Integer> getCardinalities() {
+		synchronized (cardinalities) {
+			return new LinkedHashMap<String, Integer>(cardinalities);
+		}
+	}
+	
+	/**
+	 * One timed step of a run
+	 */
+	public static class Stage {
+		
+		private final String name;
+		
+		private final double wallMillis;
+		
+		private final double sqlMillis;
+		
+		private final int rows;
+		
+		private final Boolean cacheHit;
+		
+		Stage(String name, double wallMillis, double sqlMillis, int rows, Boolean cacheHit) {
+			this.name = name;
+			this.wallMillis = wallMillis;
+			this.sqlMillis = sqlMillis;
+			this.rows = rows;
+			this.cacheHit = cacheHit;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public double getWallMillis() {
+			return wallMillis;
+		}
+		
+		public double getSqlMillis() {
+			return sqlMillis;
+		}
+		
+		public int getRows() {
+			return rows;
+		}
+		
+		public Boolean getCacheHit() {
+			return cacheHit;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Timing and cardinality of one evaluation stage, such as a cohort definition or a data set, over
+ * its most recent evaluations. Percentiles are computed over a rolling window of samples so they
+ * follow the current behaviour rather than everything since startup.
+ */
+public class TimingStats {
+	
+	static final int WINDOW_SIZE = 200;
+	
+	private final double[] wallMillis = new double[WINDOW_SIZE];
+	
+	private final double[] sqlMillis = new double[WINDOW_SIZE];
+	
+	private long count;
+	
+	private long cacheHits;
+	
+	private long cacheMisses;
+	
+	private int lastRows;
+	
+	private double maxWallMillis;
+	
+	synchronized void add(double wall, double sql, int rows, Boolean cacheHit) {
+		int slot = (int) (count % WINDOW_SIZE);
+		wallMillis[slot] = wall;
+		sqlMillis[slot] = sql;
+		count++;
+		lastRows = rows;
+		maxWallMillis = Math.max(maxWallMillis, wall);
+		if (Boolean.TRUE.equals(cacheHit)) {
+			cacheHits++;
+		} else if (Boolean.FALSE.equals(cacheHit)) {
+			cacheMisses++;
+		}
+	}
+	
+	/**
+	 * @return a consistent copy of the statistics
+	 */
+	public synchronized Snapshot getSnapshot() {
+		int size = (int) Math.min(count, WINDOW_SIZE);
+		double[] wall = Arrays.copyOf(wallMillis, size);
+		double[] sql = Arrays.copyOf(sqlMillis, size);
+		Arrays.sort(wall);
+		Arrays.sort(sql);
+		return new Snapshot(count, cacheHits, cacheMisses, lastRows, percentile(wall, 50), percentile(wall, 90),
+		        percentile(wall, 99), maxWallMillis, percentile(sql, 50), percentile(sql, 90));
+	}
+	
+	/**
+	 * Nearest rank percentile of sorted samples, 0 when there are none
+	 */
+	static double percentile(double[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+	
+	public static class Snapshot {
+		
+		private final long count;
+		
+		private final long cacheHits;
+		
+		private final long cacheMisses;
+		
+		private final int lastRows;
+		
+		private final double p50Millis;
+		
+		private final double p90Millis;
+		
+		private final double p99Millis;
+		
+		private final double maxMillis;
+		
+		private final double sqlP50Millis;
+		
+		private final double sqlP90Millis;
+		
+		Snapshot(long count, long cacheHits, long cacheMisses, int lastRows, double p50Millis, double p90Millis,
+		    double p99Millis, double maxMillis, double sqlP50Millis, double sqlP90Millis) {
+			this.count = count;
+			this.cacheHits = cacheHits;
+			this.cacheMisses = cacheMisses;
+			this.lastRows = lastRows;
+			this.p50Millis = p50Millis;
+			this.p90Millis = p90Millis;
+			this.p99Millis = p99Millis;
+			this.maxMillis = maxMillis;
+			this.sqlP50Millis = sqlP50Millis;
+			this.sqlP90Millis = sqlP90Millis;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public long getCacheHits() {
+			return cacheHits;
+		}
+		
+		public long getCacheMisses() {
+			return cacheMisses;
+		}
+		
+		public int getLastRows() {
+			return lastRows;
+		}
+		
+		public double getP50Millis() {
+			return p50Millis;
+		}
+		
+		public double getP90Millis() {
+			return p90Millis;
+		}
+		
+		public double getP99Millis() {
+			return p99Millis;
+		}
+		
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+		
+		public double getSqlP50Millis() {
+			return sqlP50Millis;
+		}
+		
+		public double getSqlP90Millis() {
+			return sqlP90Millis;
+		}
+	}
+}
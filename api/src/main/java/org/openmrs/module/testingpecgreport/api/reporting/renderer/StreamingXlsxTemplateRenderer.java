@@ -0,0 +1,410 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.renderer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openmrs.annotation.Handler;
+import org.openmrs.module.reporting.common.Localized;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.ReportDesignResource;
+import org.openmrs.module.reporting.report.ReportRequest;
+import org.openmrs.module.reporting.report.renderer.RenderingException;
+import org.openmrs.module.reporting.report.renderer.ReportDesignRenderer;
+
+/**
+ * Renders a report through the same Excel template and repeatingSections property as
+ * ExcelTemplateRenderer, but writes XLSX through a streaming workbook which keeps only a window of
+ * rows in memory, so the heap used does not grow with the number of rows rendered. The template is
+ * read once and its styles, column widths and merged regions are copied to the output. Every sheet is
+ * flushed to the temporary file once written, so repeating a sheet per data set row does not keep
+ * a window of rows per sheet either.
+ * <p>
+ * Placeholders are written #column# inside a repeating section, and #dataSet.column# or
+ * #parameter.name# anywhere. Repeating sections are written as in ExcelTemplateRenderer,
+ * sheet:1,dataset:PECG Data Set repeating sheet 1 for every row of the data set, and
+ * sheet:1,row:6-7,dataset:PECG Data Set repeating rows 6 to 7 of sheet 1, sections being separated by
+ * a |.
+ */
+@Handler
+@Localized("testingpecgreport.StreamingXlsxTemplateRenderer")
+public class StreamingXlsxTemplateRenderer extends ReportDesignRenderer {
+	
+	public static final String CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+	
+	/**
+	 * Number of rows kept in memory, older rows are flushed to a temporary file
+	 */
+	public static final int WINDOW_SIZE = 100;
+	
+	/**
+	 * A data set name may contain spaces, as in #PECG Data Set.2All#
+	 */
+	private static final Pattern PLACEHOLDER = Pattern.compile("#([^#]+)#");
+	
+	/**
+	 * @see ReportDesignRenderer#getRenderedContentType(ReportRequest)
+	 */
+	@Override
+	public String getRenderedContentType(ReportRequest request) {
+		return CONTENT_TYPE;
+	}
+	
+	/**
+	 * @see ReportDesignRenderer#getFilename(ReportRequest)
+	 */
+	@Override
+	public String getFilename(ReportRequest request) {
+		return request.getReportDefinition().getParameterizable().getName() + ".xlsx";
+	}
+	
+	/**
+	 * @see ReportDesignRenderer#render(ReportData, String, OutputStream)
+	 */
+	@Override
+	public void render(ReportData reportData, String argument, OutputStream out) throws IOException, RenderingException {
+		ReportDesign design = getDesign(argument);
+		Workbook template;
+		try {
+			template = WorkbookFactory.create(new ByteArrayInputStream(getTemplate(design).getContents()));
+		}
+		catch (Exception e) {
+			throw new RenderingException("Unable to read the template of " + design.getName(), e);
+		}
+		Map<Integer, RepeatingSection> sections = RepeatingSection.parse(design.getPropertyValue("repeatingSections",
+		    null));
+		Map<String, Object> common = getCommonValues(reportData);
+		
+		SXSSFWorkbook workbook = new SXSSFWorkbook(WINDOW_SIZE);
+		workbook.setCompressTempFiles(true);
+		try {
+			StyleCopier styles = new StyleCopier(template, workbook);
+			for (int i = 0; i < template.getNumberOfSheets(); i++) {
+				Sheet templateSheet = template.getSheetAt(i);
+				RepeatingSection section = sections.get(i + 1);
+				DataSet dataSet = section == null ? null : reportData.getDataSets().get(section.dataSetName);
+				if (section == null || dataSet == null) {
+					SheetWriter writer = new SheetWriter(templateSheet, workbook.createSheet(templateSheet.getSheetName()),
+					        styles);
+					writer.copyRows(0, templateSheet.getLastRowNum(), common);
+					writer.copyMergedRegions(0, templateSheet.getLastRowNum());
+					writer.flush();
+				} else if (section.firstRow == null) {
+					int count = 0;
+					for (DataSetRow row : dataSet) {
+						String name = templateSheet.getSheetName() + (count == 0 ? "" : " (" + (count + 1) + ")");
+						SheetWriter writer = new SheetWriter(templateSheet, workbook.createSheet(name), styles);
+						writer.copyRows(0, templateSheet.getLastRowNum(), overlay(common, row));
+						writer.copyMergedRegions(0, templateSheet.getLastRowNum());
+						writer.flush();
+						count++;
+					}
+					if (count == 0) {
+						SheetWriter writer = new SheetWriter(templateSheet, workbook.createSheet(templateSheet.getSheetName()),
+						        styles);
+						writer.copyRows(0, templateSheet.getLastRowNum(), common);
+						writer.flush();
+					}
+				} else {
+					int first = section.firstRow - 1;
+					int last = section.lastRow - 1;
+					SheetWriter writer = new SheetWriter(templateSheet, workbook.createSheet(templateSheet.getSheetName()),
+					        styles);
+					writer.copyRows(0, first - 1, common);
+					writer.copyMergedRegions(0, first - 1);
+					for (DataSetRow row : dataSet) {
+						writer.copyRows(first, last, overlay(common, row));
+					}
+					writer.copyRows(last + 1, templateSheet.getLastRowNum(), common);
+					writer.flush();
+				}
+			}
+			workbook.write(out);
+		}
+		finally {
+			workbook.dispose();
+		}
+	}
+	
+	private ReportDesignResource getTemplate(ReportDesign design) {
+		for (ReportDesignResource resource : design.getResources()) {
+			if ("xls".equalsIgnoreCase(resource.getExtension()) || "xlsx".equalsIgnoreCase(resource.getExtension())) {
+				return resource;
+			}
+		}
+		throw new RenderingException("No Excel template found on " + design.getName());
+	}
+	
+	/**
+	 * Values available anywhere in the template: the parameters, and the first row of every data set
+	 * prefixed with its name
+	 */
+	private Map<String, Object> getCommonValues(ReportData reportData) {
+		Map<String, Object> ret = new HashMap<String, Object>();
+		if (reportData.getContext() != null) {
+			for (Map.Entry<String, Object> parameter : reportData.getContext().getParameterValues().entrySet()) {
+				ret.put("parameter." + parameter.getKey(), parameter.getValue());
+			}
+		}
+		for (Map.Entry<String, DataSet> dataSet : reportData.getDataSets().entrySet()) {
+			for (DataSetRow row : dataSet.getValue()) {
+				for (Map.Entry<DataSetColumn, Object> value : row.getColumnValues().entrySet()) {
+					ret.put(dataSet.getKey() + "." + value.getKey().getName(), value.getValue());
+				}
+				break;
+			}
+		}
+		return ret;
+	}
+	
+	private static Map<String, Object> overlay(Map<String, Object> common, DataSetRow row) {
+		Map<String, Object> ret = new HashMap<String, Object>(common);
+		for (Map.Entry<DataSetColumn, Object> value : row.getColumnValues().entrySet()) {
+			ret.put(value.getKey().getName(), value.getValue());
+		}
+		return ret;
+	}
+	
+	/**
+	 * One entry of the repeatingSections property
+	 */
+	static class RepeatingSection {
+		
+		Integer firstRow;
+		
+		Integer lastRow;
+		
+		String dataSetName;
+		
+		/**
+		 * @return the sections keyed by their one based sheet number
+		 */
+		static Map<Integer, RepeatingSection> parse(String property) {
+			if (StringUtils.isBlank(property)) {
+				return Collections.emptyMap();
+			}
+			Map<Integer, RepeatingSection> ret = new LinkedHashMap<Integer, RepeatingSection>();
+			for (String entry : property.split("\\|")) {
+				RepeatingSection section = new RepeatingSection();
+				Integer sheet = 1;
+				for (String part : entry.split(",")) {
+					String[] keyValue = part.split(":", 2);
+					if (keyValue.length != 2) {
+						continue;
+					}
+					String key = keyValue[0].trim();
+					String value = keyValue[1].trim();
+					if ("sheet".equals(key)) {
+						sheet = Integer.valueOf(value);
+					} else if ("row".equals(key)) {
+						String[] rows = value.split("-");
+						section.firstRow = Integer.valueOf(rows[0].trim());
+						section.lastRow = Integer.valueOf(rows[rows.length - 1].trim());
+					} else if ("dataset".equals(key)) {
+						section.dataSetName = value;
+					}
+				}
+				ret.put(sheet, section);
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * Copies the cell styles of the template, each one only once
+	 */
+	static class StyleCopier {
+		
+		private final Workbook template;
+		
+		private final Workbook target;
+		
+		private final Map<Short, CellStyle> styles = new HashMap<Short, CellStyle>();
+		
+		StyleCopier(Workbook template, Workbook target) {
+			this.template = template;
+			this.target = target;
+		}
+		
+		@SuppressWarnings("deprecation")
+		CellStyle get(CellStyle source) {
+			CellStyle ret = styles.get(source.getIndex());
+			if (ret == null) {
+				ret = target.createCellStyle();
+				ret.setAlignment(source.getAlignment());
+				ret.setVerticalAlignment(source.getVerticalAlignment());
+				ret.setWrapText(source.getWrapText());
+				ret.setBorderTop(source.getBorderTop());
+				ret.setBorderBottom(source.getBorderBottom());
+				ret.setBorderLeft(source.getBorderLeft());
+				ret.setBorderRight(source.getBorderRight());
+				ret.setFillPattern(source.getFillPattern());
+				ret.setFillForegroundColor(source.getFillForegroundColor());
+				ret.setFillBackgroundColor(source.getFillBackgroundColor());
+				ret.setDataFormat(target.createDataFormat().getFormat(source.getDataFormatString()));
+				Font sourceFont = template.getFontAt(source.getFontIndex());
+				Font font = target.createFont();
+				font.setFontName(sourceFont.getFontName());
+				font.setFontHeightInPoints(sourceFont.getFontHeightInPoints());
+				font.setBoldweight(sourceFont.getBoldweight());
+				font.setItalic(sourceFont.getItalic());
+				font.setUnderline(sourceFont.getUnderline());
+				font.setColor(sourceFont.getColor());
+				ret.setFont(font);
+				styles.put(source.getIndex(), ret);
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * Appends template rows to an output sheet, replacing placeholders
+	 */
+	static class SheetWriter {
+		
+		private final Sheet template;
+		
+		private final Sheet target;
+		
+		private final StyleCopier styles;
+		
+		private final List<CellRangeAddress> mergedRegions = new ArrayList<CellRangeAddress>();
+		
+		private int nextRow;
+		
+		SheetWriter(Sheet template, Sheet target, StyleCopier styles) {
+			this.template = template;
+			this.target = target;
+			this.styles = styles;
+			int columns = 0;
+			for (int i = 0; i <= template.getLastRowNum(); i++) {
+				Row row = template.getRow(i);
+				if (row != null) {
+					columns = Math.max(columns, row.getLastCellNum());
+				}
+			}
+			for (int i = 0; i < columns; i++) {
+				target.setColumnWidth(i, template.getColumnWidth(i));
+			}
+			for (int i = 0; i < template.getNumMergedRegions(); i++) {
+				mergedRegions.add(template.getMergedRegion(i));
+			}
+		}
+		
+		void copyRows(int first, int last, Map<String, Object> values) {
+			for (int i = first; i <= last; i++) {
+				Row source = template.getRow(i);
+				Row row = target.createRow(nextRow++);
+				if (source == null) {
+					continue;
+				}
+				row.setHeight(source.getHeight());
+				for (int j = 0; j < source.getLastCellNum(); j++) {
+					Cell sourceCell = source.getCell(j);
+					if (sourceCell != null) {
+						copyCell(sourceCell, row.createCell(j), values);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Writes the rows still in memory to the temporary file of the streaming workbook, once the
+		 * sheet is finished
+		 */
+		void flush() throws IOException {
+			if (target instanceof SXSSFSheet) {
+				((SXSSFSheet) target).flushRows(0);
+			}
+		}
+		
+		/**
+		 * Copies the merged regions lying within the given template rows, which must have been written
+		 * at the same position
+		 */
+		void copyMergedRegions(int first, int last) {
+			for (CellRangeAddress region : mergedRegions) {
+				if (region.getFirstRow() >= first && region.getLastRow() <= last) {
+					target.addMergedRegion(region.copy());
+				}
+			}
+		}
+		
+		private void copyCell(Cell source, Cell cell, Map<String, Object> values) {
+			cell.setCellStyle(styles.get(source.getCellStyle()));
+			switch (source.getCellType()) {
+				case Cell.CELL_TYPE_NUMERIC:
+					cell.setCellValue(source.getNumericCellValue());
+					break;
+				case Cell.CELL_TYPE_BOOLEAN:
+					cell.setCellValue(source.getBooleanCellValue());
+					break;
+				case Cell.CELL_TYPE_FORMULA:
+					cell.setCellFormula(source.getCellFormula());
+					break;
+				case Cell.CELL_TYPE_STRING:
+					setValue(cell, source.getStringCellValue(), values);
+					break;
+				default:
+					break;
+			}
+		}
+		
+		private static void setValue(Cell cell, String text, Map<String, Object> values) {
+			Matcher matcher = PLACEHOLDER.matcher(text);
+			if (matcher.matches() && values.containsKey(matcher.group(1))) {
+				Object value = values.get(matcher.group(1));
+				if (value instanceof Number) {
+					cell.setCellValue(((Number) value).doubleValue());
+				} else {
+					cell.setCellValue(value == null ? "" : value.toString());
+				}
+				return;
+			}
+			StringBuffer sb = new StringBuffer();
+			matcher.reset();
+			while (matcher.find()) {
+				String replacement = matcher.group();
+				if (values.containsKey(matcher.group(1))) {
+					Object value = values.get(matcher.group(1));
+					replacement = value == null ? "" : value.toString();
+				}
+				matcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+			}
+			matcher.appendTail(sb);
+			cell.setCellValue(sb.toString());
+		}
+	}
+}
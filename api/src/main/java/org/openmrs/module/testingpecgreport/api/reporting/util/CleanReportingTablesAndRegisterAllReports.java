@@ -13,49 +13,63 @@
  */
 package org.openmrs.module.testingpecgreport.api.reporting.util;
 
-import java.util.List;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.reporting.report.ReportDesign;
-import org.openmrs.module.reporting.report.ReportRequest;
-import org.openmrs.module.reporting.report.ReportRequest.Status;
-import org.openmrs.module.reporting.report.definition.ReportDefinition;
-import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
-import org.openmrs.module.reporting.report.service.ReportService;
-import org.openmrs.module.testingpecgreport.api.reporting.SetupPECGReport;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportRegistration;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJob;
 
 public class CleanReportingTablesAndRegisterAllReports {
 	
 	private static Log log = LogFactory.getLog(CleanReportingTablesAndRegisterAllReports.class);
 	
+	/**
+	 * Number of rows examined per page
+	 */
+	private static final int PAGE_SIZE = 100;
+	
+	/**
+	 * Purges all report designs and definitions and the completed and failed report requests through
+	 * the reporting services, a page at a time following their ids and clearing the session between
+	 * pages so that memory stays flat whatever the number of rows. A row which cannot be purged is
+	 * logged and left behind, the next page starts after it.
+	 */
 	public static void cleanTables() throws Exception {
 		
-		ReportService rs = Context.getService(ReportService.class);
-		List<ReportDesign> rDes = rs.getAllReportDesigns(true);
-		for (ReportDesign reportDesign : rDes) {
-			rs.purgeReportDesign(reportDesign);
+		TestingPECGReportService service = Context.getService(TestingPECGReportService.class);
+		ReportJob.addSteps(3);
+		
+		int designs = 0;
+		for (PurgedPage page = service.purgeReportDesigns(null, PAGE_SIZE); page.getLastId() != null; page = service
+		        .purgeReportDesigns(page.getLastId(), PAGE_SIZE)) {
+			designs += page.getPurged();
+			Context.clearSession();
 		}
+		ReportJob.step("Purged " + designs + " report designs");
 		
-		ReportDefinitionService rds = Context.getService(ReportDefinitionService.class);
-		List<ReportDefinition> rDefs = rds.getAllDefinitions(true);
-		for (ReportDefinition reportDefinition : rDefs) {
-			rds.purgeDefinition(reportDefinition);
+		int definitions = 0;
+		for (PurgedPage page = service.purgeReportDefinitions(null, PAGE_SIZE); page.getLastId() != null; page = service
+		        .purgeReportDefinitions(page.getLastId(), PAGE_SIZE)) {
+			definitions += page.getPurged();
+			Context.clearSession();
 		}
+		ReportRegistration.reset();
+		ReportJob.step("Purged " + definitions + " report definitions");
 		
-		for (ReportRequest request : rs.getReportRequests(null, null, null, Status.COMPLETED, Status.FAILED)) {
-			try {
-				rs.purgeReportRequest(request);
-			}
-			catch (Exception e) {
-				log.warn("Unable to delete old report request: " + request, e);
-			}
+		int requests = 0;
+		for (PurgedPage page = service.purgeFinishedReportRequests(null, PAGE_SIZE); page.getLastId() != null; page = service
+		        .purgeFinishedReportRequests(page.getLastId(), PAGE_SIZE)) {
+			requests += page.getPurged();
+			Context.clearSession();
 		}
+		ReportJob.step("Purged " + requests + " report requests");
+		log.info("Purged " + designs + " report designs, " + definitions + " report definitions and " + requests
+		        + " report requests");
 	}
 	
 	public static void registerReports() throws Exception {
-		new SetupPECGReport().setup();
+		ReportRegistration.register();
 	}
 	
 }
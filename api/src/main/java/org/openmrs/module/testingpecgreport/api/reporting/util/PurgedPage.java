@@ -0,0 +1,41 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.util;
+
+/**
+ * The outcome of purging one page of a reporting table: how many rows were purged, and the id of the
+ * last row examined, purged or not, from which the next page starts.
+ */
+public class PurgedPage {
+	
+	private final Integer lastId;
+	
+	private final int purged;
+	
+	/**
+	 * @param lastId the id of the last row examined, null if there was none
+	 * @param purged the number of rows purged
+	 */
+	public PurgedPage(Integer lastId, int purged) {
+		this.lastId = lastId;
+		this.purged = purged;
+	}
+	
+	/**
+	 * @return the id to pass for the next page, null once the table has been gone through
+	 */
+	public Integer getLastId() {
+		return lastId;
+	}
+	
+	public int getPurged() {
+		return purged;
+	}
+}
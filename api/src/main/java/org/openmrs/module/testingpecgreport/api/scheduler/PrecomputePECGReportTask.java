@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.scheduler;
+
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGReportRunner;
+import org.openmrs.module.testingpecgreport.api.reporting.PrecomputedReports;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportRegistration;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportingPeriod;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Evaluates the PECG Report of the current and the previous month ahead of time, so that the first
+ * users of the day get it without waiting, see {@link PrecomputedReports}. The values are kept in the
+ * result store as well, and the reports are restored from them when the module starts, see
+ * {@link #restore()}.
+ */
+public class PrecomputePECGReportTask extends AbstractTask {
+	
+	public static final String NAME = "Precompute PECG Report";
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * @see AbstractTask#execute()
+	 */
+	@Override
+	public void execute() {
+		if (ReportRegistration.isRemoved()) {
+			log.info("The PECG Report was removed, it is not precomputed");
+			return;
+		}
+		List<ReportingPeriod> periods = getPeriods();
+		PrecomputedReports.retain(periods);
+		
+		long generation = PrecomputedReports.getGeneration();
+		for (ReportingPeriod period : periods) {
+			long start = System.currentTimeMillis();
+			try {
+				if (PECGReportRunner.precompute(period, generation)) {
+					log.info("Precomputed the PECG Report of " + period + " in " + (System.currentTimeMillis() - start)
+					        + " ms");
+				} else {
+					log.info("Data changed while precomputing the PECG Report of " + period + ", it was not kept");
+				}
+			}
+			catch (Exception e) {
+				log.error("Unable to precompute the PECG Report of " + period, e);
+			}
+		}
+	}
+	
+	/**
+	 * Puts back the reports precomputed before the module was last stopped whose values are still
+	 * in the result store, the others are evaluated on request until the next run.
+	 */
+	public static void restore() {
+		if (ReportRegistration.isRemoved()) {
+			return;
+		}
+		Log log = LogFactory.getLog(PrecomputePECGReportTask.class);
+		long generation = PrecomputedReports.getGeneration();
+		for (ReportingPeriod period : getPeriods()) {
+			try {
+				if (PECGReportRunner.restore(period, generation)) {
+					log.info("Restored the precomputed PECG Report of " + period);
+				}
+			}
+			catch (Exception e) {
+				log.error("Unable to restore the precomputed PECG Report of " + period, e);
+			}
+		}
+	}
+	
+	/**
+	 * @return the previous and the current month
+	 */
+	static List<ReportingPeriod> getPeriods() {
+		Calendar previousMonth = Calendar.getInstance();
+		previousMonth.add(Calendar.MONTH, -1);
+		return ReportingPeriod.monthly(previousMonth.getTime(), 2);
+	}
+}
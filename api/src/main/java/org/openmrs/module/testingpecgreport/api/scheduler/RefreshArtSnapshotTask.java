@@ -0,0 +1,37 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.scheduler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Brings the ART snapshot tables read by the PECG base cohort up to date, see
+ * {@link TestingPECGReportService#refreshArtSnapshot()}.
+ */
+public class RefreshArtSnapshotTask extends AbstractTask {
+	
+	public static final String NAME = "Refresh PECG ART Snapshot";
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * @see AbstractTask#execute()
+	 */
+	@Override
+	public void execute() {
+		long start = System.currentTimeMillis();
+		Context.getService(TestingPECGReportService.class).refreshArtSnapshot();
+		log.info("Refreshed the PECG ART snapshot in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
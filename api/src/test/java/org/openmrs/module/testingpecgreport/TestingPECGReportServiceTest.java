@@ -9,16 +9,28 @@
  */
 package org.openmrs.module.testingpecgreport;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.openmrs.User;
+import org.openmrs.api.APIException;
 import org.openmrs.api.UserService;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.ReportRequest;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
+import org.openmrs.module.reporting.report.service.ReportService;
 import org.openmrs.module.testingpecgreport.Item;
 import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
 import org.openmrs.module.testingpecgreport.api.impl.TestingPECGReportServiceImpl;
+import org.openmrs.module.testingpecgreport.api.reporting.util.PurgedPage;
 import static org.mockito.Mockito.*;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -38,9 +50,29 @@ public class TestingPECGReportServiceTest {
 	@Mock
 	UserService userService;
 	
+	@Mock
+	ReportService reportService;
+	
+	@Mock
+	ReportDefinitionService reportDefinitionService;
+	
+	TestingPECGReportServiceImpl reportingModuleService = new TestingPECGReportServiceImpl() {
+		
+		@Override
+		protected ReportService getReportService() {
+			return reportService;
+		}
+		
+		@Override
+		protected ReportDefinitionService getReportDefinitionService() {
+			return reportDefinitionService;
+		}
+	};
+	
 	@Before
 	public void setupMocks() {
 		MockitoAnnotations.initMocks(this);
+		reportingModuleService.setDao(dao);
 	}
 	
 	@Test
@@ -60,4 +92,63 @@ public class TestingPECGReportServiceTest {
 		// Then
 		assertThat(item, hasProperty("owner", is(user)));
 	}
+	
+	@Test
+	public void purgeReportDesigns_shouldPurgeThePageAfterTheGivenId() {
+		ReportDesign first = new ReportDesign();
+		ReportDesign second = new ReportDesign();
+		when(dao.getReportDesignIds(3, 2)).thenReturn(Arrays.asList(4, 7));
+		when(reportService.getReportDesign(4)).thenReturn(first);
+		when(reportService.getReportDesign(7)).thenReturn(second);
+		
+		PurgedPage page = reportingModuleService.purgeReportDesigns(3, 2);
+		
+		assertThat(page.getPurged(), is(2));
+		assertThat(page.getLastId(), is(7));
+		verify(reportService).purgeReportDesign(first);
+		verify(reportService).purgeReportDesign(second);
+	}
+	
+	@Test
+	public void purgeReportDesigns_shouldReturnNoLastIdPastTheLastDesign() {
+		when(dao.getReportDesignIds(7, 2)).thenReturn(Collections.<Integer> emptyList());
+		
+		PurgedPage page = reportingModuleService.purgeReportDesigns(7, 2);
+		
+		assertThat(page.getPurged(), is(0));
+		assertThat(page.getLastId(), is(nullValue()));
+	}
+	
+	@Test
+	public void purgeReportDefinitions_shouldPassTheDefinitionsWhichCannotBeLoaded() {
+		Map<Integer, String> uuids = new LinkedHashMap<Integer, String>();
+		uuids.put(1, "broken");
+		uuids.put(2, "loaded");
+		when(dao.getReportDefinitionUuids(null, 10)).thenReturn(uuids);
+		ReportDefinition definition = new ReportDefinition();
+		when(reportDefinitionService.getDefinitionByUuid("loaded")).thenReturn(definition);
+		
+		PurgedPage page = reportingModuleService.purgeReportDefinitions(null, 10);
+		
+		assertThat(page.getPurged(), is(1));
+		assertThat(page.getLastId(), is(2));
+		verify(reportDefinitionService).purgeDefinition(definition);
+		verify(reportDefinitionService, times(1)).purgeDefinition(any(ReportDefinition.class));
+	}
+	
+	@Test
+	public void purgeFinishedReportRequests_shouldGoOnAfterARequestWhichCannotBePurged() {
+		ReportRequest failing = new ReportRequest();
+		ReportRequest completed = new ReportRequest();
+		when(dao.getFinishedReportRequestIds(null, 2)).thenReturn(Arrays.asList(1, 2));
+		when(reportService.getReportRequest(1)).thenReturn(failing);
+		when(reportService.getReportRequest(2)).thenReturn(completed);
+		doThrow(new APIException("locked")).when(reportService).purgeReportRequest(failing);
+		
+		PurgedPage page = reportingModuleService.purgeFinishedReportRequests(null, 2);
+		
+		assertThat(page.getPurged(), is(1));
+		assertThat(page.getLastId(), is(2));
+		verify(reportService).purgeReportRequest(completed);
+	}
 }
@@ -0,0 +1,142 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.advice;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Person;
+import org.openmrs.Visit;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.PersonService;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.VisitService;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataVersion;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies what each write makes the advice copy into the ART snapshot and forget.
+ */
+public class CohortChangeAdviceTest {
+	
+	TestingPECGReportService service;
+	
+	CohortChangeAdvice advice;
+	
+	Patient patient = new Patient(7);
+	
+	Date enrolled = new Date(1000L);
+	
+	Date completed = new Date(2000L);
+	
+	@Before
+	public void setUp() {
+		service = mock(TestingPECGReportService.class);
+		advice = new CohortChangeAdvice() {
+			
+			@Override
+			TestingPECGReportService getService() {
+				return service;
+			}
+		};
+	}
+	
+	private PatientProgram patientProgram() {
+		PatientProgram ret = new PatientProgram();
+		ret.setPatient(patient);
+		ret.setDateEnrolled(enrolled);
+		ret.setDateCompleted(completed);
+		return ret;
+	}
+	
+	@Test
+	public void afterReturning_shouldForgetThePeriodsOfThePatientOnVisitWrites() throws Throwable {
+		Visit visit = new Visit(patient, null, new Date(1500L));
+		String dataVersion = PECGDataVersion.get();
+		
+		advice.afterReturning(visit, VisitService.class.getMethod("saveVisit", Visit.class), new Object[] { visit },
+		    null);
+		
+		verify(service).refreshArtSnapshotOf(patient);
+		verify(service).invalidateIndicatorResultsOf(patient);
+		verify(service, never()).invalidateIndicatorResults(any(Date.class), any(Date.class));
+		assertThat(PECGDataVersion.get(), is(not(dataVersion)));
+	}
+	
+	@Test
+	public void afterReturning_shouldForgetThePeriodsOfANewEnrollment() throws Throwable {
+		PatientProgram patientProgram = patientProgram();
+		
+		advice.afterReturning(patientProgram,
+		    ProgramWorkflowService.class.getMethod("savePatientProgram", PatientProgram.class),
+		    new Object[] { patientProgram }, null);
+		
+		verify(service).invalidateIndicatorResultsOf(patient);
+		verify(service).invalidateIndicatorResults(enrolled, completed);
+	}
+	
+	@Test
+	public void afterReturning_shouldForgetEveryPeriodWhenAnEnrollmentIsEdited() throws Throwable {
+		PatientProgram patientProgram = patientProgram();
+		patientProgram.setDateChanged(new Date());
+		
+		advice.afterReturning(patientProgram,
+		    ProgramWorkflowService.class.getMethod("savePatientProgram", PatientProgram.class),
+		    new Object[] { patientProgram }, null);
+		
+		verify(service).invalidateIndicatorResults(null, null);
+		verify(service, never()).invalidateIndicatorResultsOf(any(Person.class));
+	}
+	
+	@Test
+	public void afterReturning_shouldForgetThePeriodsOfThePersonOnDemographicsWrites() throws Throwable {
+		Person person = new Person(7);
+		
+		advice.afterReturning(person, PersonService.class.getMethod("savePerson", Person.class),
+		    new Object[] { person }, null);
+		
+		verify(service).invalidateIndicatorResultsOf(person);
+	}
+	
+	@Test
+	public void afterReturning_shouldForgetEveryPeriodWhenAPatientIsVoided() throws Throwable {
+		advice.afterReturning(patient, PatientService.class.getMethod("voidPatient", Patient.class, String.class),
+		    new Object[] { patient, "duplicate" }, null);
+		
+		verify(service).invalidateIndicatorResults(null, null);
+	}
+	
+	@Test
+	public void afterReturning_shouldIgnoreReads() throws Throwable {
+		advice.afterReturning(patient, PatientService.class.getMethod("getPatient", Integer.class),
+		    new Object[] { 7 }, null);
+		
+		verifyZeroInteractions(service);
+	}
+	
+	@Test
+	public void afterReturning_shouldCopyBothMergedPatientsIntoTheArtSnapshot() throws Throwable {
+		Patient notPreferred = new Patient(8);
+		
+		advice.afterReturning(null, PatientService.class.getMethod("mergePatients", Patient.class, Patient.class),
+		    new Object[] { patient, notPreferred }, null);
+		
+		verify(service).refreshArtSnapshotOf(patient);
+		verify(service).refreshArtSnapshotOf(notPreferred);
+		verify(service).invalidateIndicatorResults(null, null);
+	}
+}
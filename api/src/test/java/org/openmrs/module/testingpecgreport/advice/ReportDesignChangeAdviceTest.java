@@ -0,0 +1,73 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.advice;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.ColumnDemand;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGReportRunner;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that only writes to the designs of the PECG Report change the {@link ColumnDemand}, and
+ * that designs which cannot be read make every column evaluated.
+ */
+public class ReportDesignChangeAdviceTest {
+	
+	ReportDesignChangeAdvice advice = new ReportDesignChangeAdvice();
+	
+	Method saveReportDesign;
+	
+	@Before
+	public void setUp() throws Exception {
+		ColumnDemand.reset();
+		ColumnDemand.setDesignColumns(Collections.singleton("2All"));
+		saveReportDesign = ReportService.class.getMethod("saveReportDesign", ReportDesign.class);
+	}
+	
+	@After
+	public void tearDown() {
+		ColumnDemand.reset();
+	}
+	
+	private static ReportDesign design(String reportName) {
+		ReportDefinition rd = new ReportDefinition();
+		rd.setName(reportName);
+		ReportDesign ret = new ReportDesign();
+		ret.setReportDefinition(rd);
+		return ret;
+	}
+	
+	@Test
+	public void afterReturning_shouldIgnoreTheDesignsOfOtherReports() throws Throwable {
+		long version = ColumnDemand.getVersion();
+		
+		advice.afterReturning(null, saveReportDesign, new Object[] { design("Other Report") }, null);
+		
+		assertThat(ColumnDemand.getVersion(), is(version));
+		assertThat(ColumnDemand.getColumns(), contains("2All"));
+	}
+	
+	@Test
+	public void afterReturning_shouldEvaluateAllColumnsWhenTheDesignsCannotBeRead() throws Throwable {
+		// no services are running, so the designs cannot be read
+		advice.afterReturning(null, saveReportDesign, new Object[] { design(PECGReportRunner.REPORT_NAME) }, null);
+		
+		assertThat(ColumnDemand.getColumns(), is(nullValue()));
+	}
+}
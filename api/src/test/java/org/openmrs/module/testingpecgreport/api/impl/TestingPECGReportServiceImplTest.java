@@ -0,0 +1,113 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.impl;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataVersion;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that a refresh of the ART snapshot forgets the numbers the rows it repaired may change.
+ */
+public class TestingPECGReportServiceImplTest extends BaseModuleContextSensitiveTest {
+	
+	@Autowired
+	DbSessionFactory sessionFactory;
+	
+	TestingPECGReportService service;
+	
+	/**
+	 * The module tables are created by liquibase.xml, which is not run against H2. Creating a table
+	 * commits in H2, so it has to be done before the test writes anything.
+	 */
+	@Before
+	public void createTables() {
+		sql("create table if not exists testingpecgreport_enrollment (patient_program_id int primary key,"
+		        + " patient_id int not null, program_id int not null, date_enrolled datetime, date_completed datetime)");
+		sql("create table if not exists testingpecgreport_visit (visit_id int primary key, patient_id int not null,"
+		        + " visit_type_id int not null, date_started datetime, location_id int)");
+		sql("create table if not exists testingpecgreport_indicator_result (testingpecgreport_indicator_result_id int"
+		        + " auto_increment primary key, uuid char(38), definition_version varchar(38), column_key varchar(50),"
+		        + " start_date datetime, end_date datetime, value int, date_created datetime)");
+		service = Context.getService(TestingPECGReportService.class);
+	}
+	
+	private void sql(String sql) {
+		sessionFactory.getCurrentSession().createSQLQuery(sql).executeUpdate();
+	}
+	
+	private static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month, day);
+		return cal.getTime();
+	}
+	
+	private void storeResult(Date startDate, Date endDate) {
+		sessionFactory.getCurrentSession()
+		        .createSQLQuery(
+		            "insert into testingpecgreport_indicator_result (uuid, definition_version, column_key, start_date,"
+		                    + " end_date, value, date_created) values (:uuid, 'v1', '2All', :startDate, :endDate, 1, :now)")
+		        .setString("uuid", UUID.randomUUID().toString()).setTimestamp("startDate", startDate)
+		        .setTimestamp("endDate", endDate).setTimestamp("now", new Date()).executeUpdate();
+	}
+	
+	private int countResults(Date startDate) {
+		return ((Number) sessionFactory.getCurrentSession()
+		        .createSQLQuery("select count(*) from testingpecgreport_indicator_result where start_date = :startDate")
+		        .setTimestamp("startDate", startDate).uniqueResult()).intValue();
+	}
+	
+	@Test
+	public void refreshArtSnapshot_shouldForgetTheStoredValuesOfThePeriodsOfTheRepairedRows() {
+		Context.getAdministrationService().setGlobalProperty(TestingPECGReportConfig.GP_ART_SNAPSHOT_HIGH_WATER_MARK, "");
+		service.refreshArtSnapshot();
+		storeResult(date(2016, Calendar.JANUARY, 1), date(2016, Calendar.JANUARY, 31));
+		storeResult(date(2016, Calendar.MARCH, 1), date(2016, Calendar.MARCH, 31));
+		// written without the advice, as an import would
+		Context.getVisitService().saveVisit(
+		    new Visit(Context.getPatientService().getPatient(2), Context.getVisitService().getVisitType(1), date(2016,
+		        Calendar.JANUARY, 10)));
+		Context.flushSession();
+		String dataVersion = PECGDataVersion.get();
+		
+		service.refreshArtSnapshot();
+		
+		assertThat(countResults(date(2016, Calendar.JANUARY, 1)), is(0));
+		assertThat(countResults(date(2016, Calendar.MARCH, 1)), is(1));
+		assertThat(PECGDataVersion.get(), is(not(dataVersion)));
+	}
+	
+	@Test
+	public void refreshArtSnapshot_shouldKeepTheStoredValuesWhenNothingChanged() {
+		Context.getAdministrationService().setGlobalProperty(TestingPECGReportConfig.GP_ART_SNAPSHOT_HIGH_WATER_MARK, "");
+		service.refreshArtSnapshot();
+		storeResult(date(2016, Calendar.JANUARY, 1), date(2016, Calendar.JANUARY, 31));
+		String dataVersion = PECGDataVersion.get();
+		
+		service.refreshArtSnapshot();
+		
+		assertThat(countResults(date(2016, Calendar.JANUARY, 1)), is(1));
+		assertThat(PECGDataVersion.get(), is(dataVersion));
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.junit.After;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the parsing of template placeholders and the union of the columns asked for.
+ */
+public class ColumnDemandTest {
+	
+	@After
+	public void reset() {
+		ColumnDemand.reset();
+	}
+	
+	@Test
+	public void parseTemplate_shouldReadThePlaceholderKeys() throws Exception {
+		HSSFWorkbook workbook = new HSSFWorkbook();
+		Sheet sheet = workbook.createSheet("PECG");
+		Row row = sheet.createRow(0);
+		row.createCell(0).setCellValue("Total");
+		row.createCell(1).setCellValue("#2All#");
+		row.createCell(2).setCellValue("#PECG Data Set.2F0# / #2M0#");
+		row.createCell(3).setCellValue(12);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		workbook.write(out);
+		
+		assertThat(ColumnDemand.parseTemplate(out.toByteArray()), contains("2All", "2F0", "2M0"));
+	}
+	
+	@Test
+	public void getColumns_shouldJoinTheDesignsAndTheRequests() {
+		assertThat(ColumnDemand.getColumns(), is(nullValue()));
+		
+		ColumnDemand.setDesignColumns(Arrays.asList("2All"));
+		long version = ColumnDemand.getVersion();
+		ColumnDemand.request(Collections.singleton("2F0"));
+		
+		assertThat(ColumnDemand.getColumns(), containsInAnyOrder("2All", "2F0"));
+		assertThat(ColumnDemand.getVersion(), is(greaterThan(version)));
+		
+		ColumnDemand.request(null);
+		
+		assertThat(ColumnDemand.getColumns(), is(nullValue()));
+	}
+	
+	@Test
+	public void request_shouldIncrementTheDataVersionOnlyWhenTheColumnsChange() {
+		ColumnDemand.setDesignColumns(Arrays.asList("2All"));
+		String dataVersion = PECGDataVersion.get();
+		
+		ColumnDemand.request(Collections.singleton("2F0"));
+		
+		assertThat(PECGDataVersion.get(), is(not(dataVersion)));
+		
+		dataVersion = PECGDataVersion.get();
+		ColumnDemand.setDesignColumns(Arrays.asList("2All"));
+		ColumnDemand.request(Collections.singleton("2F0"));
+		
+		assertThat(PECGDataVersion.get(), is(dataVersion));
+	}
+}
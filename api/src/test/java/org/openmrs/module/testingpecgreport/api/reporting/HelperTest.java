@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.report.ReportDesign;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.renderer.ExcelTemplateRenderer;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that report designs are only saved again when they changed.
+ */
+public class HelperTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String DESIGN_NAME = "Helper test design";
+	
+	ReportDefinition rd;
+	
+	Properties properties = new Properties();
+	
+	@Before
+	public void setup() {
+		rd = new ReportDefinition();
+		rd.setName("Helper test report");
+		Helper.saveReportDefinition(rd);
+		properties.put("sortWeight", "5000");
+	}
+	
+	private List<ReportDesign> getDesigns() {
+		Context.flushSession();
+		return Context.getService(ReportService.class).getReportDesigns(rd, null, false);
+	}
+	
+	@Test
+	public void registerReportDesign_shouldNotSaveAnUnchangedDesignAgain() throws Exception {
+		ReportDesign first = Helper.registerReportDesign(rd, "PECG.xls", DESIGN_NAME, properties,
+		    ExcelTemplateRenderer.class);
+		
+		ReportDesign second = Helper.registerReportDesign(rd, "PECG.xls", DESIGN_NAME, properties,
+		    ExcelTemplateRenderer.class);
+		
+		assertThat(second.getUuid(), is(first.getUuid()));
+		assertThat(getDesigns(), hasSize(1));
+	}
+	
+	@Test
+	public void registerReportDesign_shouldReplaceAChangedDesign() throws Exception {
+		ReportDesign first = Helper.registerReportDesign(rd, "PECG.xls", DESIGN_NAME, properties,
+		    ExcelTemplateRenderer.class);
+		properties.put("sortWeight", "6000");
+		
+		ReportDesign second = Helper.registerReportDesign(rd, "PECG.xls", DESIGN_NAME, properties,
+		    ExcelTemplateRenderer.class);
+		
+		assertThat(second.getUuid(), is(not(first.getUuid())));
+		List<ReportDesign> designs = getDesigns();
+		assertThat(designs, hasSize(1));
+		assertThat(designs.get(0).getUuid(), is(second.getUuid()));
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the batch evaluation of several periods gives the cells of one evaluation per period.
+ */
+public class PECGBatchRunnerTest extends BaseModuleContextSensitiveTest {
+	
+	@Before
+	public void setup() {
+		// the result store table is created by liquibase, which does not run in tests
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(TestingPECGReportConfig.GP_RESULT_STORE_CLOSED_AFTER_DAYS, "-1"));
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION, ""));
+		// the advice evicting it is registered by config.xml, which is not loaded in tests either
+		CohortResultCache.clear();
+		// the batch computes every column, the evaluation only the demanded ones
+		ColumnDemand.request(null);
+	}
+	
+	@After
+	public void reset() {
+		ColumnDemand.reset();
+	}
+	
+	private static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month - 1, day);
+		return cal.getTime();
+	}
+	
+	@Test
+	public void evaluate_shouldGiveTheCellsOfAnEvaluationPerPeriod() throws Exception {
+		List<ReportingPeriod> periods = ReportingPeriod.monthly(date(2016, 1, 1), 3);
+		new PECGDataGenerator(7).setPatients(200).generate(periods.get(0).getStartDate(), periods.get(2).getEndDate());
+		ReportRegistration.reset();
+		ReportRegistration.register();
+		
+		Map<ReportingPeriod, Map<String, Integer>> batch = Context.getRegisteredComponent(
+		    "testingpecgreport.PECGBatchRunner", PECGBatchRunner.class).evaluate(periods);
+		
+		assertThat(batch.keySet(), contains(periods.toArray()));
+		int counted = 0;
+		for (ReportingPeriod period : periods) {
+			MapDataSet dataSet = (MapDataSet) PECGReportRunner.evaluate(period.getStartDate(), period.getEndDate())
+			        .getDataSets().get(PECGReportRunner.DATA_SET_NAME);
+			for (DisaggregationColumn column : PECGReportRunner.getDataSetDefinition().getColumns()) {
+				assertThat(period + " " + column.getName(), batch.get(period).get(column.getName()),
+				    is(dataSet.getData().getColumnValue(column.getName())));
+			}
+			counted += batch.get(period).get("2All");
+		}
+		assertThat(counted, greaterThan(0));
+	}
+}
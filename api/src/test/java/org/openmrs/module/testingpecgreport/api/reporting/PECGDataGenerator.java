@@ -0,0 +1,286 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PatientProgram;
+import org.openmrs.PersonName;
+import org.openmrs.Program;
+import org.openmrs.Visit;
+import org.openmrs.VisitType;
+import org.openmrs.api.context.Context;
+
+/**
+ * Fills the standard OpenMRS test database with synthetic PECG data: patients with an HIV age and
+ * sex distribution, enrollments in program 1 and visits of the UPEC visit type looked up by
+ * SetupPECGReport, some of which fall outside of the period or are voided. Everything is generated
+ * from a seed, and the generator keeps what it saved so tests can compute the expected cells
+ * without going through the report.
+ */
+public class PECGDataGenerator {
+	
+	public static final String UPEC_VISIT_TYPE_UUID = "a7c2aaf0-c4e5-4310-aa94-07c7fe6a331a";
+	
+	/**
+	 * Upper age of each PECG age band, the last one is open
+	 */
+	private static final int[] BAND_MAX_AGES = { 0, 4, 9, 14, 19, 24, 49, 80 };
+	
+	/**
+	 * Share of patients in each band, in percent, close to an adult ART cohort
+	 */
+	private static final int[] BAND_WEIGHTS = { 1, 2, 2, 3, 5, 10, 60, 17 };
+	
+	private static final int FLUSH_INTERVAL = 100;
+	
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	
+	private final Random random;
+	
+	private int patients = 1000;
+	
+	private int enrolledPercent = 90;
+	
+	private int femalePercent = 60;
+	
+	private int maxUpecVisits = 3;
+	
+	private final List<GeneratedPatient> generated = new ArrayList<GeneratedPatient>();
+	
+	public PECGDataGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+	
+	public PECGDataGenerator setPatients(int patients) {
+		this.patients = patients;
+		return this;
+	}
+	
+	public PECGDataGenerator setEnrolledPercent(int enrolledPercent) {
+		this.enrolledPercent = enrolledPercent;
+		return this;
+	}
+	
+	public PECGDataGenerator setFemalePercent(int femalePercent) {
+		this.femalePercent = femalePercent;
+		return this;
+	}
+	
+	public PECGDataGenerator setMaxUpecVisits(int maxUpecVisits) {
+		this.maxUpecVisits = maxUpecVisits;
+		return this;
+	}
+	
+	/**
+	 * Saves the patients, their enrollments and visits around the given period and flushes them to
+	 * the database.
+	 * 
+	 * @param startDate start of the period the data is centered on
+	 * @param endDate end of the period, ages are drawn at this date
+	 * @return the generated patients
+	 */
+	public List<GeneratedPatient> generate(Date startDate, Date endDate) {
+		Program program = Context.getProgramWorkflowService().getProgram(1);
+		VisitType upecVisitType = getUpecVisitType();
+		VisitType otherVisitType = Context.getVisitService().getVisitType(1);
+		PatientIdentifierType identifierType = Context.getPatientService().getPatientIdentifierType(2);
+		Location location = Context.getLocationService().getLocation(1);
+		
+		for (int i = 0; i < patients; i++) {
+			GeneratedPatient generatedPatient = new GeneratedPatient();
+			Patient patient = new Patient();
+			patient.setGender(random.nextInt(100) < femalePercent ? "F" : "M");
+			patient.setBirthdate(drawBirthdate(endDate));
+			patient.addName(new PersonName("Synthetic", null, "Patient " + i));
+			PatientIdentifier identifier = new PatientIdentifier("PECG-" + i, identifierType, location);
+			identifier.setPreferred(true);
+			patient.addIdentifier(identifier);
+			Context.getPatientService().savePatient(patient);
+			generatedPatient.patientId = patient.getPatientId();
+			generatedPatient.birthdate = patient.getBirthdate();
+			generatedPatient.gender = patient.getGender();
+			
+			Date earliest = max(patient.getBirthdate(), new Date(startDate.getTime() - 5 * 365 * DAY));
+			if (random.nextInt(100) < enrolledPercent) {
+				PatientProgram enrollment = new PatientProgram();
+				enrollment.setPatient(patient);
+				enrollment.setProgram(program);
+				enrollment.setDateEnrolled(draw(earliest, new Date(endDate.getTime() + 30 * DAY)));
+				if (random.nextInt(100) < 15) {
+					enrollment.setDateCompleted(draw(enrollment.getDateEnrolled(), new Date(endDate.getTime() + 60
+					        * DAY)));
+				}
+				Context.getProgramWorkflowService().savePatientProgram(enrollment);
+				generatedPatient.dateEnrolled = enrollment.getDateEnrolled();
+				generatedPatient.dateCompleted = enrollment.getDateCompleted();
+			}
+			
+			Set<Date> days = new HashSet<Date>();
+			Date visitsFrom = max(patient.getBirthdate(), new Date(startDate.getTime() - 60 * DAY));
+			for (int visits = random.nextInt(maxUpecVisits + 1); visits >= 0; visits--) {
+				// the last visit is of another type, it must not count
+				boolean upec = visits > 0;
+				Date day = draw(visitsFrom, new Date(endDate.getTime() + 60 * DAY));
+				if (!days.add(day)) {
+					continue;
+				}
+				Visit visit = new Visit(patient, upec ? upecVisitType : otherVisitType, new Date(day.getTime() + 8 * 60
+				        * 60 * 1000));
+				visit.setStopDatetime(new Date(visit.getStartDatetime().getTime() + 60 * 60 * 1000));
+				visit.setLocation(location);
+				Context.getVisitService().saveVisit(visit);
+				if (upec && random.nextInt(20) == 0) {
+					Context.getVisitService().voidVisit(visit, "synthetic");
+				} else if (upec) {
+					generatedPatient.upecVisits.add(visit.getStartDatetime());
+				}
+			}
+			generated.add(generatedPatient);
+			
+			if (i % FLUSH_INTERVAL == FLUSH_INTERVAL - 1) {
+				Context.flushSession();
+				Context.clearSession();
+				program = Context.getProgramWorkflowService().getProgram(1);
+				upecVisitType = Context.getVisitService().getVisitTypeByUuid(UPEC_VISIT_TYPE_UUID);
+				otherVisitType = Context.getVisitService().getVisitType(1);
+				identifierType = Context.getPatientService().getPatientIdentifierType(2);
+				location = Context.getLocationService().getLocation(1);
+			}
+		}
+		Context.flushSession();
+		Context.clearSession();
+		return generated;
+	}
+	
+	/**
+	 * @return the patients saved so far
+	 */
+	public List<GeneratedPatient> getGenerated() {
+		return generated;
+	}
+	
+	private VisitType getUpecVisitType() {
+		VisitType ret = Context.getVisitService().getVisitTypeByUuid(UPEC_VISIT_TYPE_UUID);
+		if (ret == null) {
+			ret = new VisitType("UPEC", "Synthetic UPEC visit");
+			ret.setUuid(UPEC_VISIT_TYPE_UUID);
+			Context.getVisitService().saveVisitType(ret);
+		}
+		return ret;
+	}
+	
+	private Date drawBirthdate(Date endDate) {
+		int draw = random.nextInt(100);
+		int band = 0;
+		for (int weight = BAND_WEIGHTS[0]; draw >= weight; weight += BAND_WEIGHTS[band]) {
+			band++;
+		}
+		int minAge = band == 0 ? 0 : BAND_MAX_AGES[band - 1] + 1;
+		Calendar latest = Calendar.getInstance();
+		latest.setTime(endDate);
+		latest.add(Calendar.YEAR, -minAge);
+		Calendar earliest = Calendar.getInstance();
+		earliest.setTime(endDate);
+		earliest.add(Calendar.YEAR, -BAND_MAX_AGES[band] - 1);
+		return draw(new Date(earliest.getTime().getTime() + DAY), latest.getTime());
+	}
+	
+	/**
+	 * @return a random day, at midnight, between the given dates
+	 */
+	private Date draw(Date from, Date to) {
+		long days = Math.max(0, (to.getTime() - from.getTime()) / DAY);
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(new Date(from.getTime() + (long) (random.nextDouble() * days) * DAY));
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		return cal.getTime();
+	}
+	
+	private static Date max(Date left, Date right) {
+		return left.after(right) ? left : right;
+	}
+	
+	/**
+	 * What was saved for one patient
+	 */
+	public static class GeneratedPatient {
+		
+		private Integer patientId;
+		
+		private Date birthdate;
+		
+		private String gender;
+		
+		private Date dateEnrolled;
+		
+		private Date dateCompleted;
+		
+		private final List<Date> upecVisits = new ArrayList<Date>();
+		
+		public Integer getPatientId() {
+			return patientId;
+		}
+		
+		public Date getBirthdate() {
+			return birthdate;
+		}
+		
+		public String getGender() {
+			return gender;
+		}
+		
+		/**
+		 * @return whether the patient belongs to the PECG base cohort of the period: enrolled during
+		 *         the period with a non voided UPEC visit in it
+		 */
+		public boolean isCounted(Date startDate, Date endDate) {
+			if (dateEnrolled == null || dateEnrolled.after(endDate)
+			        || dateCompleted != null && dateCompleted.before(startDate)) {
+				return false;
+			}
+			for (Date visit : upecVisits) {
+				if (!visit.before(startDate) && !visit.after(endDate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * @return the age in completed years at the given date
+		 */
+		public int getAge(Date date) {
+			Calendar birth = Calendar.getInstance();
+			birth.setTime(birthdate);
+			Calendar at = Calendar.getInstance();
+			at.setTime(date);
+			int age = at.get(Calendar.YEAR) - birth.get(Calendar.YEAR);
+			if (at.get(Calendar.MONTH) < birth.get(Calendar.MONTH) || at.get(Calendar.MONTH) == birth.get(Calendar.MONTH)
+			        && at.get(Calendar.DAY_OF_MONTH) < birth.get(Calendar.DAY_OF_MONTH)) {
+				age--;
+			}
+			return age;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Cohort;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao.LineListHandler;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.library.Cohorts;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that PECGLineList writes one row per patient and matching column.
+ */
+public class PECGLineListTest {
+	
+	@InjectMocks
+	PECGLineList lineList;
+	
+	@Mock
+	TestingPECGReportDao dao;
+	
+	@Before
+	public void setupMocks() {
+		MockitoAnnotations.initMocks(this);
+	}
+	
+	private static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month - 1, day);
+		return cal.getTime();
+	}
+	
+	@Test
+	public void write_shouldWriteOneRowPerPatientAndMatchingColumn() throws Exception {
+		AgeSexDisaggregationDataSetDefinition dsd = new AgeSexDisaggregationDataSetDefinition();
+		dsd.addColumn("2F1", "Females 1-4", Cohorts.getAllAgeRanges().get(1), Cohorts.getFemales());
+		dsd.addColumn("2M1", "Males 1-4", Cohorts.getAllAgeRanges().get(1), Cohorts.getMales());
+		dsd.addColumn("2All", "All", null, Cohorts.getMalesAndFemales());
+		doAnswer(new Answer<Void>() {
+			
+			public Void answer(InvocationOnMock invocation) {
+				LineListHandler handler = (LineListHandler) invocation.getArguments()[1];
+				handler.handle(7, "ID-7, \"A\"", date(2014, 7, 1), "F");
+				handler.handle(8, null, null, "M");
+				return null;
+			}
+		}).when(dao).scanLineList(any(Cohort.class), any(LineListHandler.class));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PECGLineList.RowWriter writer = new PECGLineList.CsvRowWriter(out);
+		int rows = lineList.write(dsd, new Cohort(Collections.singleton(7)), date(2016, 6, 30), writer);
+		writer.finish();
+		
+		assertThat(rows, is(3));
+		assertThat(out.toString("UTF-8"), is("7,\"ID-7, \"\"A\"\"\",1,F,1-4,2F1\r\n7,\"ID-7, \"\"A\"\"\",1,F,,2All\r\n"
+		        + "8,,,M,,2All\r\n"));
+	}
+	
+	@Test
+	public void getAgeBand_shouldMatchTheColumnLabels() {
+		assertThat(PECGLineList.getAgeBand(Cohorts.getAllAgeRanges().get(0)), is("<1"));
+		assertThat(PECGLineList.getAgeBand(Cohorts.getAllAgeRanges().get(1)), is("1-4"));
+		assertThat(PECGLineList.getAgeBand(Cohorts.getAllAgeRanges().get(7)), is("50+"));
+	}
+	
+	@Test
+	public void getAge_shouldCountCompletedYears() {
+		assertThat(PECGLineList.getAge(date(2000, 7, 1), date(2016, 6, 30)), is(15));
+		assertThat(PECGLineList.getAge(date(2000, 6, 30), date(2016, 6, 30)), is(16));
+		assertThat(PECGLineList.getAge(null, date(2016, 6, 30)), is(nullValue()));
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataGenerator.GeneratedPatient;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the PECG Report end to end on synthetic data and checks every cell against the data the
+ * generator saved, and the evaluation time against a budget. Wall-clock budgets depend on the
+ * machine, so the budget is only checked when asked with -Dpecg.loadTest=true, the cells always are.
+ * The volume and the budget can be set with -Dpecg.loadTest.patients and
+ * -Dpecg.loadTest.maxMillisPerPatient.
+ */
+public class PECGReportLoadTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String[] ALL_KEYS = { "2All<1", "2All1-4", "2All5-9", "2All10-14", "2All15-19", "2All20-24",
+	        "2All25-49", "2All50-Above" };
+	
+	/**
+	 * Upper age of each PECG age band but the last, which is open
+	 */
+	private static final int[] BAND_MAX_AGES = { 0, 4, 9, 14, 19, 24, 49 };
+	
+	/**
+	 * Time allowed whatever the volume, for the first use of the statements and evaluators
+	 */
+	private static final long FIXED_BUDGET_MILLIS = 3000;
+	
+	private final boolean timed = Boolean.getBoolean("pecg.loadTest");
+	
+	private final int patients = Integer.getInteger("pecg.loadTest.patients", timed ? 1000 : 200);
+	
+	private final double maxMillisPerPatient = Double.parseDouble(System.getProperty("pecg.loadTest.maxMillisPerPatient",
+	    "2"));
+	
+	private final Date startDate = date(2016, 1, 1);
+	
+	private final Date endDate = date(2016, 3, 31);
+	
+	@Before
+	public void setup() {
+		// the result store table is created by liquibase, which does not run in tests
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(TestingPECGReportConfig.GP_RESULT_STORE_CLOSED_AFTER_DAYS, "-1"));
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION, ""));
+		// the advice evicting it is registered by config.xml, which is not loaded in tests either
+		CohortResultCache.clear();
+		// every cell is checked, not only those of the designs
+		ColumnDemand.request(null);
+	}
+	
+	@After
+	public void reset() {
+		ColumnDemand.reset();
+	}
+	
+	private static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month - 1, day);
+		return cal.getTime();
+	}
+	
+	@Test
+	public void evaluate_shouldCountTheGeneratedPatientsWithinTheTimeBudget() throws Exception {
+		List<GeneratedPatient> generated = new PECGDataGenerator(42).setPatients(patients).generate(startDate, endDate);
+		ReportRegistration.reset();
+		ReportRegistration.register();
+		
+		long started = System.currentTimeMillis();
+		ReportData data = PECGReportRunner.evaluate(startDate, endDate);
+		long elapsed = System.currentTimeMillis() - started;
+		
+		MapDataSet dataSet = (MapDataSet) data.getDataSets().get(PECGReportRunner.DATA_SET_NAME);
+		Map<String, Integer> expected = getExpectedCells(generated);
+		assertThat(expected.get("2All"), greaterThan(0));
+		for (Map.Entry<String, Integer> cell : expected.entrySet()) {
+			assertThat(cell.getKey(), (Integer) dataSet.getData().getColumnValue(cell.getKey()), is(cell.getValue()));
+		}
+		if (timed) {
+			long budget = FIXED_BUDGET_MILLIS + (long) (patients * maxMillisPerPatient);
+			assertThat("Evaluated " + patients + " patients in " + elapsed + " ms", elapsed, lessThanOrEqualTo(budget));
+		}
+	}
+	
+	private Map<String, Integer> getExpectedCells(List<GeneratedPatient> generated) {
+		Map<String, Integer> ret = new LinkedHashMap<String, Integer>();
+		for (int band = 0; band < ALL_KEYS.length; band++) {
+			ret.put(ALL_KEYS[band], 0);
+			ret.put("2M" + band, 0);
+			ret.put("2F" + band, 0);
+		}
+		ret.put("2All", 0);
+		for (GeneratedPatient patient : generated) {
+			if (!patient.isCounted(startDate, endDate)) {
+				continue;
+			}
+			int band = 0;
+			while (band < BAND_MAX_AGES.length && patient.getAge(endDate) > BAND_MAX_AGES[band]) {
+				band++;
+			}
+			increment(ret, ALL_KEYS[band]);
+			increment(ret, "2" + patient.getGender() + band);
+			increment(ret, "2All");
+		}
+		return ret;
+	}
+	
+	private static void increment(Map<String, Integer> cells, String key) {
+		cells.put(key, cells.get(key) + 1);
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that a precomputed PECG Report is restored from the result store after a restart.
+ */
+public class PECGReportRunnerTest extends BaseModuleContextSensitiveTest {
+	
+	@Autowired
+	DbSessionFactory sessionFactory;
+	
+	/**
+	 * The result store table is created by liquibase.xml, which is not run against H2. Creating a
+	 * table commits in H2, so it has to be done before the test writes anything.
+	 */
+	@Before
+	public void setup() {
+		sessionFactory.getCurrentSession().createSQLQuery(
+		    "create table if not exists testingpecgreport_indicator_result (testingpecgreport_indicator_result_id int"
+		            + " auto_increment primary key, uuid char(38), definition_version varchar(38), column_key varchar(50),"
+		            + " start_date datetime, end_date datetime, value int, date_created datetime)").executeUpdate();
+		// the evaluator stores nothing then, the values in the store are those of precompute
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(TestingPECGReportConfig.GP_RESULT_STORE_CLOSED_AFTER_DAYS, "-1"));
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION, ""));
+		// the advice evicting it is registered by config.xml, which is not loaded in tests
+		CohortResultCache.clear();
+		PrecomputedReports.clear();
+	}
+	
+	@After
+	public void clear() {
+		PrecomputedReports.clear();
+	}
+	
+	private static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month - 1, day);
+		return cal.getTime();
+	}
+	
+	@Test
+	public void restore_shouldRenderThePrecomputedValuesAgainAfterARestart() throws Exception {
+		List<ReportingPeriod> periods = ReportingPeriod.monthly(date(2016, 1, 1), 1);
+		ReportingPeriod period = periods.get(0);
+		new PECGDataGenerator(11).setPatients(100).generate(period.getStartDate(), period.getEndDate());
+		ReportRegistration.reset();
+		ReportRegistration.register();
+		assertThat(PECGReportRunner.precompute(period, PrecomputedReports.getGeneration()), is(true));
+		MapDataSet precomputed = (MapDataSet) PrecomputedReports.getData(period).getDataSets().get(
+		    PECGReportRunner.DATA_SET_NAME);
+		
+		// the memory of the reports is lost on restart
+		PrecomputedReports.clear();
+		assertThat(PECGReportRunner.restore(period, PrecomputedReports.getGeneration()), is(true));
+		
+		MapDataSet restored = (MapDataSet) PrecomputedReports.getData(period).getDataSets().get(
+		    PECGReportRunner.DATA_SET_NAME);
+		for (DisaggregationColumn column : PECGReportRunner.getDataSetDefinition().getColumns()) {
+			assertThat(column.getName(), restored.getData().getColumnValue(column.getName()),
+			    is(precomputed.getData().getColumnValue(column.getName())));
+		}
+		assertThat(PrecomputedReports.getRendered(PrecomputedReports.getData(period)), is(notNullValue()));
+	}
+	
+	@Test
+	public void restore_shouldNotRestoreAPeriodWhichWasNotPrecomputed() throws Exception {
+		ReportRegistration.reset();
+		ReportRegistration.register();
+		ReportingPeriod period = ReportingPeriod.monthly(date(2016, 2, 1), 1).get(0);
+		
+		assertThat(PECGReportRunner.restore(period, PrecomputedReports.getGeneration()), is(false));
+		assertThat(PrecomputedReports.getData(period), is(nullValue()));
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies which precomputed reports are evicted and that the rendered output follows its data.
+ */
+public class PrecomputedReportsTest {
+	
+	List<ReportingPeriod> periods = ReportingPeriod.monthly(new Date(0), 2);
+	
+	ReportData january = new ReportData();
+	
+	ReportData february = new ReportData();
+	
+	@Before
+	public void setup() {
+		PrecomputedReports.clear();
+		PatientIdBitmap members = new PatientIdBitmap();
+		members.add(7);
+		long generation = PrecomputedReports.getGeneration();
+		PrecomputedReports.put(periods.get(0), january, new byte[] { 1 }, members, generation);
+		PrecomputedReports.put(periods.get(1), february, new byte[] { 2 }, null, generation);
+	}
+	
+	@Test
+	public void getRendered_shouldReturnTheOutputOfThePrecomputedData() {
+		assertThat(PrecomputedReports.getData(periods.get(0)), sameInstance(january));
+		assertThat(PrecomputedReports.getRendered(february), is(new byte[] { 2 }));
+		assertThat(PrecomputedReports.getRendered(new ReportData()), nullValue());
+	}
+	
+	@Test
+	public void evictPatient_shouldEvictTheReportsCountingThePatientOrWithUnknownMembers() {
+		PrecomputedReports.evictPatient(8);
+		
+		assertThat(PrecomputedReports.getPeriods(), contains(periods.get(0)));
+		
+		PrecomputedReports.evictPatient(7);
+		
+		assertThat(PrecomputedReports.getPeriods(), is(empty()));
+	}
+	
+	@Test
+	public void evictPeriod_shouldEvictOnlyTheOverlappingReports() {
+		PrecomputedReports.evictPeriod(periods.get(1).getStartDate(), periods.get(1).getStartDate());
+		
+		assertThat(PrecomputedReports.getPeriods(), contains(periods.get(0)));
+	}
+	
+	@Test
+	public void put_shouldNotKeepAReportEvaluatedDuringAnEviction() {
+		long generation = PrecomputedReports.getGeneration();
+		PrecomputedReports.evictPatient(1);
+		
+		assertThat(PrecomputedReports.put(periods.get(0), new ReportData(), new byte[0], null, generation), is(false));
+		assertThat(PrecomputedReports.getData(periods.get(0)), sameInstance(january));
+	}
+}
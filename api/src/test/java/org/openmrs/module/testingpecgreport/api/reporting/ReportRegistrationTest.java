@@ -0,0 +1,96 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the states the registration of the PECG Report goes through.
+ */
+public class ReportRegistrationTest {
+	
+	SetupPECGReport setup = mock(SetupPECGReport.class);
+	
+	@Before
+	public void setup() {
+		ReportRegistration.reset();
+	}
+	
+	@After
+	public void cleanup() {
+		ReportRegistration.reset();
+	}
+	
+	@Test
+	public void register_shouldBeRunningUntilTheReportIsRegistered() throws Exception {
+		final ReportRegistration.State[] during = new ReportRegistration.State[1];
+		when(setup.setup()).thenAnswer(new Answer<Boolean>() {
+			
+			public Boolean answer(InvocationOnMock invocation) {
+				during[0] = ReportRegistration.getState();
+				return true;
+			}
+		});
+		assertThat(ReportRegistration.getState(), is(ReportRegistration.State.NOT_STARTED));
+		
+		ReportRegistration.register(setup);
+		
+		assertThat(during[0], is(ReportRegistration.State.RUNNING));
+		assertThat(ReportRegistration.getState(), is(ReportRegistration.State.REGISTERED));
+		assertThat(ReportRegistration.isChanged(), is(true));
+		assertThat(ReportRegistration.getError(), is(nullValue()));
+		assertThat(ReportRegistration.getDateFinished(), is(notNullValue()));
+	}
+	
+	@Test
+	public void register_shouldRecordTheFailure() throws Exception {
+		when(setup.setup()).thenThrow(new IllegalStateException("no program"));
+		
+		try {
+			ReportRegistration.register(setup);
+			fail("The failure should be rethrown");
+		}
+		catch (IllegalStateException e) {
+			assertThat(e.getMessage(), is("no program"));
+		}
+		
+		assertThat(ReportRegistration.getState(), is(ReportRegistration.State.FAILED));
+		assertThat(ReportRegistration.getError(), is("no program"));
+	}
+	
+	@Test
+	public void ensureRegistered_shouldNotRegisterAgainOnceRegistered() throws Exception {
+		when(setup.setup()).thenReturn(false);
+		ReportRegistration.register(setup);
+		
+		ReportRegistration.ensureRegistered();
+		
+		verify(setup, times(1)).setup();
+		assertThat(ReportRegistration.isChanged(), is(false));
+	}
+	
+	@Test
+	public void reset_shouldForgetTheRegistration() throws Exception {
+		when(setup.setup()).thenReturn(true);
+		ReportRegistration.register(setup);
+		
+		ReportRegistration.reset();
+		
+		assertThat(ReportRegistration.getState(), is(ReportRegistration.State.NOT_STARTED));
+		assertThat(ReportRegistration.getDateFinished(), is(nullValue()));
+	}
+}
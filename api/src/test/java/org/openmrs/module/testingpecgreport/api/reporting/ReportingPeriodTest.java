@@ -0,0 +1,47 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting;
+
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the monthly periods of the PECG batch runner.
+ */
+public class ReportingPeriodTest {
+	
+	@Test
+	public void monthly_shouldCoverConsecutiveCalendarMonths() throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		
+		List<ReportingPeriod> periods = ReportingPeriod.monthly(format.parse("2023-11-17"), 4);
+		
+		assertThat(periods.size(), is(4));
+		assertThat(periods.get(0).toString(), is("2023-11-01_2023-11-30"));
+		assertThat(periods.get(1).toString(), is("2023-12-01_2023-12-31"));
+		assertThat(periods.get(3).toString(), is("2024-02-01_2024-02-29"));
+		assertThat(periods.get(3), is(new ReportingPeriod(format.parse("2024-02-01"), ReportingPeriod.endOfDay(format
+		        .parse("2024-02-29")))));
+	}
+	
+	@Test
+	public void monthly_shouldEndAtTheLastMillisecondOfTheMonth() throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		
+		List<ReportingPeriod> periods = ReportingPeriod.monthly(format.parse("2024-02-10 08:00:00.000"), 1);
+		
+		assertThat(format.format(periods.get(0).getStartDate()), is("2024-02-01 00:00:00.000"));
+		assertThat(format.format(periods.get(0).getEndDate()), is("2024-02-29 23:59:59.999"));
+	}
+}
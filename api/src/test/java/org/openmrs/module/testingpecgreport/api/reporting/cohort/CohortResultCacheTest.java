@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies which cohorts are evicted by patient and by period, and that results computed during an
+ * eviction are not kept.
+ */
+public class CohortResultCacheTest {
+	
+	@Before
+	public void clear() {
+		CohortResultCache.clear();
+	}
+	
+	private static PatientIdBitmap members(int... patientIds) {
+		PatientIdBitmap ret = new PatientIdBitmap();
+		for (int patientId : patientIds) {
+			ret.add(patientId);
+		}
+		return ret;
+	}
+	
+	@Test
+	public void evictPatient_shouldEvictOnlyTheCohortsContainingThePatient() {
+		long generation = CohortResultCache.getGeneration();
+		CohortResultCache.put("january", new Date(0), new Date(100), members(1, 2), generation);
+		CohortResultCache.put("february", new Date(101), new Date(200), members(3), generation);
+		
+		CohortResultCache.evictPatient(2);
+		
+		assertThat(CohortResultCache.get("january"), nullValue());
+		assertThat(CohortResultCache.get("february").toArray(), is(new int[] { 3 }));
+	}
+	
+	@Test
+	public void evictPeriod_shouldEvictOnlyTheOverlappingCohorts() {
+		long generation = CohortResultCache.getGeneration();
+		CohortResultCache.put("january", new Date(0), new Date(100), members(1), generation);
+		CohortResultCache.put("february", new Date(101), new Date(200), members(2), generation);
+		CohortResultCache.put("march", new Date(201), new Date(300), members(3), generation);
+		
+		CohortResultCache.evictPeriod(new Date(150), null);
+		
+		assertThat(CohortResultCache.get("january"), notNullValue());
+		assertThat(CohortResultCache.get("february"), nullValue());
+		assertThat(CohortResultCache.get("march"), nullValue());
+	}
+	
+	@Test
+	public void put_shouldNotKeepAResultComputedDuringAnEviction() {
+		long generation = CohortResultCache.getGeneration();
+		CohortResultCache.evictPatient(1);
+		
+		assertThat(CohortResultCache.put("january", new Date(0), new Date(100), members(1), generation), is(false));
+		assertThat(CohortResultCache.get("january"), nullValue());
+	}
+}
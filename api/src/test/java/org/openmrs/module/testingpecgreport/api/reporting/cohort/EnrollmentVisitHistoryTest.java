@@ -0,0 +1,60 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.Date;
+
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that EnrollmentVisitHistory and DemographicsTable answer like the queries they replace.
+ */
+public class EnrollmentVisitHistoryTest {
+	
+	private static Date day(int day) {
+		return new Date(day * 24L * 60 * 60 * 1000);
+	}
+	
+	@Test
+	public void getPatientsEnrolledWithVisit_shouldMatchTheEnrollmentQuery() {
+		EnrollmentVisitHistory history = new EnrollmentVisitHistory();
+		history.addEnrollment(1, day(0), null);
+		history.addEnrollment(2, day(0), day(35));
+		history.addEnrollment(3, day(40), null);
+		history.addEnrollment(4, null, null);
+		for (int patientId = 1; patientId <= 4; patientId++) {
+			history.addVisit(patientId, day(45));
+			history.addVisit(patientId, day(10));
+		}
+		history.addVisit(5, day(10));
+		history.addVisit(1, null);
+		
+		assertThat(history.getPatientsEnrolledWithVisit(day(0), day(30)).toArray(), is(new int[] { 1, 2 }));
+		assertThat(history.getPatientsEnrolledWithVisit(day(31), day(60)).toArray(), is(new int[] { 1, 2, 3 }));
+		assertThat(history.getPatientsEnrolledWithVisit(day(61), day(90)).isEmpty(), is(true));
+	}
+	
+	@Test
+	public void indexOf_shouldFindPatientsAddedInAnyOrder() {
+		DemographicsTable table = new DemographicsTable();
+		for (int patientId = 3000; patientId > 0; patientId -= 3) {
+			table.add(patientId, patientId % 2 == 0 ? null : day(patientId), patientId % 2 == 0 ? "F" : "M");
+		}
+		table.seal();
+		
+		int index = table.indexOf(2001);
+		assertThat(table.getBirthdate(index), is(day(2001)));
+		assertThat(table.getGender(index), is("M"));
+		assertThat(table.getBirthdate(table.indexOf(3000)), is(nullValue()));
+		assertThat(table.indexOf(2), is(lessThan(0)));
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.cohort;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies PatientIdBitmap against TreeSet for sparse and dense chunks.
+ */
+public class PatientIdBitmapTest {
+	
+	private static int[] toArray(Set<Integer> set) {
+		int[] ret = new int[set.size()];
+		int i = 0;
+		for (Integer value : set) {
+			ret[i++] = value;
+		}
+		return ret;
+	}
+	
+	@Test
+	public void setOperations_shouldMatchTreeSetForSparseAndDenseChunks() {
+		Random random = new Random(42);
+		for (int round = 0; round < 20; round++) {
+			int range = round % 2 == 0 ? 300000 : 70000;
+			PatientIdBitmap first = new PatientIdBitmap();
+			PatientIdBitmap second = new PatientIdBitmap();
+			Set<Integer> firstSet = new TreeSet<Integer>();
+			Set<Integer> secondSet = new TreeSet<Integer>();
+			for (int i = random.nextInt(20000); i > 0; i--) {
+				int value = random.nextInt(range);
+				first.add(value);
+				firstSet.add(value);
+			}
+			for (int i = random.nextInt(20000); i > 0; i--) {
+				int value = random.nextInt(range);
+				second.add(value);
+				secondSet.add(value);
+			}
+			
+			Set<Integer> and = new TreeSet<Integer>(firstSet);
+			and.retainAll(secondSet);
+			Set<Integer> or = new TreeSet<Integer>(firstSet);
+			or.addAll(secondSet);
+			Set<Integer> andNot = new TreeSet<Integer>(firstSet);
+			andNot.removeAll(secondSet);
+			
+			assertThat(first.toArray(), is(toArray(firstSet)));
+			assertThat(first.and(second).toArray(), is(toArray(and)));
+			assertThat(first.or(second).toArray(), is(toArray(or)));
+			assertThat(first.andNot(second).toArray(), is(toArray(andNot)));
+			assertThat(first.or(second).getCardinality(), is(or.size()));
+		}
+	}
+	
+	@Test
+	public void or_shouldNotModifyTheOperands() {
+		PatientIdBitmap first = new PatientIdBitmap();
+		first.add(1);
+		PatientIdBitmap second = new PatientIdBitmap();
+		second.add(70000);
+		
+		PatientIdBitmap union = first.or(second);
+		union.add(2);
+		union.add(70001);
+		
+		assertThat(first.toArray(), is(new int[] { 1 }));
+		assertThat(second.toArray(), is(new int[] { 70000 }));
+		assertThat(union.contains(70001), is(true));
+	}
+}
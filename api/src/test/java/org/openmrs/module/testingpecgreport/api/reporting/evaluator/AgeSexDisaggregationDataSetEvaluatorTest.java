@@ -0,0 +1,312 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Cohort;
+import org.openmrs.Program;
+import org.openmrs.VisitType;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+import org.openmrs.module.reporting.evaluation.parameter.ParameterizableUtil;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao.DemographicsHandler;
+import org.openmrs.module.testingpecgreport.api.reporting.ColumnDemand;
+import org.openmrs.module.testingpecgreport.api.reporting.LocationPartitionedResult;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataVersion;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.PatientsEnrolledWithVisitCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.job.EvaluationWorkers;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that closed periods are served from the result store, that open periods are computed,
+ * that the scan of large cohorts is split among the evaluation workers, that columns nobody asks
+ * for are skipped and that the location total counts patients once.
+ */
+public class AgeSexDisaggregationDataSetEvaluatorTest {
+	
+	@InjectMocks
+	AgeSexDisaggregationDataSetEvaluator evaluator;
+	
+	@Mock
+	TestingPECGReportDao dao;
+	
+	@Mock
+	TestingPECGReportService service;
+	
+	@Mock
+	CohortDefinitionService cohortDefinitionService;
+	
+	@Mock
+	EvaluationWorkers workers;
+	
+	Date startDate = new Date(1000L);
+	
+	Date endDate = new Date(2000L);
+	
+	@Before
+	public void setupMocks() {
+		MockitoAnnotations.initMocks(this);
+		ColumnDemand.reset();
+	}
+	
+	@After
+	public void resetColumnDemand() {
+		ColumnDemand.reset();
+	}
+	
+	private AgeSexDisaggregationDataSetDefinition definition() {
+		AgeSexDisaggregationDataSetDefinition dsd = new AgeSexDisaggregationDataSetDefinition();
+		dsd.setName("PECG Data Set");
+		dsd.addColumn("2All", "All", null, null);
+		return dsd;
+	}
+	
+	private static PatientIdBitmap bitmap(int... patientIds) {
+		PatientIdBitmap ret = new PatientIdBitmap();
+		for (int patientId : patientIds) {
+			ret.add(patientId);
+		}
+		return ret;
+	}
+	
+	private EvaluationContext context() {
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue("reportingStartDate", startDate);
+		context.addParameterValue("endDate", endDate);
+		return context;
+	}
+	
+	@Test
+	public void evaluate_shouldServeClosedPeriodsFromTheResultStore() throws Exception {
+		AgeSexDisaggregationDataSetDefinition dsd = definition();
+		String version = AgeSexDisaggregationDataSetEvaluator.getDefinitionVersion(dsd);
+		Map<String, Integer> stored = new HashMap<String, Integer>();
+		stored.put("2All", 42);
+		when(service.isClosedPeriod(endDate)).thenReturn(true);
+		when(service.getIndicatorResults(version, startDate, endDate)).thenReturn(stored);
+		
+		MapDataSet dataSet = (MapDataSet) evaluator.evaluate(dsd, context());
+		
+		assertThat((Integer) dataSet.getData().getColumnValue("2All"), is(42));
+		verifyZeroInteractions(dao, cohortDefinitionService);
+		verify(service, never()).saveIndicatorResults(anyString(), any(Date.class), any(Date.class), anyMap());
+	}
+	
+	@Test
+	public void evaluate_shouldComputeAndStoreClosedPeriodsMissingFromTheStore() throws Exception {
+		AgeSexDisaggregationDataSetDefinition dsd = definition();
+		String version = AgeSexDisaggregationDataSetEvaluator.getDefinitionVersion(dsd);
+		when(service.isClosedPeriod(endDate)).thenReturn(true);
+		when(service.getIndicatorResults(version, startDate, endDate)).thenReturn(new HashMap<String, Integer>());
+		doAnswer(new Answer<Void>() {
+			
+			public Void answer(InvocationOnMock invocation) {
+				((DemographicsHandler) invocation.getArguments()[1]).handle(7, new Date(0L), "F");
+				return null;
+			}
+		}).when(dao).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		
+		MapDataSet dataSet = (MapDataSet) evaluator.evaluate(dsd, context());
+		
+		assertThat((Integer) dataSet.getData().getColumnValue("2All"), is(1));
+		verify(service).saveIndicatorResults(version, startDate, endDate, Collections.singletonMap("2All", 1));
+	}
+	
+	@Test
+	public void evaluate_shouldNotStoreValuesComputedWhileTheDataChanged() throws Exception {
+		AgeSexDisaggregationDataSetDefinition dsd = definition();
+		String version = AgeSexDisaggregationDataSetEvaluator.getDefinitionVersion(dsd);
+		when(service.isClosedPeriod(endDate)).thenReturn(true);
+		when(service.getIndicatorResults(version, startDate, endDate)).thenReturn(new HashMap<String, Integer>());
+		doAnswer(new Answer<Void>() {
+			
+			public Void answer(InvocationOnMock invocation) {
+				((DemographicsHandler) invocation.getArguments()[1]).handle(7, new Date(0L), "F");
+				// a visit saved during the scan
+				PECGDataVersion.increment();
+				return null;
+			}
+		}).when(dao).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		
+		MapDataSet dataSet = (MapDataSet) evaluator.evaluate(dsd, context());
+		
+		assertThat((Integer) dataSet.getData().getColumnValue("2All"), is(1));
+		verify(service, never()).saveIndicatorResults(anyString(), any(Date.class), any(Date.class), anyMap());
+	}
+	
+	@Test
+	public void evaluate_shouldNeitherReadNorStoreTheValuesOfABaseCohort() throws Exception {
+		AgeSexDisaggregationDataSetDefinition dsd = definition();
+		when(service.isClosedPeriod(endDate)).thenReturn(true);
+		doAnswer(new Answer<Void>() {
+			
+			public Void answer(InvocationOnMock invocation) {
+				((DemographicsHandler) invocation.getArguments()[1]).handle(7, new Date(0L), "F");
+				return null;
+			}
+		}).when(dao).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		EvaluationContext context = context();
+		context.setBaseCohort(new Cohort(Collections.singleton(7)));
+		
+		MapDataSet dataSet = (MapDataSet) evaluator.evaluate(dsd, context);
+		
+		assertThat((Integer) dataSet.getData().getColumnValue("2All"), is(1));
+		verify(service, never()).getIndicatorResults(anyString(), any(Date.class), any(Date.class));
+		verify(service, never()).saveIndicatorResults(anyString(), any(Date.class), any(Date.class), anyMap());
+	}
+	
+	@Test
+	public void evaluate_shouldSkipTheColumnsNoDesignReferences() throws Exception {
+		AgeSexDisaggregationDataSetDefinition dsd = definition();
+		GenderCohortDefinition female = new GenderCohortDefinition();
+		female.setFemaleIncluded(true);
+		dsd.addColumn("2F", "Female", null, female);
+		ColumnDemand.setDesignColumns(Collections.singleton("2F"));
+		doAnswer(new Answer<Void>() {
+			
+			public Void answer(InvocationOnMock invocation) {
+				((DemographicsHandler) invocation.getArguments()[1]).handle(7, new Date(0L), "F");
+				return null;
+			}
+		}).when(dao).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		
+		MapDataSet dataSet = (MapDataSet) evaluator.evaluate(dsd, context());
+		
+		assertThat((Integer) dataSet.getData().getColumnValue("2F"), is(1));
+		assertThat(dataSet.getData().getColumnValue("2All"), is(nullValue()));
+	}
+	
+	@Test
+	public void evaluate_shouldNotStoreOpenPeriods() throws Exception {
+		when(service.isClosedPeriod(endDate)).thenReturn(false);
+		
+		evaluator.evaluate(definition(), context());
+		
+		verify(dao).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		verify(service, never()).getIndicatorResults(anyString(), any(Date.class), any(Date.class));
+		verify(service, never()).saveIndicatorResults(anyString(), any(Date.class), any(Date.class), anyMap());
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void evaluate_shouldSplitTheScanOfLargeCohortsAmongTheWorkers() throws Exception {
+		Set<Integer> members = new HashSet<Integer>();
+		for (int patientId = 1; patientId <= 30000; patientId++) {
+			members.add(patientId);
+		}
+		EvaluationContext context = context();
+		context.setBaseCohort(new Cohort(members));
+		when(service.isClosedPeriod(endDate)).thenReturn(false);
+		when(workers.getParallelism()).thenReturn(3);
+		when(workers.invokeAll(anyList())).thenAnswer(new Answer<List<Object>>() {
+			
+			public List<Object> answer(InvocationOnMock invocation) throws Exception {
+				List<Object> ret = new ArrayList<Object>();
+				for (Callable<?> task : (List<Callable<?>>) invocation.getArguments()[0]) {
+					ret.add(task.call());
+				}
+				return ret;
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			
+			public Void answer(InvocationOnMock invocation) {
+				Cohort partition = (Cohort) invocation.getArguments()[0];
+				for (Integer patientId : partition.getMemberIds()) {
+					((DemographicsHandler) invocation.getArguments()[1]).handle(patientId, new Date(0L), "M");
+				}
+				return null;
+			}
+		}).when(dao).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		
+		MapDataSet dataSet = (MapDataSet) evaluator.evaluate(definition(), context);
+		
+		verify(dao, times(3)).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		assertThat((Integer) dataSet.getData().getColumnValue("2All"), is(30000));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void evaluateByLocation_shouldCountPatientsSeenAtSeveralLocationsOnceInTheTotal() throws Exception {
+		Program program = new Program(1);
+		VisitType visitType = new VisitType(2);
+		PatientsEnrolledWithVisitCohortDefinition cd = new PatientsEnrolledWithVisitCohortDefinition();
+		cd.setProgram(program);
+		cd.setVisitType(visitType);
+		cd.addParameter(new Parameter("onOrAfter", "onOrAfter", Date.class));
+		cd.addParameter(new Parameter("onOrBefore", "onOrBefore", Date.class));
+		AgeSexDisaggregationDataSetDefinition dsd = definition();
+		dsd.setCohortDefinition(cd,
+		    ParameterizableUtil.createParameterMappings("onOrAfter=${reportingStartDate},onOrBefore=${endDate}"));
+		Map<Integer, PatientIdBitmap> partitions = new LinkedHashMap<Integer, PatientIdBitmap>();
+		partitions.put(1, bitmap(7, 8));
+		partitions.put(2, bitmap(8, 9));
+		partitions.put(null, bitmap(10));
+		when(service.getPatientsEnrolledWithVisitByLocation(program, visitType, startDate, endDate)).thenReturn(
+		    partitions);
+		when(workers.invokeAll(anyList())).thenAnswer(new Answer<List<Object>>() {
+			
+			public List<Object> answer(InvocationOnMock invocation) throws Exception {
+				List<Object> ret = new ArrayList<Object>();
+				for (Callable<?> task : (List<Callable<?>>) invocation.getArguments()[0]) {
+					ret.add(task.call());
+				}
+				return ret;
+			}
+		});
+		doAnswer(new Answer<Void>() {
+			
+			public Void answer(InvocationOnMock invocation) {
+				for (Integer patientId : ((Cohort) invocation.getArguments()[0]).getMemberIds()) {
+					((DemographicsHandler) invocation.getArguments()[1]).handle(patientId, new Date(0L), "F");
+				}
+				return null;
+			}
+		}).when(dao).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+		EvaluationContext context = context();
+		
+		LocationPartitionedResult result = evaluator.evaluateByLocation(dsd, context);
+		
+		assertThat(result.getLocations().keySet(), contains(1, 2, null));
+		assertThat(result.getLocations().get(1).get("2All"), is(2));
+		assertThat(result.getLocations().get(2).get("2All"), is(2));
+		assertThat(result.getLocations().get(null).get("2All"), is(1));
+		assertThat(result.getTotal().get("2All"), is(4));
+		verify(dao, times(3)).scanDemographics(any(Cohort.class), any(DemographicsHandler.class));
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.module.testingpecgreport.api.reporting.library.Cohorts;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that AgeSexDisaggregator bins patients the way the age and gender cohort definitions do.
+ */
+public class AgeSexDisaggregatorTest {
+	
+	private static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month - 1, day);
+		return cal.getTime();
+	}
+	
+	private static List<DisaggregationColumn> columns() {
+		List<DisaggregationColumn> columns = new ArrayList<DisaggregationColumn>();
+		List<AgeCohortDefinition> ageRanges = Cohorts.getAllAgeRanges();
+		columns.add(new DisaggregationColumn("below1", "below1", ageRanges.get(0), null));
+		columns.add(new DisaggregationColumn("1-4", "1-4", ageRanges.get(1), null));
+		columns.add(new DisaggregationColumn("M1-4", "M1-4", ageRanges.get(1), Cohorts.getMales()));
+		columns.add(new DisaggregationColumn("F1-4", "F1-4", ageRanges.get(1), Cohorts.getFemales()));
+		columns.add(new DisaggregationColumn("50+", "50+", ageRanges.get(7), null));
+		columns.add(new DisaggregationColumn("all", "all", null, Cohorts.getMalesAndFemales()));
+		return columns;
+	}
+	
+	@Test
+	public void add_shouldBinPatientsByAgeAtEffectiveDateAndGender() {
+		AgeSexDisaggregator disaggregator = new AgeSexDisaggregator(columns(), date(2016, 6, 30));
+		
+		disaggregator.add(1, date(2016, 1, 1), "F");
+		disaggregator.add(2, date(2015, 6, 30), "M");
+		disaggregator.add(3, date(2015, 7, 1), "M");
+		disaggregator.add(4, date(2011, 7, 1), "F");
+		disaggregator.add(5, date(2011, 6, 30), "F");
+		disaggregator.add(6, date(1966, 6, 30), "U");
+		disaggregator.add(7, null, "M");
+		
+		assertThat(disaggregator.getCells().get("below1").toArray(), is(new int[] { 1, 3 }));
+		assertThat(disaggregator.getCells().get("1-4").toArray(), is(new int[] { 2, 4 }));
+		assertThat(disaggregator.getCells().get("M1-4").toArray(), is(new int[] { 2 }));
+		assertThat(disaggregator.getCells().get("F1-4").toArray(), is(new int[] { 4 }));
+		assertThat(disaggregator.getCells().get("50+").toArray(), is(new int[] { 6 }));
+		assertThat(disaggregator.getCells().get("all").toArray(), is(new int[] { 1, 2, 3, 4, 5, 7 }));
+	}
+	
+	@Test
+	public void addAll_shouldMergePartialScans() {
+		AgeSexDisaggregator first = new AgeSexDisaggregator(columns(), date(2016, 6, 30));
+		AgeSexDisaggregator second = new AgeSexDisaggregator(columns(), date(2016, 6, 30));
+		first.add(1, date(2016, 1, 1), "F");
+		second.add(2, date(2015, 6, 30), "M");
+		second.add(6, date(1966, 6, 30), "F");
+		
+		first.addAll(second);
+		
+		assertThat(first.getCells().get("1-4").toArray(), is(new int[] { 2 }));
+		assertThat(first.getCells().get("all").toArray(), is(new int[] { 1, 2, 6 }));
+		assertThat(second.getCells().get("all").toArray(), is(new int[] { 2, 6 }));
+	}
+	
+	@Test
+	public void getMatchingColumns_shouldReturnTheColumnsAPatientWouldBeAddedTo() {
+		AgeSexDisaggregator disaggregator = new AgeSexDisaggregator(columns(), date(2016, 6, 30));
+		
+		List<String> names = new ArrayList<String>();
+		for (DisaggregationColumn column : disaggregator.getMatchingColumns(date(2015, 6, 30), "M")) {
+			names.add(column.getName());
+		}
+		
+		assertThat(names, contains("1-4", "M1-4", "all"));
+		assertThat(disaggregator.getCells().get("all").getCardinality(), is(0));
+	}
+	
+	@Test
+	public void add_shouldNotBinPatientsBornAfterTheEffectiveDateInAnAgeRange() {
+		AgeSexDisaggregator disaggregator = new AgeSexDisaggregator(columns(), date(2016, 6, 30));
+		
+		disaggregator.add(1, date(2016, 6, 30), "F");
+		disaggregator.add(2, date(2016, 7, 1), "F");
+		
+		assertThat(disaggregator.getCells().get("below1").toArray(), is(new int[] { 1 }));
+		assertThat(disaggregator.getCells().get("all").toArray(), is(new int[] { 1, 2 }));
+	}
+}
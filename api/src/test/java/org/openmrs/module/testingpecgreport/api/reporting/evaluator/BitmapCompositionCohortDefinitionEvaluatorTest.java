@@ -0,0 +1,152 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.Cohort;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.BitmapCompositionCohortDefinition;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the parsing of the composition string: precedence, parentheses, NOT relative to the base
+ * cohort or to all patients, and the rejection of malformed strings.
+ */
+public class BitmapCompositionCohortDefinitionEvaluatorTest {
+	
+	@InjectMocks
+	BitmapCompositionCohortDefinitionEvaluator evaluator;
+	
+	@Mock
+	TestingPECGReportDao dao;
+	
+	@Mock
+	CohortDefinitionService cohortDefinitionService;
+	
+	BitmapCompositionCohortDefinition definition;
+	
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		definition = new BitmapCompositionCohortDefinition();
+		definition.setName("test");
+		addSearch("A", 1, 2, 3);
+		addSearch("B", 3, 4);
+		addSearch("C", 4, 5);
+		PatientIdBitmap all = new PatientIdBitmap();
+		for (int patientId = 1; patientId <= 8; patientId++) {
+			all.add(patientId);
+		}
+		when(dao.getPatientIds()).thenReturn(all);
+	}
+	
+	private void addSearch(String key, Integer... patientIds) {
+		definition.getSearches().put(key, new Mapped<CohortDefinition>(new GenderCohortDefinition(), null));
+		when(cohortDefinitionService.evaluate(eq(definition.getSearches().get(key)), any(EvaluationContext.class)))
+		        .thenReturn(new EvaluatedCohort(new Cohort(Arrays.asList(patientIds)), null, null));
+	}
+	
+	private Set<Integer> evaluate(String compositionString, EvaluationContext context) throws Exception {
+		definition.setCompositionString(compositionString);
+		return evaluator.evaluate(definition, context).getMemberIds();
+	}
+	
+	private Set<Integer> evaluate(String compositionString) throws Exception {
+		return evaluate(compositionString, new EvaluationContext());
+	}
+	
+	private static Set<Integer> ids(Integer... patientIds) {
+		return new HashSet<Integer>(Arrays.asList(patientIds));
+	}
+	
+	@Test
+	public void evaluate_shouldBindAndTighterThanOr() throws Exception {
+		assertThat(evaluate("A or B and C"), is(ids(1, 2, 3, 4)));
+		assertThat(evaluate("B and C OR A"), is(ids(1, 2, 3, 4)));
+	}
+	
+	@Test
+	public void evaluate_shouldApplyParenthesesFirst() throws Exception {
+		assertThat(evaluate("(A or B) and C"), is(ids(4)));
+		assertThat(evaluate("A and (B or C)"), is(ids(3)));
+	}
+	
+	@Test
+	public void evaluate_shouldBindNotTighterThanAnd() throws Exception {
+		assertThat(evaluate("not A and B"), is(ids(4)));
+		assertThat(evaluate("not (A or B)"), is(ids(5, 6, 7, 8)));
+	}
+	
+	@Test
+	public void evaluate_shouldTakeNotRelativeToTheBaseCohort() throws Exception {
+		EvaluationContext context = new EvaluationContext();
+		context.setBaseCohort(new Cohort(Arrays.asList(2, 3, 4, 6)));
+		
+		assertThat(evaluate("not A", context), is(ids(4, 6)));
+		verify(dao, never()).getPatientIds();
+	}
+	
+	@Test
+	public void evaluate_shouldTakeNotRelativeToAllPatientsWithoutBaseCohort() throws Exception {
+		assertThat(evaluate("not A"), is(ids(4, 5, 6, 7, 8)));
+		verify(dao).getPatientIds();
+	}
+	
+	@Test
+	public void evaluate_shouldEvaluateEachSearchOnce() throws Exception {
+		evaluate("A and (A or not A)");
+		
+		verify(cohortDefinitionService, times(1)).evaluate(eq(definition.getSearches().get("A")),
+		    any(EvaluationContext.class));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void evaluate_shouldFailOnAMissingClosingParenthesis() throws Exception {
+		evaluate("(A or B");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void evaluate_shouldFailOnAnUnexpectedClosingParenthesis() throws Exception {
+		evaluate("A or B)");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void evaluate_shouldFailOnAnIncompleteString() throws Exception {
+		evaluate("A and");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void evaluate_shouldFailOnTwoSearchesWithoutOperator() throws Exception {
+		evaluate("A B");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void evaluate_shouldFailOnAnUnknownSearch() throws Exception {
+		evaluate("A or D");
+	}
+}
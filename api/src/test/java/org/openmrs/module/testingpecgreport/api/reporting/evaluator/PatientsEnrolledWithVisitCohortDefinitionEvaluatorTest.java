@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.evaluator;
+
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.openmrs.Program;
+import org.openmrs.VisitType;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.CohortResultCache;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.PatientsEnrolledWithVisitCohortDefinition;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the enrollment query runs once per period within an evaluation context, and across
+ * contexts until the cohort is evicted.
+ */
+public class PatientsEnrolledWithVisitCohortDefinitionEvaluatorTest {
+	
+	@InjectMocks
+	PatientsEnrolledWithVisitCohortDefinitionEvaluator evaluator;
+	
+	@Mock
+	TestingPECGReportService service;
+	
+	Program program = new Program(1);
+	
+	VisitType visitType = new VisitType(2);
+	
+	@Before
+	public void setupMocks() {
+		MockitoAnnotations.initMocks(this);
+		CohortResultCache.clear();
+	}
+	
+	private PatientsEnrolledWithVisitCohortDefinition definition(Date onOrAfter, Date onOrBefore) {
+		PatientsEnrolledWithVisitCohortDefinition cd = new PatientsEnrolledWithVisitCohortDefinition();
+		cd.setProgram(program);
+		cd.setVisitType(visitType);
+		cd.setOnOrAfter(onOrAfter);
+		cd.setOnOrBefore(onOrBefore);
+		return cd;
+	}
+	
+	@Test
+	public void evaluate_shouldQueryOncePerPeriodWithinAContext() throws Exception {
+		Date start = new Date(1000L);
+		Date end = new Date(2000L);
+		PatientIdBitmap members = new PatientIdBitmap();
+		members.add(7);
+		when(service.getPatientsEnrolledWithVisit(program, visitType, start, end)).thenReturn(members);
+		long queries = PatientsEnrolledWithVisitCohortDefinitionEvaluator.getQueryCount();
+		long hits = PatientsEnrolledWithVisitCohortDefinitionEvaluator.getCacheHitCount();
+		
+		EvaluationContext context = new EvaluationContext();
+		EvaluatedCohort first = evaluator.evaluate(definition(start, end), context);
+		EvaluatedCohort second = evaluator.evaluate(definition(new Date(1000L), new Date(2000L)), context);
+		
+		verify(service, times(1)).getPatientsEnrolledWithVisit(program, visitType, start, end);
+		assertThat(first.getMemberIds(), contains(7));
+		assertThat(second.getMemberIds(), contains(7));
+		assertThat(PatientsEnrolledWithVisitCohortDefinitionEvaluator.getQueryCount(), is(queries + 1));
+		assertThat(PatientsEnrolledWithVisitCohortDefinitionEvaluator.getCacheHitCount(), is(hits + 1));
+	}
+	
+	@Test
+	public void evaluate_shouldReuseTheResultAcrossContextsUntilEvicted() throws Exception {
+		Date start = new Date(3000L);
+		Date end = new Date(4000L);
+		PatientIdBitmap members = new PatientIdBitmap();
+		members.add(8);
+		when(service.getPatientsEnrolledWithVisit(program, visitType, start, end)).thenReturn(members);
+		
+		evaluator.evaluate(definition(start, end), new EvaluationContext());
+		EvaluatedCohort cached = evaluator.evaluate(definition(start, end), new EvaluationContext());
+		CohortResultCache.evictPatient(8);
+		evaluator.evaluate(definition(start, end), new EvaluationContext());
+		
+		assertThat(cached.getMemberIds(), contains(8));
+		verify(service, times(2)).getPatientsEnrolledWithVisit(program, visitType, start, end);
+	}
+}
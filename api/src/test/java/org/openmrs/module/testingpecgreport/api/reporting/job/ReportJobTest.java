@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.job;
+
+import org.junit.Test;
+import org.openmrs.User;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the progress reporting and ownership of ReportJob.
+ */
+public class ReportJobTest {
+	
+	@Test
+	public void run_shouldReportTheProgressOfTheCurrentJob() {
+		final ReportJob job = new ReportJob("test");
+		final int[] percent = new int[1];
+		job.run(new ReportJob.Work() {
+			
+			public void run(ReportJob current) {
+				assertThat(ReportJob.getCurrent(), is(sameInstance(job)));
+				ReportJob.addSteps(4);
+				ReportJob.step("first");
+				percent[0] = current.getPercentComplete();
+			}
+		});
+		
+		assertThat(percent[0], is(25));
+		assertThat(job.getStatus(), is(ReportJob.Status.COMPLETED));
+		assertThat(job.getCurrentStep(), is("first"));
+		assertThat(job.getPercentComplete(), is(100));
+		assertThat(ReportJob.getCurrent(), is(nullValue()));
+	}
+	
+	@Test
+	public void run_shouldRecordFailures() {
+		ReportJob job = new ReportJob("test");
+		job.run(new ReportJob.Work() {
+			
+			public void run(ReportJob current) {
+				throw new IllegalStateException("broken");
+			}
+		});
+		
+		assertThat(job.getStatus(), is(ReportJob.Status.FAILED));
+		assertThat(job.getError(), is("broken"));
+	}
+	
+	@Test
+	public void isOwnedBy_shouldOnlyAcceptTheUserWhoSubmittedTheJob() {
+		ReportJob job = new ReportJob("test", new User(3));
+		
+		assertThat(job.isOwnedBy(new User(3)), is(true));
+		assertThat(job.isOwnedBy(new User(4)), is(false));
+		assertThat(job.isOwnedBy(null), is(false));
+		assertThat(new ReportJob("test").isOwnedBy(new User(3)), is(false));
+	}
+	
+	@Test
+	public void step_shouldDoNothingOutsideOfAJob() {
+		ReportJob.addSteps(1);
+		ReportJob.step("ignored");
+		
+		assertThat(ReportJob.getCurrent(), is(nullValue()));
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.job;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openmrs.api.APIException;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that SingleFlight shares in-flight computations and bounds the distinct ones.
+ */
+public class SingleFlightTest {
+	
+	@Test
+	public void run_shouldShareTheResultOfTheComputationInFlight() throws Exception {
+		final SingleFlight<Integer> flights = new SingleFlight<Integer>(1, 0);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Integer> leader = executor.submit(new Callable<Integer>() {
+				
+				public Integer call() throws Exception {
+					return flights.run("january", new Callable<Integer>() {
+						
+						public Integer call() throws Exception {
+							runs.incrementAndGet();
+							started.countDown();
+							release.await();
+							return 42;
+						}
+					});
+				}
+			});
+			started.await(10, TimeUnit.SECONDS);
+			Future<Integer> follower = executor.submit(new Callable<Integer>() {
+				
+				public Integer call() throws Exception {
+					return flights.run("january", new Callable<Integer>() {
+						
+						public Integer call() {
+							runs.incrementAndGet();
+							return 0;
+						}
+					});
+				}
+			});
+			while (flights.getCoalescedCount() == 0) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+			
+			assertThat(leader.get(10, TimeUnit.SECONDS), is(42));
+			assertThat(follower.get(10, TimeUnit.SECONDS), is(42));
+			assertThat(runs.get(), is(1));
+			assertThat(flights.getInFlightCount(), is(0));
+		}
+		finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void run_shouldRefuseComputationsBeyondTheLimit() throws Exception {
+		final SingleFlight<Integer> flights = new SingleFlight<Integer>(1, 0);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(new Callable<Integer>() {
+				
+				public Integer call() throws Exception {
+					return flights.run("january", new Callable<Integer>() {
+						
+						public Integer call() throws Exception {
+							started.countDown();
+							release.await();
+							return 1;
+						}
+					});
+				}
+			});
+			started.await(10, TimeUnit.SECONDS);
+			
+			try {
+				flights.run("february", new Callable<Integer>() {
+					
+					public Integer call() {
+						return 2;
+					}
+				});
+				fail("the second distinct computation should have been refused");
+			}
+			catch (APIException e) {
+				assertThat(flights.getInFlightCount(), is(1));
+			}
+		}
+		finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void run_shouldCountTheComputationsOfSingleFlightsSharingALimit() throws Exception {
+		SingleFlight.Limit limit = new SingleFlight.Limit(1, 0);
+		final SingleFlight<Integer> reports = new SingleFlight<Integer>(limit);
+		SingleFlight<String> locations = new SingleFlight<String>(limit);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(new Callable<Integer>() {
+				
+				public Integer call() throws Exception {
+					return reports.run("january", new Callable<Integer>() {
+						
+						public Integer call() throws Exception {
+							started.countDown();
+							release.await();
+							return 1;
+						}
+					});
+				}
+			});
+			started.await(10, TimeUnit.SECONDS);
+			
+			try {
+				locations.run("january", new Callable<String>() {
+					
+					public String call() {
+						return "by location";
+					}
+				});
+				fail("the computation of the other SingleFlight should have been refused");
+			}
+			catch (APIException e) {
+				assertThat(locations.getInFlightCount(), is(0));
+			}
+		}
+		finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.library;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openmrs.module.reporting.cohort.definition.AgeCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that structurally equal definitions are interned to one canonical instance.
+ */
+public class DefinitionRegistryTest {
+	
+	@After
+	public void tearDown() {
+		DefinitionRegistry.endScope();
+	}
+	
+	@Test
+	public void intern_shouldReturnTheSameInstanceForStructurallyEqualDefinitionsWithinAScope() {
+		DefinitionRegistry.beginScope();
+		
+		assertThat(Cohorts.getMales(), is(sameInstance(Cohorts.getMales())));
+		assertThat(Cohorts.getAllAgeRanges().get(3), is(sameInstance(Cohorts.getAllAgeRanges().get(3))));
+	}
+	
+	@Test
+	public void intern_shouldNotRetainDefinitionsOutsideAScope() {
+		GenderCohortDefinition males = Cohorts.getMales();
+		assertThat(Cohorts.getMales(), is(not(sameInstance(males))));
+		assertThat(Cohorts.getMales().getUuid(), is(males.getUuid()));
+		
+		DefinitionRegistry.beginScope();
+		AgeCohortDefinition ageRange = Cohorts.getAllAgeRanges().get(3);
+		DefinitionRegistry.endScope();
+		assertThat(Cohorts.getAllAgeRanges().get(3), is(not(sameInstance(ageRange))));
+		assertThat(Cohorts.getAllAgeRanges().get(3).getUuid(), is(ageRange.getUuid()));
+	}
+	
+	@Test
+	public void identify_shouldGiveStructurallyEqualDefinitionsTheSameUuidWithoutInterningThem() {
+		DefinitionRegistry.beginScope();
+		
+		CompositionCohortDefinition first = Cohorts.getpatientInYearRange(Cohorts.getAllAgeRanges().get(1),
+		    Cohorts.getFemales());
+		CompositionCohortDefinition second = Cohorts.getpatientInYearRange(Cohorts.getAllAgeRanges().get(1),
+		    Cohorts.getFemales());
+		assertThat(second, is(not(sameInstance(first))));
+		assertThat(second.getUuid(), is(first.getUuid()));
+		assertThat(Indicators.getAllPatientsIndicator().getUuid(), is(Indicators.getAllPatientsIndicator().getUuid()));
+	}
+	
+	@Test
+	public void intern_shouldKeepDefinitionsWithDifferentPropertiesApart() {
+		DefinitionRegistry.beginScope();
+		
+		assertThat(Cohorts.getMales(), is(not(sameInstance(Cohorts.getFemales()))));
+		
+		CompositionCohortDefinition maleCells = Cohorts.getpatientInYearRange(Cohorts.getAllAgeRanges().get(1),
+		    Cohorts.getMales());
+		CompositionCohortDefinition femaleCells = Cohorts.getpatientInYearRange(Cohorts.getAllAgeRanges().get(1),
+		    Cohorts.getFemales());
+		assertThat(maleCells.getUuid(), is(not(femaleCells.getUuid())));
+	}
+	
+	@Test
+	public void getKey_shouldNotDependOnUuid() {
+		GenderCohortDefinition first = new GenderCohortDefinition();
+		first.setMaleIncluded(true);
+		GenderCohortDefinition second = new GenderCohortDefinition();
+		second.setMaleIncluded(true);
+		
+		assertThat(first.getUuid(), is(not(second.getUuid())));
+		assertThat(DefinitionRegistry.getKey(first), is(DefinitionRegistry.getKey(second)));
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.metrics;
+
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the rolling percentiles and the recording of runs.
+ */
+public class EvaluationMetricsTest {
+	
+	@After
+	public void reset() {
+		EvaluationMetrics.reset();
+	}
+	
+	@Test
+	public void getSnapshot_shouldComputePercentilesOverTheWindow() {
+		TimingStats stats = new TimingStats();
+		for (int i = 1; i <= TimingStats.WINDOW_SIZE + 100; i++) {
+			stats.add(i, 0, i, i % 2 == 0);
+		}
+		
+		TimingStats.Snapshot snapshot = stats.getSnapshot();
+		
+		assertThat(snapshot.getCount(), is((long) TimingStats.WINDOW_SIZE + 100));
+		assertThat(snapshot.getCacheHits(), is(150L));
+		assertThat(snapshot.getCacheMisses(), is(150L));
+		assertThat(snapshot.getLastRows(), is(300));
+		assertThat(snapshot.getP50Millis(), is(200.0));
+		assertThat(snapshot.getP90Millis(), is(280.0));
+		assertThat(snapshot.getP99Millis(), is(298.0));
+		assertThat(snapshot.getMaxMillis(), is(300.0));
+	}
+	
+	@Test
+	public void record_shouldAddStagesToTheRunOfTheCurrentThread() {
+		EvaluationRun run = EvaluationMetrics.startRun("PECG", new Date(0), new Date(1000));
+		EvaluationMetrics.record("cohort:enrolled", 2000000, 1000000, 42, false);
+		run.addCardinality("total", 42);
+		EvaluationMetrics.finishRun(run);
+		EvaluationMetrics.record("cohort:enrolled", 1000000, 0, 42, true);
+		
+		assertThat(EvaluationMetrics.getCurrentRun(), nullValue());
+		assertThat(EvaluationMetrics.getRuns(), contains(run));
+		assertThat(run.getStages().size(), is(1));
+		assertThat(run.getStages().get(0).getSqlMillis(), is(1.0));
+		assertThat(run.getCardinalities().get("total"), is(42));
+		
+		TimingStats.Snapshot cohort = EvaluationMetrics.getStats().get("cohort:enrolled");
+		assertThat(cohort.getCount(), is(2L));
+		assertThat(cohort.getCacheHits(), is(1L));
+		assertThat(cohort.getCacheMisses(), is(1L));
+		assertThat(EvaluationMetrics.getStats().get("dataset:PECG").getCount(), is(1L));
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.api.reporting.renderer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.junit.Test;
+import org.openmrs.module.testingpecgreport.api.reporting.renderer.StreamingXlsxTemplateRenderer.RepeatingSection;
+import org.openmrs.module.testingpecgreport.api.reporting.renderer.StreamingXlsxTemplateRenderer.SheetWriter;
+import org.openmrs.module.testingpecgreport.api.reporting.renderer.StreamingXlsxTemplateRenderer.StyleCopier;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the repeating sections and placeholders of StreamingXlsxTemplateRenderer.
+ */
+public class StreamingXlsxTemplateRendererTest {
+	
+	@Test
+	public void parse_shouldReadSheetAndRowSections() {
+		Map<Integer, RepeatingSection> sections = RepeatingSection
+		        .parse("sheet:1,dataset:PECG Data Set | sheet:2,row:6-7,dataset:patients");
+		
+		assertThat(sections.get(1).dataSetName, is("PECG Data Set"));
+		assertThat(sections.get(1).firstRow, is(nullValue()));
+		assertThat(sections.get(2).dataSetName, is("patients"));
+		assertThat(sections.get(2).firstRow, is(6));
+		assertThat(sections.get(2).lastRow, is(7));
+	}
+	
+	@Test
+	public void copyRows_shouldReplacePlaceholdersKeepingNumbersNumeric() {
+		HSSFWorkbook template = new HSSFWorkbook();
+		Row templateRow = template.createSheet("PECG").createRow(0);
+		templateRow.createCell(0).setCellValue("#2All#");
+		templateRow.createCell(1).setCellValue("Total on #parameter.endDate#: #2All#");
+		templateRow.createCell(2).setCellValue("#unknown#");
+		SXSSFWorkbook workbook = new SXSSFWorkbook(StreamingXlsxTemplateRenderer.WINDOW_SIZE);
+		Sheet sheet = workbook.createSheet("PECG");
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("2All", 42);
+		values.put("parameter.endDate", "2016-06-30");
+		
+		SheetWriter writer = new SheetWriter(template.getSheetAt(0), sheet, new StyleCopier(template, workbook));
+		writer.copyRows(0, 0, values);
+		writer.copyRows(0, 0, values);
+		
+		Row row = sheet.getRow(1);
+		assertThat(row.getCell(0).getCellType(), is(Cell.CELL_TYPE_NUMERIC));
+		assertThat(row.getCell(0).getNumericCellValue(), is(42.0));
+		assertThat(row.getCell(1).getStringCellValue(), is("Total on 2016-06-30: 42"));
+		assertThat(row.getCell(2).getStringCellValue(), is("#unknown#"));
+		workbook.dispose();
+	}
+	
+	@Test
+	public void copyRows_shouldReplacePlaceholdersQualifiedByADataSetNameWithSpaces() {
+		HSSFWorkbook template = new HSSFWorkbook();
+		template.createSheet("PECG").createRow(0).createCell(0).setCellValue("#PECG Data Set.2All#");
+		SXSSFWorkbook workbook = new SXSSFWorkbook(StreamingXlsxTemplateRenderer.WINDOW_SIZE);
+		Sheet sheet = workbook.createSheet("PECG");
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("PECG Data Set.2All", 42);
+		
+		new SheetWriter(template.getSheetAt(0), sheet, new StyleCopier(template, workbook)).copyRows(0, 0, values);
+		
+		assertThat(sheet.getRow(0).getCell(0).getNumericCellValue(), is(42.0));
+		workbook.dispose();
+	}
+	
+	@Test
+	public void flush_shouldWriteTheRowsOfAFinishedSheetOut() throws IOException {
+		HSSFWorkbook template = new HSSFWorkbook();
+		template.createSheet("PECG").createRow(0).createCell(0).setCellValue("#2All#");
+		SXSSFWorkbook workbook = new SXSSFWorkbook(StreamingXlsxTemplateRenderer.WINDOW_SIZE);
+		Sheet sheet = workbook.createSheet("PECG");
+		SheetWriter writer = new SheetWriter(template.getSheetAt(0), sheet, new StyleCopier(template, workbook));
+		writer.copyRows(0, 0, new HashMap<String, Object>());
+		
+		writer.flush();
+		
+		assertThat(sheet.getRow(0), is(nullValue()));
+		workbook.dispose();
+	}
+}
@@ -9,12 +9,39 @@
  */
 package org.openmrs.module.testingpecgreport.dao;
 
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
 import org.junit.Test;
 import org.junit.Ignore;
+import org.openmrs.Cohort;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientProgram;
+import org.openmrs.PersonName;
+import org.openmrs.Program;
+import org.openmrs.Visit;
+import org.openmrs.VisitType;
 import org.openmrs.api.UserService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.module.testingpecgreport.Item;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
 import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao.DemographicsHandler;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataGenerator;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataGenerator.GeneratedPatient;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.ArtSnapshotChanges;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 import static org.hamcrest.Matchers.*;
@@ -34,6 +61,9 @@ public class TestingPECGReportDaoTest extends BaseModuleContextSensitiveTest {
 	@Autowired
 	UserService userService;
 	
+	@Autowired
+	DbSessionFactory sessionFactory;
+	
 	@Test
 	@Ignore("Unignore if you want to make the Item class persistable, see also Item and liquibase.xml")
 	public void saveItem_shouldSaveAllPropertiesInDb() {
@@ -57,4 +87,248 @@ public class TestingPECGReportDaoTest extends BaseModuleContextSensitiveTest {
 		assertThat(savedItem, hasProperty("owner", is(item.getOwner())));
 		assertThat(savedItem, hasProperty("description", is(item.getDescription())));
 	}
+	
+	@Test
+	public void getPatientsEnrolledWithVisit_shouldReturnThePatientsEnrolledWithAUpecVisitInThePeriod() {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(2016, Calendar.JANUARY, 1);
+		Date startDate = cal.getTime();
+		cal.set(2016, Calendar.MARCH, 31);
+		Date endDate = cal.getTime();
+		Set<Integer> expected = new TreeSet<Integer>();
+		for (GeneratedPatient patient : new PECGDataGenerator(7).setPatients(200).generate(startDate, endDate)) {
+			if (patient.isCounted(startDate, endDate)) {
+				expected.add(patient.getPatientId());
+			}
+		}
+		
+		PatientIdBitmap actual = dao.getPatientsEnrolledWithVisit(Context.getProgramWorkflowService().getProgram(1),
+		    Context.getVisitService().getVisitTypeByUuid(PECGDataGenerator.UPEC_VISIT_TYPE_UUID), startDate, endDate);
+		
+		assertThat(expected, is(not(empty())));
+		assertThat(actual.toCohort().getMemberIds(), is(expected));
+	}
+	
+	@Test
+	public void getPatientsEnrolledWithVisitByLocation_shouldReadTheSameLocationsFromTheSnapshot() {
+		createArtSnapshotTables();
+		Date startDate = date(2016, Calendar.JANUARY, 1);
+		Date endDate = date(2016, Calendar.MARCH, 31);
+		new PECGDataGenerator(7).setPatients(200).generate(startDate, endDate);
+		dao.refreshArtSnapshot(true);
+		Program program = Context.getProgramWorkflowService().getProgram(1);
+		VisitType visitType = Context.getVisitService().getVisitTypeByUuid(PECGDataGenerator.UPEC_VISIT_TYPE_UUID);
+		
+		Map<Integer, Set<Integer>> live = toMemberIds(dao.getPatientsEnrolledWithVisitByLocation(program, visitType,
+		    startDate, endDate, false));
+		Map<Integer, Set<Integer>> snapshot = toMemberIds(dao.getPatientsEnrolledWithVisitByLocation(program,
+		    visitType, startDate, endDate, true));
+		
+		assertThat(live.keySet(), is(not(empty())));
+		assertThat(snapshot, is(live));
+	}
+	
+	@Test
+	public void scanDemographics_shouldReadTheSameRowsThroughTheTemporaryTable() {
+		// created ahead as scanJoined does, a table created later would commit the test data in H2
+		sql("create temporary table if not exists testingpecgreport_cohort (patient_id int not null primary key)");
+		new PECGDataGenerator(3).setPatients(50).generate(date(2016, Calendar.JANUARY, 1), date(2016, Calendar.MARCH, 31));
+		Cohort cohort = dao.getPatientIds().toCohort();
+		
+		setTemporaryTableThreshold("-1");
+		List<String> inList = scanDemographics(cohort);
+		setTemporaryTableThreshold("0");
+		List<String> joined = scanDemographics(cohort);
+		
+		assertThat(inList, is(not(empty())));
+		assertThat(joined, is(inList));
+		assertThat(((Number) sessionFactory.getCurrentSession()
+		        .createSQLQuery("select count(*) from testingpecgreport_cohort").uniqueResult()).intValue(), is(0));
+	}
+	
+	private void setTemporaryTableThreshold(String value) {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(TestingPECGReportConfig.GP_TEMPORARY_TABLE_THRESHOLD, value));
+	}
+	
+	/**
+	 * @return the rows read, sorted as the two ways of reading them may return them in another order
+	 */
+	private List<String> scanDemographics(Cohort cohort) {
+		final List<String> ret = new ArrayList<String>();
+		dao.scanDemographics(cohort, new DemographicsHandler() {
+			
+			public void handle(int patientId, Date birthdate, String gender) {
+				ret.add(patientId + " " + (birthdate == null ? null : birthdate.getTime()) + " " + gender);
+			}
+		});
+		Collections.sort(ret);
+		return ret;
+	}
+	
+	private static Map<Integer, Set<Integer>> toMemberIds(Map<Integer, PatientIdBitmap> partitions) {
+		Map<Integer, Set<Integer>> ret = new HashMap<Integer, Set<Integer>>();
+		for (Map.Entry<Integer, PatientIdBitmap> entry : partitions.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().toCohort().getMemberIds());
+		}
+		return ret;
+	}
+	
+	private static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month, day);
+		return cal.getTime();
+	}
+	
+	/**
+	 * The module tables are created by liquibase.xml, which is not run against H2. Creating a table
+	 * commits in H2, so it has to be done before the test writes anything.
+	 */
+	private void createIndicatorResultTable() {
+		sql("create table if not exists testingpecgreport_indicator_result (testingpecgreport_indicator_result_id int"
+		        + " auto_increment primary key, uuid char(38), definition_version varchar(38), column_key varchar(50),"
+		        + " start_date datetime, end_date datetime, value int, date_created datetime)");
+	}
+	
+	private void createArtSnapshotTables() {
+		sql("create table if not exists testingpecgreport_enrollment (patient_program_id int primary key,"
+		        + " patient_id int not null, program_id int not null, date_enrolled datetime, date_completed datetime)");
+		sql("create table if not exists testingpecgreport_visit (visit_id int primary key, patient_id int not null,"
+		        + " visit_type_id int not null, date_started datetime, location_id int)");
+	}
+	
+	private int countSnapshotRows(String table, String idColumn, Integer id) {
+		return ((Number) sessionFactory.getCurrentSession()
+		        .createSQLQuery("select count(*) from " + table + " where " + idColumn + " = :id").setInteger("id", id)
+		        .uniqueResult()).intValue();
+	}
+	
+	private void sql(String sql) {
+		sessionFactory.getCurrentSession().createSQLQuery(sql).executeUpdate();
+	}
+	
+	private void storeResult(Date startDate, Date endDate) {
+		sessionFactory.getCurrentSession()
+		        .createSQLQuery(
+		            "insert into testingpecgreport_indicator_result (uuid, definition_version, column_key, start_date,"
+		                    + " end_date, value, date_created) values (:uuid, 'v1', '2All', :startDate, :endDate, 1, :now)")
+		        .setString("uuid", UUID.randomUUID().toString()).setTimestamp("startDate", startDate)
+		        .setTimestamp("endDate", endDate).setTimestamp("now", new Date()).executeUpdate();
+	}
+	
+	private Patient savePatient(String identifier) {
+		Patient patient = new Patient();
+		patient.setGender("F");
+		patient.addName(new PersonName("Late", null, "Entry"));
+		PatientIdentifier patientIdentifier = new PatientIdentifier(identifier, Context.getPatientService()
+		        .getPatientIdentifierType(2), Context.getLocationService().getLocation(1));
+		patientIdentifier.setPreferred(true);
+		patient.addIdentifier(patientIdentifier);
+		return Context.getPatientService().savePatient(patient);
+	}
+	
+	@Test
+	public void deleteIndicatorResultsOfPatient_shouldDeleteThePeriodsOverlappingTheEnrollmentsOfThePatient() {
+		createIndicatorResultTable();
+		Patient patient = savePatient("PECG-LATE");
+		PatientProgram enrollment = new PatientProgram();
+		enrollment.setPatient(patient);
+		enrollment.setProgram(Context.getProgramWorkflowService().getProgram(1));
+		enrollment.setDateEnrolled(date(2016, Calendar.JANUARY, 10));
+		enrollment.setDateCompleted(date(2016, Calendar.FEBRUARY, 20));
+		Context.getProgramWorkflowService().savePatientProgram(enrollment);
+		Context.flushSession();
+		storeResult(date(2015, Calendar.DECEMBER, 1), date(2015, Calendar.DECEMBER, 31));
+		storeResult(date(2016, Calendar.JANUARY, 1), date(2016, Calendar.JANUARY, 31));
+		storeResult(date(2016, Calendar.MARCH, 1), date(2016, Calendar.MARCH, 31));
+		
+		int deleted = dao.deleteIndicatorResultsOfPatient(patient.getPatientId());
+		
+		assertThat(deleted, is(1));
+		assertThat(((Number) sessionFactory.getCurrentSession()
+		        .createSQLQuery("select count(*) from testingpecgreport_indicator_result where start_date = :startDate")
+		        .setTimestamp("startDate", date(2016, Calendar.JANUARY, 1)).uniqueResult()).intValue(), is(0));
+	}
+	
+	@Test
+	public void refreshArtSnapshot_shouldRemoveTheRowsOfPurgedVisitsAndEnrollments() {
+		createArtSnapshotTables();
+		Patient patient = savePatient("PECG-PURGED");
+		PatientProgram enrollment = new PatientProgram();
+		enrollment.setPatient(patient);
+		enrollment.setProgram(Context.getProgramWorkflowService().getProgram(1));
+		enrollment.setDateEnrolled(date(2016, Calendar.JANUARY, 10));
+		Context.getProgramWorkflowService().savePatientProgram(enrollment);
+		Visit visit = new Visit(patient, Context.getVisitService().getVisitType(1), date(2016, Calendar.JANUARY, 10));
+		Context.getVisitService().saveVisit(visit);
+		Context.flushSession();
+		dao.refreshArtSnapshot(true);
+		assertThat(countSnapshotRows("testingpecgreport_enrollment", "patient_program_id", enrollment.getPatientProgramId()),
+		    is(1));
+		assertThat(countSnapshotRows("testingpecgreport_visit", "visit_id", visit.getVisitId()), is(1));
+		
+		Context.getProgramWorkflowService().purgePatientProgram(enrollment);
+		Context.getVisitService().purgeVisit(visit);
+		Context.flushSession();
+		ArtSnapshotChanges changes = dao.refreshArtSnapshot(false);
+		
+		assertThat(countSnapshotRows("testingpecgreport_enrollment", "patient_program_id", enrollment.getPatientProgramId()),
+		    is(0));
+		assertThat(countSnapshotRows("testingpecgreport_visit", "visit_id", visit.getVisitId()), is(0));
+		assertThat(changes.size(), is(2));
+		assertThat(changes.getPatientIds().toArray(), is(new int[] { patient.getPatientId() }));
+	}
+	
+	@Test
+	public void refreshArtSnapshot_shouldReplaceTheRowsChangedOutsideTheApiOnly() {
+		createArtSnapshotTables();
+		Patient patient = savePatient("PECG-MOVED");
+		Visit visit = new Visit(patient, Context.getVisitService().getVisitType(1), date(2016, Calendar.JANUARY, 10));
+		Context.getVisitService().saveVisit(visit);
+		Context.flushSession();
+		dao.refreshArtSnapshot(true);
+		
+		assertThat(dao.refreshArtSnapshot(false).size(), is(0));
+		
+		sessionFactory.getCurrentSession().createSQLQuery("update visit set date_started = :dateStarted where visit_id = :id")
+		        .setTimestamp("dateStarted", date(2016, Calendar.MARCH, 5)).setInteger("id", visit.getVisitId())
+		        .executeUpdate();
+		ArtSnapshotChanges changes = dao.refreshArtSnapshot(false);
+		
+		assertThat(changes.size(), is(2));
+		assertThat(changes.getRanges().get(0)[0], is(date(2016, Calendar.JANUARY, 10)));
+		assertThat(changes.getRanges().get(1)[0], is(date(2016, Calendar.MARCH, 5)));
+		assertThat(((Number) sessionFactory.getCurrentSession()
+		        .createSQLQuery("select count(*) from testingpecgreport_visit where visit_id = :id and date_started = :dateStarted")
+		        .setInteger("id", visit.getVisitId()).setTimestamp("dateStarted", date(2016, Calendar.MARCH, 5))
+		        .uniqueResult()).intValue(), is(1));
+	}
+	
+	@Test
+	public void refreshArtSnapshotOfPatient_shouldCopyTheEnrollmentsAndVisitsOfThePatient() {
+		createArtSnapshotTables();
+		Patient patient = savePatient("PECG-COPIED");
+		PatientProgram enrollment = new PatientProgram();
+		enrollment.setPatient(patient);
+		enrollment.setProgram(Context.getProgramWorkflowService().getProgram(1));
+		enrollment.setDateEnrolled(date(2016, Calendar.JANUARY, 10));
+		Context.getProgramWorkflowService().savePatientProgram(enrollment);
+		Visit visit = new Visit(patient, Context.getVisitService().getVisitType(1), date(2016, Calendar.JANUARY, 10));
+		Context.getVisitService().saveVisit(visit);
+		Context.flushSession();
+		
+		dao.refreshArtSnapshotOfPatient(patient.getPatientId());
+		
+		assertThat(countSnapshotRows("testingpecgreport_enrollment", "patient_program_id", enrollment.getPatientProgramId()),
+		    is(1));
+		assertThat(countSnapshotRows("testingpecgreport_visit", "visit_id", visit.getVisitId()), is(1));
+		
+		Context.getVisitService().voidVisit(visit, "entered by mistake");
+		Context.flushSession();
+		dao.refreshArtSnapshotOfPatient(patient.getPatientId());
+		
+		assertThat(countSnapshotRows("testingpecgreport_visit", "visit_id", visit.getVisitId()), is(0));
+	}
 }
@@ -0,0 +1,70 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Program;
+import org.openmrs.VisitType;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGReportRunner;
+import org.openmrs.module.testingpecgreport.api.reporting.SetupPECGReport;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.openmrs.module.testingpecgreport.api.reporting.evaluator.AgeSexDisaggregator;
+
+/**
+ * Age and sex banding of a cohort into the columns of the PECG data set, the in-memory part of the
+ * data set evaluation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgeBandingBenchmark {
+	
+	@Param({ "10000", "100000" })
+	public int patients;
+	
+	private List<DisaggregationColumn> columns;
+	
+	private SyntheticPatients cohort;
+	
+	@Setup
+	public void setup() {
+		ReportDefinition rd = new SetupPECGReport().createReportDefinition(new Program(1), new VisitType("UPEC", ""));
+		columns = ((AgeSexDisaggregationDataSetDefinition) rd.getDataSetDefinitions().get(PECGReportRunner.DATA_SET_NAME)
+		        .getParameterizable()).getColumns();
+		cohort = new SyntheticPatients(patients, 42);
+	}
+	
+	@Benchmark
+	public AgeSexDisaggregator bin() {
+		AgeSexDisaggregator disaggregator = new AgeSexDisaggregator(columns, SyntheticPatients.END_DATE);
+		for (int i = 0; i < cohort.size(); i++) {
+			disaggregator.add(cohort.getId(i), cohort.getBirthdate(i), cohort.getGender(i));
+		}
+		return disaggregator;
+	}
+}
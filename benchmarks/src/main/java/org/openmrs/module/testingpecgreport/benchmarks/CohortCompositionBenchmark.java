@@ -0,0 +1,97 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.Cohort;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+
+/**
+ * The set algebra behind the compositions built by Cohorts, "1 and 2" for an age range of one
+ * gender and "1 or 2" for both genders, plus the NOT of BitmapCompositionCohortDefinition, on
+ * PatientIdBitmaps as evaluated by the module and on Cohorts as evaluated by the reporting module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CohortCompositionBenchmark {
+	
+	@Param({ "10000", "100000" })
+	public int patients;
+	
+	private Cohort ageRange;
+	
+	private Cohort males;
+	
+	private Cohort females;
+	
+	private PatientIdBitmap ageRangeBitmap;
+	
+	private PatientIdBitmap malesBitmap;
+	
+	private PatientIdBitmap femalesBitmap;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		ageRangeBitmap = new PatientIdBitmap();
+		malesBitmap = new PatientIdBitmap();
+		femalesBitmap = new PatientIdBitmap();
+		for (int id = 1; id <= patients; id++) {
+			if (random.nextInt(8) == 0) {
+				ageRangeBitmap.add(id);
+			}
+			if (random.nextBoolean()) {
+				malesBitmap.add(id);
+			} else {
+				femalesBitmap.add(id);
+			}
+		}
+		ageRange = ageRangeBitmap.toCohort();
+		males = malesBitmap.toCohort();
+		females = femalesBitmap.toCohort();
+	}
+	
+	@Benchmark
+	public void bitmaps(Blackhole blackhole) {
+		blackhole.consume(ageRangeBitmap.and(femalesBitmap));
+		blackhole.consume(malesBitmap.or(femalesBitmap));
+		blackhole.consume(malesBitmap.or(femalesBitmap).andNot(ageRangeBitmap));
+	}
+	
+	@Benchmark
+	public void cohorts(Blackhole blackhole) {
+		blackhole.consume(Cohort.intersect(ageRange, females));
+		blackhole.consume(Cohort.union(males, females));
+		blackhole.consume(Cohort.subtract(Cohort.union(males, females), ageRange));
+	}
+	
+	@Benchmark
+	public PatientIdBitmap cohortToBitmap() {
+		return PatientIdBitmap.of(males);
+	}
+}
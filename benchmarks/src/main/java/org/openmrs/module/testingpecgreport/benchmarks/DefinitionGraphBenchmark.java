@@ -0,0 +1,64 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.Program;
+import org.openmrs.VisitType;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.SetupPECGReport;
+import org.openmrs.module.testingpecgreport.api.reporting.library.DefinitionRegistry;
+
+/**
+ * Construction of the PECG Report definition graph, with the definition registry already holding the
+ * canonical definitions as it does after the first registration, and with an empty registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefinitionGraphBenchmark {
+	
+	private Program program;
+	
+	private VisitType visitType;
+	
+	@Setup
+	public void setup() {
+		program = new Program(1);
+		program.setUuid("b2a7e1ce-4a4c-4f04-9d6c-9a5a3bb8d5a1");
+		visitType = new VisitType("UPEC", "UPEC visit");
+		visitType.setUuid("a7c2aaf0-c4e5-4310-aa94-07c7fe6a331a");
+	}
+	
+	@Benchmark
+	public ReportDefinition buildWithWarmRegistry() {
+		return new SetupPECGReport().createReportDefinition(program, visitType);
+	}
+	
+	@Benchmark
+	public ReportDefinition buildWithEmptyRegistry() {
+		DefinitionRegistry.clear();
+		return new SetupPECGReport().createReportDefinition(program, visitType);
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.benchmarks;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic patients shared by the benchmarks: ids 1 to size, birthdates spread over
+ * 80 years before {@link #END_DATE}, about as many men as women.
+ */
+public class SyntheticPatients {
+	
+	public static final Date END_DATE = date(2016, 12, 31);
+	
+	private final int[] ids;
+	
+	private final Date[] birthdates;
+	
+	private final String[] genders;
+	
+	public SyntheticPatients(int size, long seed) {
+		Random random = new Random(seed);
+		ids = new int[size];
+		birthdates = new Date[size];
+		genders = new String[size];
+		long end = END_DATE.getTime();
+		long span = 80L * 365 * 24 * 60 * 60 * 1000;
+		for (int i = 0; i < size; i++) {
+			ids[i] = i + 1;
+			birthdates[i] = random.nextInt(100) == 0 ? null : new Date(end - (long) (random.nextDouble() * span));
+			genders[i] = random.nextBoolean() ? "M" : "F";
+		}
+	}
+	
+	public int size() {
+		return ids.length;
+	}
+	
+	public int getId(int index) {
+		return ids[index];
+	}
+	
+	public Date getBirthdate(int index) {
+		return birthdates[index];
+	}
+	
+	public String getGender(int index) {
+		return genders[index];
+	}
+	
+	public static Date date(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance();
+		cal.clear();
+		cal.set(year, month - 1, day);
+		return cal.getTime();
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.testingpecgreport.api.dao.TestingPECGReportDao;
+import org.openmrs.module.testingpecgreport.api.reporting.cohort.PatientIdBitmap;
+
+/**
+ * The UPEC base cohort query of TestingPECGReportDao, on the OpenMRS tables and on the ART snapshot,
+ * against an in-memory H2 database in MySQL mode seeded with synthetic enrollments and visits and
+ * carrying the indexes of liquibase.xml. Absolute times differ from MySQL, the benchmark is meant to
+ * catch regressions in the statements and their indexes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpecQueryBenchmark {
+	
+	private static final int PROGRAM_ID = 1;
+	
+	private static final int UPEC_VISIT_TYPE_ID = 1;
+	
+	private static final int OTHER_VISIT_TYPE_ID = 2;
+	
+	private static final Pattern NAMED_PARAMETER = Pattern.compile(":(\\w+)");
+	
+	@Param({ "10000", "100000" })
+	public int patients;
+	
+	private Connection connection;
+	
+	private Query query;
+	
+	private Query snapshotQuery;
+	
+	private final Date onOrAfter = SyntheticPatients.date(2016, 1, 1);
+	
+	private final Date onOrBefore = SyntheticPatients.date(2016, 3, 31);
+	
+	@Setup
+	public void setup() throws SQLException {
+		connection = DriverManager.getConnection("jdbc:h2:mem:upec" + patients + ";MODE=MySQL", "sa", "");
+		createSchema();
+		seed();
+		query = new Query(TestingPECGReportDao.ENROLLED_WITH_VISIT_QUERY);
+		snapshotQuery = new Query(TestingPECGReportDao.SNAPSHOT_ENROLLED_WITH_VISIT_QUERY);
+	}
+	
+	@TearDown
+	public void tearDown() throws SQLException {
+		connection.close();
+	}
+	
+	@Benchmark
+	public PatientIdBitmap enrolledWithVisit() throws SQLException {
+		return query.run();
+	}
+	
+	@Benchmark
+	public PatientIdBitmap enrolledWithVisitFromSnapshot() throws SQLException {
+		return snapshotQuery.run();
+	}
+	
+	private void createSchema() throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute("create table patient_program (patient_program_id int primary key, patient_id int,"
+			        + " program_id int, date_enrolled datetime, date_completed datetime, voided tinyint)");
+			statement.execute("create table visit (visit_id int primary key, patient_id int, visit_type_id int,"
+			        + " date_started datetime, voided tinyint)");
+			statement.execute("create index testingpecgreport_patient_program_enrolled_idx on patient_program"
+			        + " (program_id, voided, date_enrolled, date_completed, patient_id)");
+			statement.execute("create index testingpecgreport_visit_type_started_idx on visit"
+			        + " (visit_type_id, voided, date_started, patient_id)");
+			statement.execute("create table testingpecgreport_enrollment (patient_program_id int primary key,"
+			        + " patient_id int, program_id int, date_enrolled datetime, date_completed datetime)");
+			statement.execute("create table testingpecgreport_visit (visit_id int primary key, patient_id int,"
+			        + " visit_type_id int, date_started datetime)");
+			statement.execute("create index testingpecgreport_enrollment_program_idx on testingpecgreport_enrollment"
+			        + " (program_id, date_enrolled, date_completed, patient_id)");
+			statement.execute("create index testingpecgreport_visit_snapshot_idx on testingpecgreport_visit"
+			        + " (visit_type_id, date_started, patient_id)");
+		}
+		finally {
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Every patient is enrolled once between 2010 and 2016, a fifth of them completed, and has up to
+	 * six visits over 2015 and 2016, two thirds of them UPEC visits.
+	 */
+	private void seed() throws SQLException {
+		Random random = new Random(42);
+		long from = SyntheticPatients.date(2010, 1, 1).getTime();
+		long visitsFrom = SyntheticPatients.date(2015, 1, 1).getTime();
+		long to = SyntheticPatients.END_DATE.getTime();
+		connection.setAutoCommit(false);
+		PreparedStatement enrollment = connection
+		        .prepareStatement("insert into patient_program values (?, ?, ?, ?, ?, ?)");
+		PreparedStatement visit = connection.prepareStatement("insert into visit values (?, ?, ?, ?, ?)");
+		try {
+			int visitId = 0;
+			for (int patientId = 1; patientId <= patients; patientId++) {
+				long enrolled = from + (long) (random.nextDouble() * (to - from));
+				enrollment.setInt(1, patientId);
+				enrollment.setInt(2, patientId);
+				enrollment.setInt(3, PROGRAM_ID);
+				enrollment.setTimestamp(4, new Timestamp(enrolled));
+				enrollment.setTimestamp(5, random.nextInt(5) == 0 ? new Timestamp(enrolled
+				        + (long) (random.nextDouble() * (to - enrolled))) : null);
+				enrollment.setInt(6, random.nextInt(50) == 0 ? 1 : 0);
+				enrollment.addBatch();
+				for (int i = random.nextInt(7); i > 0; i--) {
+					visit.setInt(1, ++visitId);
+					visit.setInt(2, patientId);
+					visit.setInt(3, random.nextInt(3) == 0 ? OTHER_VISIT_TYPE_ID : UPEC_VISIT_TYPE_ID);
+					visit.setTimestamp(4, new Timestamp(visitsFrom + (long) (random.nextDouble() * (to - visitsFrom))));
+					visit.setInt(5, random.nextInt(50) == 0 ? 1 : 0);
+					visit.addBatch();
+				}
+				if (patientId % 1000 == 0) {
+					enrollment.executeBatch();
+					visit.executeBatch();
+				}
+			}
+			enrollment.executeBatch();
+			visit.executeBatch();
+		}
+		finally {
+			enrollment.close();
+			visit.close();
+		}
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute("insert into testingpecgreport_enrollment select patient_program_id, patient_id,"
+			        + " program_id, date_enrolled, date_completed from patient_program where voided = 0");
+			statement.execute("insert into testingpecgreport_visit select visit_id, patient_id, visit_type_id,"
+			        + " date_started from visit where voided = 0");
+		}
+		finally {
+			statement.close();
+		}
+		connection.commit();
+	}
+	
+	/**
+	 * A DAO statement prepared once, its named parameters bound positionally
+	 */
+	private class Query {
+		
+		private final PreparedStatement statement;
+		
+		private final List<String> parameters = new ArrayList<String>();
+		
+		Query(String sql) throws SQLException {
+			Matcher matcher = NAMED_PARAMETER.matcher(sql);
+			while (matcher.find()) {
+				parameters.add(matcher.group(1));
+			}
+			statement = connection.prepareStatement(matcher.replaceAll("?"));
+		}
+		
+		PatientIdBitmap run() throws SQLException {
+			for (int i = 0; i < parameters.size(); i++) {
+				String name = parameters.get(i);
+				if ("programId".equals(name)) {
+					statement.setInt(i + 1, PROGRAM_ID);
+				} else if ("visitTypeId".equals(name)) {
+					statement.setInt(i + 1, UPEC_VISIT_TYPE_ID);
+				} else if ("onOrAfter".equals(name)) {
+					statement.setTimestamp(i + 1, new Timestamp(onOrAfter.getTime()));
+				} else if ("onOrBefore".equals(name)) {
+					statement.setTimestamp(i + 1, new Timestamp(onOrBefore.getTime()));
+				} else {
+					throw new IllegalStateException("Unexpected parameter " + name);
+				}
+			}
+			PatientIdBitmap ret = new PatientIdBitmap();
+			ResultSet results = statement.executeQuery();
+			try {
+				while (results.next()) {
+					ret.add(results.getInt(1));
+				}
+			}
+			finally {
+				results.close();
+			}
+			return ret;
+		}
+	}
+}
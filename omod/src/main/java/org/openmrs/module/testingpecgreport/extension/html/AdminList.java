@@ -44,6 +44,7 @@ public class AdminList extends AdministrationSectionExt {
 		Map<String, String> map = new HashMap<String, String>();
 		
 		map.put("module/testingpecgreport/testingpecgreport.form", "testingpecgreport.title");
+		map.put("module/testingpecgreport/metrics.form", "testingpecgreport.metrics.title");
 		
 		return map;
 	}
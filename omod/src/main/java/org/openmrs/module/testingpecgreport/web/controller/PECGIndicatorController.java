@@ -0,0 +1,255 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.web.controller;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.reporting.ColumnDemand;
+import org.openmrs.module.testingpecgreport.api.reporting.LocationPartitionedResult;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGDataVersion;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGReportRunner;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportRegistration;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportingPeriod;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.DisaggregationColumn;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Serves the cells of the PECG Data Set for a period as JSON, for dashboards. Nothing is rendered.
+ * <p>
+ * The ETag is derived from the PECG definition version, the period and the {@link PECGDataVersion},
+ * so a poller sending it back gets 304 Not Modified without any evaluation until a write changes the
+ * data or the definition. The Last-Modified date is that of the PECGDataVersion, which also moves
+ * when the definition or the columns evaluated change.
+ * <p>
+ * Consumers should name the columns they need, the PECG data set then only evaluates those and the
+ * ones referenced by the report designs, see {@link ColumnDemand}. Without columns every column is
+ * returned, and evaluated from then on. A name that is not a column of the data set is answered with
+ * 400 Bad Request, and the columns are part of the ETag. Both endpoints require the module privilege.
+ * <p>
+ * The same cells are served per visit location by indicatorsByLocation, with a district total
+ * counting a patient seen at several facilities once.
+ */
+@Controller
+public class PECGIndicatorController {
+	
+	@RequestMapping(value = "/module/testingpecgreport/indicators", method = RequestMethod.GET)
+	public void getIndicators(@RequestParam("startDate") String startDate, @RequestParam("endDate") String endDate,
+	        @RequestParam(value = "columns", required = false) String columns, HttpServletRequest request,
+	        HttpServletResponse response) throws Exception {
+		Context.requirePrivilege(TestingPECGReportConfig.MODULE_PRIVILEGE);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		Date start = format.parse(startDate);
+		Date end = ReportingPeriod.endOfDay(format.parse(endDate));
+		Set<String> requested = StringUtils.isBlank(columns) ? null : parseColumns(columns);
+		if (requested != null && sendUnknownColumns(response, requested)) {
+			return;
+		}
+		ColumnDemand.request(requested);
+		if (sendNotModified(request, response, "", startDate, endDate, requested)) {
+			return;
+		}
+		
+		ReportData data = PECGReportRunner.evaluate(start, end);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(
+		    toJson(startDate, endDate, data.getDataSets().get(PECGReportRunner.DATA_SET_NAME), requested));
+	}
+	
+	@RequestMapping(value = "/module/testingpecgreport/indicatorsByLocation", method = RequestMethod.GET)
+	public void getIndicatorsByLocation(@RequestParam("startDate") String startDate,
+	        @RequestParam("endDate") String endDate, @RequestParam(value = "columns", required = false) String columns,
+	        HttpServletRequest request, HttpServletResponse response) throws Exception {
+		Context.requirePrivilege(TestingPECGReportConfig.MODULE_PRIVILEGE);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		Date start = format.parse(startDate);
+		Date end = ReportingPeriod.endOfDay(format.parse(endDate));
+		Set<String> requested = StringUtils.isBlank(columns) ? null : parseColumns(columns);
+		if (requested != null && sendUnknownColumns(response, requested)) {
+			return;
+		}
+		ColumnDemand.request(requested);
+		if (sendNotModified(request, response, "location-", startDate, endDate, requested)) {
+			return;
+		}
+		
+		LocationPartitionedResult result = PECGReportRunner.evaluateByLocation(start, end);
+		Map<Integer, String> names = new LinkedHashMap<Integer, String>();
+		for (Integer locationId : result.getLocations().keySet()) {
+			Location location = locationId == null ? null : Context.getLocationService().getLocation(locationId);
+			names.put(locationId, location == null ? null : location.getName());
+		}
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(toJson(startDate, endDate, result, names, requested));
+	}
+	
+	/**
+	 * Answers 400 Bad Request if one of the columns is not a column of the PECG Data Set, before
+	 * anything is evaluated or demanded
+	 * 
+	 * @return whether the response is complete
+	 */
+	private static boolean sendUnknownColumns(HttpServletResponse response, Set<String> columns) throws IOException {
+		ReportRegistration.ensureRegistered();
+		Set<String> unknown = getUnknownColumns(columns, PECGReportRunner.getDataSetDefinition());
+		if (unknown.isEmpty()) {
+			return false;
+		}
+		response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown PECG columns " + unknown);
+		return true;
+	}
+	
+	static Set<String> parseColumns(String columns) {
+		Set<String> ret = new TreeSet<String>();
+		for (String column : columns.split(",")) {
+			if (StringUtils.isNotBlank(column)) {
+				ret.add(column.trim());
+			}
+		}
+		return ret;
+	}
+	
+	static Set<String> getUnknownColumns(Set<String> columns, AgeSexDisaggregationDataSetDefinition dsd) {
+		Set<String> ret = new TreeSet<String>(columns);
+		for (DisaggregationColumn column : dsd.getColumns()) {
+			ret.remove(column.getName());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Sets the validators of the response and answers 304 Not Modified if the request carries them.
+	 * They depend on the columns asked for, a client asking for other columns gets a new body.
+	 * 
+	 * @return whether the response is complete
+	 */
+	private static boolean sendNotModified(HttpServletRequest request, HttpServletResponse response, String prefix,
+	        String startDate, String endDate, Set<String> columns) {
+		// read before evaluating so a write during the evaluation makes the next poll fetch again
+		ReportRegistration.ensureRegistered();
+		String etag = getETag(prefix
+		        + Context.getAdministrationService().getGlobalProperty(TestingPECGReportConfig.GP_PECG_DEFINITION_VERSION),
+		    startDate, endDate, columns);
+		long lastModified = PECGDataVersion.getLastModified().getTime() / 1000 * 1000;
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Cache-Control", "no-cache");
+		if (isNotModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param definition the prefix and the definition version
+	 * @param columns the sorted column names, or null for all columns
+	 */
+	static String getETag(String definition, String startDate, String endDate, Set<String> columns) {
+		return "\"" + definition + "-" + PECGDataVersion.get() + "-" + startDate + "-" + endDate + "-"
+		        + (columns == null ? "*" : StringUtils.join(columns, ",")) + "\"";
+	}
+	
+	/**
+	 * If-None-Match takes precedence over If-Modified-Since, as in RFC 7232
+	 */
+	static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+	}
+	
+	static String toJson(String startDate, String endDate, DataSet dataSet, Collection<String> columns) {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"startDate\":").append(PECGReportJobController.quote(startDate));
+		sb.append(",\"endDate\":").append(PECGReportJobController.quote(endDate));
+		sb.append(",\"values\":{");
+		String separator = "";
+		if (dataSet instanceof MapDataSet) {
+			MapDataSet mapDataSet = (MapDataSet) dataSet;
+			for (DataSetColumn column : mapDataSet.getMetaData().getColumns()) {
+				if (columns != null && !columns.contains(column.getName())) {
+					continue;
+				}
+				Object value = mapDataSet.getData().getColumnValue(column);
+				sb.append(separator).append(PECGReportJobController.quote(column.getName())).append(":")
+				        .append(value == null ? "null" : value.toString());
+				separator = ",";
+			}
+		}
+		return sb.append("}}").toString();
+	}
+	
+	static String toJson(String startDate, String endDate, LocationPartitionedResult result,
+	        Map<Integer, String> names, Collection<String> columns) {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"startDate\":").append(PECGReportJobController.quote(startDate));
+		sb.append(",\"endDate\":").append(PECGReportJobController.quote(endDate));
+		sb.append(",\"locations\":[");
+		String separator = "";
+		for (Map.Entry<Integer, Map<String, Integer>> location : result.getLocations().entrySet()) {
+			sb.append(separator).append("{\"locationId\":").append(location.getKey());
+			String name = names.get(location.getKey());
+			sb.append(",\"name\":").append(name == null ? "null" : PECGReportJobController.quote(name));
+			sb.append(",\"values\":");
+			appendValues(sb, location.getValue(), columns);
+			sb.append("}");
+			separator = ",";
+		}
+		sb.append("],\"total\":");
+		appendValues(sb, result.getTotal(), columns);
+		return sb.append("}").toString();
+	}
+	
+	private static void appendValues(StringBuilder sb, Map<String, Integer> values, Collection<String> columns) {
+		sb.append("{");
+		String separator = "";
+		for (Map.Entry<String, Integer> value : values.entrySet()) {
+			if (columns != null && !columns.contains(value.getKey())) {
+				continue;
+			}
+			sb.append(separator).append(PECGReportJobController.quote(value.getKey())).append(":").append(value.getValue());
+			separator = ",";
+		}
+		sb.append("}");
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.web.controller;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.testingpecgreport.TestingPECGReportConfig;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGReportRunner;
+import org.openmrs.module.testingpecgreport.api.reporting.metrics.EvaluationMetrics;
+import org.openmrs.module.testingpecgreport.api.reporting.metrics.EvaluationRun;
+import org.openmrs.module.testingpecgreport.api.reporting.metrics.TimingStats;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.view.RedirectView;
+
+/**
+ * Shows the evaluation metrics of the PECG definitions, as an admin page and as JSON, to users with
+ * the module privilege.
+ */
+@Controller
+public class PECGMetricsController {
+	
+	@RequestMapping(value = "/module/testingpecgreport/metrics", method = RequestMethod.GET)
+	public void show(ModelMap model) {
+		Context.requirePrivilege(TestingPECGReportConfig.MODULE_PRIVILEGE);
+		model.addAttribute("stats", EvaluationMetrics.getStats());
+		model.addAttribute("runs", EvaluationMetrics.getRuns());
+		model.addAttribute("evaluationsInFlight", PECGReportRunner.getEvaluationsInFlight());
+		model.addAttribute("coalescedEvaluations", PECGReportRunner.getCoalescedEvaluationCount());
+	}
+	
+	@RequestMapping(value = "/module/testingpecgreport/metricsJson", method = RequestMethod.GET)
+	public void getJson(HttpServletResponse response) throws IOException {
+		Context.requirePrivilege(TestingPECGReportConfig.MODULE_PRIVILEGE);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(toJson(EvaluationMetrics.getStats(), EvaluationMetrics.getRuns()));
+	}
+	
+	@RequestMapping(value = "/module/testingpecgreport/resetMetrics", method = RequestMethod.POST)
+	public ModelAndView reset() {
+		Context.requirePrivilege(TestingPECGReportConfig.MODULE_PRIVILEGE);
+		EvaluationMetrics.reset();
+		return new ModelAndView(new RedirectView("metrics.form"));
+	}
+	
+	static String toJson(Map<String, TimingStats.Snapshot> stats, Iterable<EvaluationRun> runs) {
+		StringBuilder sb = new StringBuilder("{\"stats\":{");
+		String separator = "";
+		for (Map.Entry<String, TimingStats.Snapshot> entry : stats.entrySet()) {
+			TimingStats.Snapshot s = entry.getValue();
+			sb.append(separator).append(PECGReportJobController.quote(entry.getKey())).append(":{");
+			sb.append("\"count\":").append(s.getCount());
+			sb.append(",\"cacheHits\":").append(s.getCacheHits());
+			sb.append(",\"cacheMisses\":").append(s.getCacheMisses());
+			sb.append(",\"lastRows\":").append(s.getLastRows());
+			sb.append(",\"p50Millis\":").append(s.getP50Millis());
+			sb.append(",\"p90Millis\":").append(s.getP90Millis());
+			sb.append(",\"p99Millis\":").append(s.getP99Millis());
+			sb.append(",\"maxMillis\":").append(s.getMaxMillis());
+			sb.append(",\"sqlP50Millis\":").append(s.getSqlP50Millis());
+			sb.append(",\"sqlP90Millis\":").append(s.getSqlP90Millis());
+			sb.append("}");
+			separator = ",";
+		}
+		sb.append("},\"runs\":[");
+		separator = "";
+		for (EvaluationRun run : runs) {
+			sb.append(separator).append("{\"name\":").append(PECGReportJobController.quote(String.valueOf(run.getName())));
+			sb.append(",\"dateStarted\":").append(run.getDateStarted().getTime());
+			if (run.getStartDate() != null) {
+				sb.append(",\"startDate\":").append(run.getStartDate().getTime());
+			}
+			if (run.getEndDate() != null) {
+				sb.append(",\"endDate\":").append(run.getEndDate().getTime());
+			}
+			sb.append(",\"durationMillis\":").append(run.getDurationMillis());
+			if (run.getCacheHit() != null) {
+				sb.append(",\"cacheHit\":").append(run.getCacheHit());
+			}
+			sb.append(",\"stages\":[");
+			String stageSeparator = "";
+			for (EvaluationRun.Stage stage : run.getStages()) {
+				sb.append(stageSeparator).append("{\"name\":").append(PECGReportJobController.quote(stage.getName()));
+				sb.append(",\"wallMillis\":").append(stage.getWallMillis());
+				sb.append(",\"sqlMillis\":").append(stage.getSqlMillis());
+				sb.append(",\"rows\":").append(stage.getRows());
+				if (stage.getCacheHit() != null) {
+					sb.append(",\"cacheHit\":").append(stage.getCacheHit());
+				}
+				sb.append("}");
+				stageSeparator = ",";
+			}
+			sb.append("],\"cardinalities\":{");
+			String columnSeparator = "";
+			for (Map.Entry<String, Integer> entry : run.getCardinalities().entrySet()) {
+				sb.append(columnSeparator).append(PECGReportJobController.quote(entry.getKey())).append(":")
+				        .append(entry.getValue());
+				columnSeparator = ",";
+			}
+			sb.append("}}");
+			separator = ",";
+		}
+		return sb.append("]}").toString();
+	}
+}
@@ -9,25 +9,44 @@
  */
 package org.openmrs.module.testingpecgreport.web.controller;
 
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJob;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJobManager;
 import org.openmrs.module.testingpecgreport.api.reporting.util.CleanReportingTablesAndRegisterAllReports;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.servlet.ModelAndView;
-import org.springframework.web.servlet.view.RedirectView;
 
 @Controller
 public class PECGRegisterRemoveAllReportsFormController {
 	
+	@Autowired
+	ReportJobManager jobManager;
+	
 	@RequestMapping("/module/testingpecgreport/register_allReports")
 	public ModelAndView registerAllReports() throws Exception {
-		CleanReportingTablesAndRegisterAllReports.registerReports();
-		return new ModelAndView(new RedirectView("testingpecgreport.form"));
+		ReportJob job = jobManager.submit("Register all reports", new ReportJob.Work() {
+			
+			public void run(ReportJob job) throws Exception {
+				ReportJob.addSteps(1);
+				CleanReportingTablesAndRegisterAllReports.registerReports();
+				ReportJob.step("Registered all reports");
+			}
+		});
+		return PECGSetupReportsFormController.redirectToJob(job);
 	}
 	
 	@RequestMapping("/module/testingpecgreport/remove_allReports")
 	public ModelAndView removeAllReports() throws Exception {
-		CleanReportingTablesAndRegisterAllReports.cleanTables();
-		return new ModelAndView(new RedirectView("testingpecgreport.form"));
+		ReportJob job = jobManager.submit("Remove all reports", new ReportJob.Work() {
+			
+			public void run(ReportJob job) throws Exception {
+				ReportJob.addSteps(1);
+				CleanReportingTablesAndRegisterAllReports.cleanTables();
+				ReportJob.step("Removed all reports");
+			}
+		});
+		return PECGSetupReportsFormController.redirectToJob(job);
 	}
 	
 }
@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.web.controller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJob;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJobManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Reports the progress of background jobs, polled by testingpecgreport.jsp, and serves their results.
+ * Jobs submitted by other users are reported as unknown.
+ */
+@Controller
+public class PECGReportJobController {
+	
+	@Autowired
+	ReportJobManager jobManager;
+	
+	@RequestMapping(value = "/module/testingpecgreport/jobStatus", method = RequestMethod.GET)
+	public void getStatus(@RequestParam("jobId") String jobId, HttpServletResponse response) throws IOException {
+		ReportJob job = jobManager.getJob(jobId);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown job " + jobId);
+			return;
+		}
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(toJson(job));
+	}
+	
+	@RequestMapping(value = "/module/testingpecgreport/jobResult", method = RequestMethod.GET)
+	public void getResult(@RequestParam("jobId") String jobId, HttpServletResponse response) throws IOException {
+		ReportJob job = jobManager.getJob(jobId);
+		if (job == null || !job.hasResult()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "No result for job " + jobId);
+			return;
+		}
+		response.setContentType(job.getResultContentType());
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + job.getResultFilename() + "\"");
+		File file = job.getResultFile();
+		if (file != null) {
+			response.setHeader("Content-Length", String.valueOf(file.length()));
+			InputStream in = new FileInputStream(file);
+			try {
+				IOUtils.copy(in, response.getOutputStream());
+			}
+			finally {
+				in.close();
+			}
+		} else {
+			response.setContentLength(job.getResult().length);
+			response.getOutputStream().write(job.getResult());
+		}
+	}
+	
+	static String toJson(ReportJob job) {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"id\":\"").append(job.getId()).append("\"");
+		sb.append(",\"name\":").append(quote(job.getName()));
+		sb.append(",\"status\":\"").append(job.getStatus()).append("\"");
+		sb.append(",\"completedSteps\":").append(job.getCompletedSteps());
+		sb.append(",\"totalSteps\":").append(job.getTotalSteps());
+		sb.append(",\"percentComplete\":").append(job.getPercentComplete());
+		if (job.getCurrentStep() != null) {
+			sb.append(",\"currentStep\":").append(quote(job.getCurrentStep()));
+		}
+		if (job.getError() != null) {
+			sb.append(",\"error\":").append(quote(job.getError()));
+		}
+		sb.append(",\"hasResult\":").append(job.hasResult());
+		return sb.append("}").toString();
+	}
+	
+	static String quote(String value) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
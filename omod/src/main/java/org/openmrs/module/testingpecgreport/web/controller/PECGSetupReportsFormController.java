@@ -9,12 +9,36 @@
  */
 package org.openmrs.module.testingpecgreport.web.controller;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.testingpecgreport.api.TestingPECGReportService;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGBatchRunner;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGLineList;
+import org.openmrs.module.testingpecgreport.api.reporting.PECGReportRunner;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportRegistration;
+import org.openmrs.module.testingpecgreport.api.reporting.ReportingPeriod;
 import org.openmrs.module.testingpecgreport.api.reporting.SetupPECGReport;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJob;
+import org.openmrs.module.testingpecgreport.api.reporting.job.ReportJobManager;
+import org.openmrs.module.testingpecgreport.api.reporting.renderer.StreamingXlsxTemplateRenderer;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.view.RedirectView;
 
@@ -23,20 +47,150 @@ public class PECGSetupReportsFormController {
 	
 	public Log log = LogFactory.getLog(getClass());
 	
+	@Autowired
+	ReportJobManager jobManager;
+	
+	@Autowired
+	PECGBatchRunner batchRunner;
+	
 	@RequestMapping(value = "/module/testingpecgreport/testingpecgreport", method = RequestMethod.GET)
-	public void manage() {
+	public void manage(@RequestParam(value = "jobId", required = false) String jobId, ModelMap model) {
+		model.addAttribute("job", jobManager.getJob(jobId));
+		model.addAttribute("registrationState", ReportRegistration.getState());
+		model.addAttribute("registrationError", ReportRegistration.getError());
 	}
 	
 	@RequestMapping("/module/testingpecgreport/register_PECG")
 	public ModelAndView registerPECG() throws Exception {
-		new SetupPECGReport().setup();
-		return new ModelAndView(new RedirectView("testingpecgreport.form"));
+		ReportJob job = jobManager.submit("Register PECG Report", new ReportJob.Work() {
+			
+			public void run(ReportJob job) throws Exception {
+				ReportJob.addSteps(1);
+				ReportRegistration.register();
+				ReportJob.step(ReportRegistration.isChanged() ? "Registered PECG Report"
+				        : "PECG Report unchanged, registered designs");
+			}
+		});
+		return redirectToJob(job);
 	}
 	
 	@RequestMapping("/module/testingpecgreport/remove_PECG")
 	public ModelAndView removePECG() throws Exception {
-		new SetupPECGReport().delete();
-		return new ModelAndView(new RedirectView("testingpecgreport.form"));
+		ReportJob job = jobManager.submit("Remove PECG Report", new ReportJob.Work() {
+			
+			public void run(ReportJob job) throws Exception {
+				ReportJob.addSteps(1);
+				new SetupPECGReport().delete();
+				ReportJob.step("Removed PECG Report");
+			}
+		});
+		return redirectToJob(job);
+	}
+	
+	@RequestMapping(value = "/module/testingpecgreport/run_PECG", method = RequestMethod.POST)
+	public ModelAndView runPECG(@RequestParam("startDate") String startDate, @RequestParam("endDate") String endDate,
+	        @RequestParam(value = "streaming", required = false) boolean streaming) throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		final Date start = format.parse(startDate);
+		final Date end = ReportingPeriod.endOfDay(format.parse(endDate));
+		final String designName = streaming ? PECGReportRunner.STREAMING_DESIGN_NAME : PECGReportRunner.DESIGN_NAME;
+		final String contentType = streaming ? StreamingXlsxTemplateRenderer.CONTENT_TYPE : PECGReportRunner.CONTENT_TYPE;
+		final String filename = "PECG_" + startDate + "_" + endDate + (streaming ? ".xlsx" : ".xls");
+		ReportJob job = jobManager.submit("Run PECG Report from " + startDate + " to " + endDate, new ReportJob.Work() {
+			
+			public void run(ReportJob job) throws Exception {
+				ReportJob.addSteps(1);
+				ReportData data = PECGReportRunner.evaluate(start, end);
+				writeResultFile(job, filename, contentType, data, designName);
+				ReportJob.step("Rendered " + filename);
+			}
+		});
+		return redirectToJob(job);
+	}
+	
+	@RequestMapping(value = "/module/testingpecgreport/run_PECG_batch", method = RequestMethod.POST)
+	public ModelAndView runPECGBatch(@RequestParam("firstMonth") String firstMonth, @RequestParam("months") int months,
+	        @RequestParam(value = "combined", required = false) boolean combined) throws Exception {
+		final List<ReportingPeriod> periods = ReportingPeriod.monthly(new SimpleDateFormat("yyyy-MM").parse(firstMonth),
+		    months);
+		final boolean oneWorkbook = combined;
+		final String filename = "PECG_" + firstMonth + "_" + months + "_months" + (combined ? ".xls" : ".zip");
+		ReportJob job = jobManager.submit("Run PECG Report for " + months + " months from " + firstMonth,
+		    new ReportJob.Work() {
+			
+			    public void run(ReportJob job) throws Exception {
+				    ReportJob.addSteps(1);
+				    Map<ReportingPeriod, Map<String, Integer>> values = batchRunner.evaluate(periods);
+				    byte[] result = oneWorkbook ? batchRunner.renderCombined(values) : batchRunner.renderPerPeriod(values);
+				    ReportJob.step("Rendered " + filename);
+				    job.setResult(result, filename, oneWorkbook ? PECGReportRunner.CONTENT_TYPE : "application/zip");
+			    }
+		    });
+		return redirectToJob(job);
+	}
+	
+	@RequestMapping(value = "/module/testingpecgreport/run_PECG_lineList", method = RequestMethod.POST)
+	public ModelAndView runPECGLineList(@RequestParam("startDate") String startDate,
+	        @RequestParam("endDate") String endDate, @RequestParam("format") String format) throws Exception {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		final Date start = dateFormat.parse(startDate);
+		final Date end = ReportingPeriod.endOfDay(dateFormat.parse(endDate));
+		final PECGLineList.Format lineListFormat = PECGLineList.Format.valueOf(format.toUpperCase());
+		final String filename = "PECG_line_list_" + startDate + "_" + endDate + lineListFormat.getExtension();
+		// the job runs as the user, check now rather than failing in the background
+		Context.requirePrivilege(PrivilegeConstants.VIEW_PATIENTS);
+		Context.requirePrivilege(PrivilegeConstants.VIEW_PATIENT_IDENTIFIERS);
+		ReportJob job = jobManager.submit("List the PECG patients from " + startDate + " to " + endDate,
+		    new ReportJob.Work() {
+			
+			    public void run(ReportJob job) throws Exception {
+				    File file = File.createTempFile("pecg-line-list", lineListFormat.getExtension());
+				    try {
+					    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+					    try {
+						    Context.getService(TestingPECGReportService.class).writeLineList(start, end, lineListFormat, out);
+					    }
+					    finally {
+						    out.close();
+					    }
+					    job.setResultFile(file, filename, lineListFormat.getContentType());
+				    }
+				    finally {
+					    if (job.getResultFile() == null) {
+						    file.delete();
+					    }
+				    }
+			    }
+		    });
+		return redirectToJob(job);
+	}
+	
+	/**
+	 * Renders the report to a temporary file served by the job, so the workbook is never held in
+	 * memory
+	 */
+	static void writeResultFile(ReportJob job, String filename, String contentType, ReportData data, String designName)
+	        throws Exception {
+		File file = File.createTempFile("pecg-report", filename.substring(filename.lastIndexOf('.')));
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				PECGReportRunner.render(data, designName, out);
+			}
+			finally {
+				out.close();
+			}
+			job.setResultFile(file, filename, contentType);
+		}
+		finally {
+			if (job.getResultFile() == null) {
+				file.delete();
+			}
+		}
+	}
+	
+	static ModelAndView redirectToJob(ReportJob job) {
+		return new ModelAndView(new RedirectView("testingpecgreport.form?jobId=" + job.getId()));
 	}
 	
 }
@@ -0,0 +1,96 @@
+<%@ include file="/WEB-INF/template/include.jsp"%>
+
+<%@ include file="/WEB-INF/template/header.jsp"%>
+
+<style>
+table.metrics {
+	border-collapse: collapse;
+	border: 1px solid blue;
+	width: 100%;
+}
+
+.metrics td {
+	border-collapse: collapse;
+	border: 1px solid blue;
+}
+
+.metrics .tableheaders {
+	font-weight: bold;
+	background-color: #B0C4DE;
+}
+</style>
+<h2>PECG evaluation metrics</h2>
+
+<p>
+	<a href="${pageContext.request.contextPath}/module/testingpecgreport/metricsJson.form">JSON</a>
+</p>
+<form method="post" action="${pageContext.request.contextPath}/module/testingpecgreport/resetMetrics.form">
+	<input type="submit" value="Reset" />
+</form>
+
+<p>
+	${evaluationsInFlight} PECG evaluations running or waiting, ${coalescedEvaluations} requests served by an
+	evaluation already running since startup.
+</p>
+
+<h3>Stages</h3>
+<table class="metrics">
+	<tr class="tableheaders">
+		<td>Stage</td>
+		<td>Count</td>
+		<td>Cache hits</td>
+		<td>Cache misses</td>
+		<td>Last rows</td>
+		<td>p50 ms</td>
+		<td>p90 ms</td>
+		<td>p99 ms</td>
+		<td>Max ms</td>
+		<td>SQL p50 ms</td>
+		<td>SQL p90 ms</td>
+	</tr>
+	<c:forEach var="entry" items="${stats}">
+		<tr>
+			<td><c:out value="${entry.key}" /></td>
+			<td>${entry.value.count}</td>
+			<td>${entry.value.cacheHits}</td>
+			<td>${entry.value.cacheMisses}</td>
+			<td>${entry.value.lastRows}</td>
+			<td><fmt:formatNumber value="${entry.value.p50Millis}" maxFractionDigits="1" /></td>
+			<td><fmt:formatNumber value="${entry.value.p90Millis}" maxFractionDigits="1" /></td>
+			<td><fmt:formatNumber value="${entry.value.p99Millis}" maxFractionDigits="1" /></td>
+			<td><fmt:formatNumber value="${entry.value.maxMillis}" maxFractionDigits="1" /></td>
+			<td><fmt:formatNumber value="${entry.value.sqlP50Millis}" maxFractionDigits="1" /></td>
+			<td><fmt:formatNumber value="${entry.value.sqlP90Millis}" maxFractionDigits="1" /></td>
+		</tr>
+	</c:forEach>
+</table>
+
+<h3>Recent runs</h3>
+<table class="metrics">
+	<tr class="tableheaders">
+		<td>Data set</td>
+		<td>Started</td>
+		<td>Period</td>
+		<td>ms</td>
+		<td>Stored</td>
+		<td>Stages</td>
+		<td>Cardinalities</td>
+	</tr>
+	<c:forEach var="run" items="${runs}">
+		<tr>
+			<td><c:out value="${run.name}" /></td>
+			<td><openmrs:formatDate date="${run.dateStarted}" type="long" /></td>
+			<td><openmrs:formatDate date="${run.startDate}" /> - <openmrs:formatDate date="${run.endDate}" /></td>
+			<td><fmt:formatNumber value="${run.durationMillis}" maxFractionDigits="1" /></td>
+			<td>${run.cacheHit}</td>
+			<td><c:forEach var="stage" items="${run.stages}">
+					<c:out value="${stage.name}" />: <fmt:formatNumber value="${stage.wallMillis}" maxFractionDigits="1" /> ms,
+					${stage.rows} rows<br />
+				</c:forEach></td>
+			<td><c:forEach var="cardinality" items="${run.cardinalities}">
+					<c:out value="${cardinality.key}" />=${cardinality.value}
+				</c:forEach></td>
+		</tr>
+	</c:forEach>
+</table>
+<%@ include file="/WEB-INF/template/footer.jsp"%>
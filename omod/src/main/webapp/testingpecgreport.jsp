@@ -68,7 +68,38 @@ $(document).ready(function(){
 	);
 });
 </script>
-<div id="msg"></div>
+<c:if test="${not empty job}">
+<script type="text/javascript">
+function pollJob(){
+	$.getJSON('${pageContext.request.contextPath}/module/testingpecgreport/jobStatus.form', {jobId: '${job.id}'}, function(job){
+		var text = job.name + ': ' + job.status + ' (' + job.percentComplete + '%)';
+		if (job.currentStep) {
+			text += ' - ' + job.currentStep;
+		}
+		if (job.error) {
+			text += ' - ' + job.error;
+		}
+		$('#jobStatus').text(text);
+		if (job.hasResult) {
+			$('#jobResult').show();
+		}
+		if (job.status == 'QUEUED' || job.status == 'RUNNING') {
+			setTimeout(pollJob, 2000);
+		}
+	});
+}
+$(document).ready(pollJob);
+</script>
+</c:if>
+<div id="msg">
+	<c:if test="${not empty job}">
+		<div id="openmrs_msg">
+			<span id="jobStatus"><c:out value="${job.name}" />: ${job.status}</span>
+			<a id="jobResult" style="display: none"
+				href="${pageContext.request.contextPath}/module/testingpecgreport/jobResult.form?jobId=${job.id}">Download</a>
+		</div>
+	</c:if>
+</div>
 <h2>Register/Remove CMR Reports</h2>
 
 <br />
@@ -84,7 +115,9 @@ $(document).ready(function(){
 	<tr>
 		<td rowspan="1" class="tabletd">PECG Report</td>
 		<td>Number of old PLWHA on ARV who came for treatment</td>
-		<td>Central</td>
+		<td>Central<br />
+			<small>${registrationState}<c:if test="${not empty registrationError}">: <c:out
+					value="${registrationError}" /></c:if></small></td>
 		<td><a
 			href="${pageContext.request.contextPath}/module/testingpecgreport/register_PECG.form"
 			onclick=msgreg(this)>(Re) register</a></td>
@@ -93,4 +126,30 @@ $(document).ready(function(){
 			onclick=msgrem(this)>Remove</a></td>
 	</tr>
 </table>
+
+<br />
+
+<form method="post" action="${pageContext.request.contextPath}/module/testingpecgreport/run_PECG.form">
+	Run PECG Report from <input type="text" name="startDate" placeholder="yyyy-MM-dd" />
+	to <input type="text" name="endDate" placeholder="yyyy-MM-dd" />
+	<input type="checkbox" name="streaming" value="true" /> as streamed XLSX
+	<input type="submit" value="Run" />
+</form>
+
+<form method="post" action="${pageContext.request.contextPath}/module/testingpecgreport/run_PECG_batch.form">
+	Run PECG Report for <input type="text" name="months" size="3" value="12" /> months
+	from <input type="text" name="firstMonth" placeholder="yyyy-MM" />
+	<input type="checkbox" name="combined" value="true" /> in one workbook
+	<input type="submit" value="Run" />
+</form>
+
+<form method="post" action="${pageContext.request.contextPath}/module/testingpecgreport/run_PECG_lineList.form">
+	List the PECG patients from <input type="text" name="startDate" placeholder="yyyy-MM-dd" />
+	to <input type="text" name="endDate" placeholder="yyyy-MM-dd" />
+	as <select name="format">
+		<option value="csv">CSV</option>
+		<option value="xlsx">XLSX</option>
+	</select>
+	<input type="submit" value="Export" />
+</form>
 <%@ include file="/WEB-INF/template/footer.jsp"%>
\ No newline at end of file
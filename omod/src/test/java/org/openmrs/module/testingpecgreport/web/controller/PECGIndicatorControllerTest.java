@@ -0,0 +1,115 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.testingpecgreport.web.controller;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.SqlDataSetDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.testingpecgreport.api.reporting.LocationPartitionedResult;
+import org.openmrs.module.testingpecgreport.api.reporting.definition.AgeSexDisaggregationDataSetDefinition;
+import org.springframework.mock.web.MockHttpServletRequest;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the column checks, the conditional GET checks and the JSON of the indicator endpoint.
+ */
+public class PECGIndicatorControllerTest {
+	
+	@Test
+	public void isNotModified_shouldMatchTheETagBeforeTheDate() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-None-Match", "\"a\", \"b\"");
+		request.addHeader("If-Modified-Since", 2000L);
+		
+		assertThat(PECGIndicatorController.isNotModified(request, "\"b\"", 1000L), is(true));
+		assertThat(PECGIndicatorController.isNotModified(request, "\"c\"", 1000L), is(false));
+	}
+	
+	@Test
+	public void isNotModified_shouldCompareTheDateWithoutETag() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader("If-Modified-Since", 2000L);
+		
+		assertThat(PECGIndicatorController.isNotModified(request, "\"a\"", 2000L), is(true));
+		assertThat(PECGIndicatorController.isNotModified(request, "\"a\"", 3000L), is(false));
+		assertThat(PECGIndicatorController.isNotModified(new MockHttpServletRequest(), "\"a\"", 0L), is(false));
+	}
+	
+	@Test
+	public void parseColumns_shouldTrimSortAndDropDuplicateAndEmptyNames() {
+		assertThat(PECGIndicatorController.parseColumns(" 2F, 2All,,2F ,"), contains("2All", "2F"));
+	}
+	
+	@Test
+	public void getUnknownColumns_shouldReturnTheNamesThatAreNotColumnsOfTheDataSet() {
+		AgeSexDisaggregationDataSetDefinition dsd = new AgeSexDisaggregationDataSetDefinition();
+		dsd.addColumn("2All", "All", null, null);
+		dsd.addColumn("2F", "Female", null, null);
+		
+		assertThat(PECGIndicatorController.getUnknownColumns(PECGIndicatorController.parseColumns("2F,2All"), dsd),
+		    is(empty()));
+		assertThat(PECGIndicatorController.getUnknownColumns(PECGIndicatorController.parseColumns("2F,x,2M"), dsd),
+		    contains("2M", "x"));
+	}
+	
+	@Test
+	public void getETag_shouldDependOnTheColumns() {
+		String all = PECGIndicatorController.getETag("1", "2016-01-01", "2016-01-31", null);
+		String female = PECGIndicatorController.getETag("1", "2016-01-01", "2016-01-31",
+		    PECGIndicatorController.parseColumns("2F"));
+		
+		assertThat(female, is(not(all)));
+		assertThat(female, is(PECGIndicatorController.getETag("1", "2016-01-01", "2016-01-31",
+		    PECGIndicatorController.parseColumns(" 2F,2F"))));
+	}
+	
+	@Test
+	public void toJson_shouldWriteTheCellsInColumnOrder() {
+		DataSetDefinition dsd = new SqlDataSetDefinition();
+		MapDataSet dataSet = new MapDataSet(dsd, new EvaluationContext());
+		dataSet.addData(new DataSetColumn("2All", "All", Integer.class), 42);
+		dataSet.addData(new DataSetColumn("2F", "Female", Integer.class), 40);
+		
+		assertThat(PECGIndicatorController.toJson("2016-01-01", "2016-01-31", dataSet, null),
+		    is("{\"startDate\":\"2016-01-01\",\"endDate\":\"2016-01-31\",\"values\":{\"2All\":42,\"2F\":40}}"));
+		assertThat(PECGIndicatorController.toJson("2016-01-01", "2016-01-31", dataSet, Arrays.asList("2F")),
+		    is("{\"startDate\":\"2016-01-01\",\"endDate\":\"2016-01-31\",\"values\":{\"2F\":40}}"));
+	}
+	
+	@Test
+	public void toJson_shouldWriteEveryLocationAndTheTotal() {
+		Map<String, Integer> first = new LinkedHashMap<String, Integer>();
+		first.put("2All", 2);
+		first.put("2F", 1);
+		LocationPartitionedResult result = new LocationPartitionedResult();
+		result.addLocation(1, first);
+		result.addLocation(null, Collections.singletonMap("2All", 1));
+		result.setTotal(Collections.singletonMap("2All", 3));
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		names.put(1, "Unknown Location");
+		
+		assertThat(PECGIndicatorController.toJson("2016-01-01", "2016-01-31", result, names, null),
+		    is("{\"startDate\":\"2016-01-01\",\"endDate\":\"2016-01-31\",\"locations\":["
+		            + "{\"locationId\":1,\"name\":\"Unknown Location\",\"values\":{\"2All\":2,\"2F\":1}},"
+		            + "{\"locationId\":null,\"name\":null,\"values\":{\"2All\":1}}],\"total\":{\"2All\":3}}"));
+		assertThat(PECGIndicatorController.toJson("2016-01-01", "2016-01-31", result, names, Arrays.asList("2F")),
+		    containsString("\"values\":{\"2F\":1}},{\"locationId\":null,\"name\":null,\"values\":{}}],\"total\":{}}"));
+	}
+}